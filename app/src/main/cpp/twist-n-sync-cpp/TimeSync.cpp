@@ -19,15 +19,42 @@ TimeSync::TimeSync(std::vector<std::vector<double>> const & gyro_first,
                         ts_second_(tsutil::vectorToEigVectorXd(ts_second)),
                         do_resample_(do_resample) {}
 
+TimeSync::TimeSync(std::vector<double> const & gyro_first_columns,
+                   std::vector<double> const & gyro_second_columns,
+                   std::vector<double> const & ts_first,
+                   std::vector<double> const & ts_second,
+                   bool const & do_resample):
+                        gyro_first_(tsutil::columnsToEigMatrixX3d(gyro_first_columns)),
+                        gyro_second_(tsutil::columnsToEigMatrixX3d(gyro_second_columns)),
+                        ts_first_(tsutil::vectorToEigVectorXd(ts_first)),
+                        ts_second_(tsutil::vectorToEigVectorXd(ts_second)),
+                        do_resample_(do_resample) {}
+
 
 tsutil::CorrData TimeSync::getInitialIndex() const {
 
     Eigen::VectorXd norm_first = tsutil::getNormOfRows(gyro_first_);
     Eigen::VectorXd norm_second = tsutil::getNormOfRows(gyro_second_);
 
-    Eigen::VectorXd cross_cor = tsutil::eigenCrossCor(norm_second, norm_first);
+    // Lags of the full cross-correlation, narrowed to the max lag
+    Eigen::Index min_lag = -gyro_first_.rows() + 1;
+    Eigen::Index max_lag = gyro_second_.rows() - 1;
+    Eigen::VectorXd cross_cor;
+    if (max_lag_ > 0.0 && dt_ > 0.0) {
+        auto bound = std::max<Eigen::Index>(1, static_cast<Eigen::Index> (std::ceil(max_lag_ / dt_)));
+        min_lag = std::max(min_lag, -bound);
+        max_lag = std::min(max_lag, bound);
+        cross_cor = tsutil::eigenCrossCor(norm_second, norm_first, min_lag, max_lag);
+    } else {
+        cross_cor = tsutil::eigenCrossCor(norm_second, norm_first);
+    }
+
+    return {cross_cor, std::distance(cross_cor.begin(), std::max_element(cross_cor.begin(), cross_cor.end())),
+            min_lag};
+}
 
-    return {cross_cor, std::distance(cross_cor.begin(), std::max_element(cross_cor.begin(), cross_cor.end()))};
+void TimeSync::setMaxLag(double const & max_lag) {
+    max_lag_ = max_lag;
 }
 
 Eigen::MatrixX3d & TimeSync::interpolateGyro(Eigen::VectorXd const & ts_old, Eigen::MatrixX3d const & gyro_old,
@@ -65,12 +92,10 @@ Eigen::Vector2d TimeSync::obtainRoots(Eigen::VectorXd const & coeffs, Eigen::Ind
 
 void TimeSync::obtainDelay(){
 
-    // Correction of index numbering
-    Eigen::Index shift = -gyro_first_.rows() + 1;
-
     // Cross-cor estimation
     tsutil::CorrData corr_data = TimeSync::getInitialIndex();
-    corr_data.initial_index += shift;
+    // Correction of index numbering
+    corr_data.initial_index += corr_data.min_lag;
 
     Eigen::MatrixX3d tmp_xx1;
     Eigen::MatrixX3d tmp_xx2;
@@ -81,7 +106,7 @@ void TimeSync::obtainDelay(){
     }
     else if (corr_data.initial_index < 0){
         tmp_xx1 = gyro_first_(Eigen::seq(-corr_data.initial_index, Eigen::last), Eigen::all).eval();
-        tmp_xx2 = gyro_second_(Eigen::seq(0, corr_data.initial_index), Eigen::all).eval();
+        tmp_xx2 = gyro_second_(Eigen::seq(0, Eigen::last + corr_data.initial_index), Eigen::all).eval();
     }
     else{
         tmp_xx1 = gyro_first_;
@@ -126,7 +151,7 @@ void TimeSync::obtainDelay(){
     if (std::accumulate(check_solution.begin(), check_solution.end(), 0.0) < 0.0)
         result = *std::min_element(roots.begin(), roots.end());
 
-    time_delay_ = (static_cast<double>(corr_data.initial_index + shift) + result) * dt_;
+    time_delay_ = (static_cast<double>(corr_data.initial_index + corr_data.min_lag) + result) * dt_;
 }
 
 double TimeSync::getTimeDelay() const {
@@ -14,10 +14,22 @@ class TimeSync : public scapix::bridge::object<TimeSync> {
                       std::vector<double> const & ts_second,
                       bool const & do_resample = true);
 
+    // Same as above, angular velocities are passed as flat column-major arrays
+    // (all x values, then all y values, then all z values), the storage layout of Eigen::MatrixX3d.
+    // This avoids marshalling one Java array per sample through the bridge.
+    explicit TimeSync(std::vector<double> const & gyro_first_columns,
+                      std::vector<double> const & gyro_second_columns,
+                      std::vector<double> const & ts_first,
+                      std::vector<double> const & ts_second,
+                      bool const & do_resample = true);
+
     void obtainDelay();
 
     void resample(double const & accuracy);
 
+    // Restricts the delay search to [-max_lag, max_lag] seconds, non-positive values search all lags
+    void setMaxLag(double const & max_lag);
+
     double getTimeDelay() const;
 
  private:
@@ -42,6 +54,9 @@ class TimeSync : public scapix::bridge::object<TimeSync> {
     // Flag to do resampling of angular velocities
     bool do_resample_;
     double time_delay_ = 0.0;
+
+    // Bound of the searched delay in seconds, non-positive for no bound
+    double max_lag_ = 0.0;
 };
 
 
@@ -3,6 +3,8 @@
 #include "unsupported/Eigen/Polynomials"
 #include "util/CubicSpline.h"
 
+#include <algorithm>
+#include <cassert>
 #include <numeric>
 
 namespace tsutil {
@@ -24,17 +26,22 @@ namespace tsutil {
         return new_data(Eigen::seq(1, Eigen::last));
     }
 
-    Eigen::VectorXd vectorToEigVectorXd(std::vector<double> data) {
-        return Eigen::Map<Eigen::VectorXd>(data.data(), static_cast<Eigen::Index> (data.size()));
+    Eigen::VectorXd vectorToEigVectorXd(std::vector<double> const & data) {
+        return Eigen::Map<const Eigen::VectorXd>(data.data(), static_cast<Eigen::Index> (data.size()));
     }
 
-    Eigen::MatrixX3d vectorToEigMatrixX3d(std::vector<std::vector<double>> data) {
+    Eigen::MatrixX3d vectorToEigMatrixX3d(std::vector<std::vector<double>> const & data) {
         Eigen::MatrixX3d eigen_data(data.size(), 3);
         for (Eigen::Index i = 0; i < data.size(); ++i)
-            eigen_data.row(i) = Eigen::Map<Eigen::Vector3d>(data[i].data(), 3);
+            eigen_data.row(i) = Eigen::Map<const Eigen::Vector3d>(data[i].data(), 3);
         return eigen_data;
     }
 
+    Eigen::MatrixX3d columnsToEigMatrixX3d(std::vector<double> const & data) {
+        assert(data.size() % 3 == 0);
+        return Eigen::Map<const Eigen::MatrixX3d>(data.data(), static_cast<Eigen::Index> (data.size() / 3), 3);
+    }
+
     Eigen::VectorXd getNormOfRows(Eigen::MatrixX3d const & data){
         Eigen::VectorXd norm_data(data.rows());
         Eigen::Index i = 0;
@@ -97,4 +104,50 @@ namespace tsutil {
 
         return cross_cor(Eigen::seq(shift, Eigen::last));
     }
-}
\ No newline at end of file
+
+    Eigen::VectorXd eigenCrossCor(Eigen::VectorXd const & data_1, Eigen::VectorXd const & data_2,
+                                  Eigen::Index min_lag, Eigen::Index max_lag){
+        // Rough cost of an FFT correlation per point and per log2 of its size,
+        // in multiply-adds of the direct correlation
+        const Eigen::Index fft_cost_per_point = 8;
+
+        Eigen::Index size_1 = data_1.size();
+        Eigen::Index size_2 = data_2.size();
+        Eigen::Index lags = max_lag - min_lag + 1;
+        Eigen::VectorXd cross_cor(lags);
+
+        // Circular correlation of this length does not wrap into [min_lag, max_lag]
+        Eigen::Index N = std::max({size_1, size_2, size_2 + max_lag, size_1 - min_lag});
+        N = static_cast<Eigen::Index> (std::pow(2, std::ceil(std::log2(N))));
+
+        if (lags * std::min(size_1, size_2) <= fft_cost_per_point * N * static_cast<Eigen::Index> (std::log2(N))){
+            for (Eigen::Index lag = min_lag; lag <= max_lag; ++lag){
+                Eigen::Index from = std::max<Eigen::Index>(0, -lag);
+                Eigen::Index to = std::min(size_2, size_1 - lag);
+                cross_cor[lag - min_lag] = to > from ?
+                        data_1.segment(from + lag, to - from).dot(data_2.segment(from, to - from)) : 0.0;
+            }
+            return cross_cor;
+        }
+
+        Eigen::VectorXd padded_1 = Eigen::VectorXd::Zero(N);
+        Eigen::VectorXd padded_2 = Eigen::VectorXd::Zero(N);
+        padded_1.head(size_1) = data_1;
+        padded_2.head(size_2) = data_2;
+
+        Eigen::FFT <double> fft;
+        Eigen::VectorXcd fft_first(N);
+        Eigen::VectorXcd fft_second(N);
+        fft.fwd(fft_first, padded_1);
+        fft.fwd(fft_second, padded_2);
+
+        Eigen::VectorXcd fft_result = fft_first.array() * fft_second.conjugate().array();
+        Eigen::VectorXd circular(N);
+        fft.inv(circular, fft_result);
+
+        // Negative lags wrap around to the end of the circular correlation
+        for (Eigen::Index lag = min_lag; lag <= max_lag; ++lag)
+            cross_cor[lag - min_lag] = circular[lag < 0 ? lag + N : lag];
+        return cross_cor;
+    }
+}
@@ -18,13 +18,23 @@ namespace tsutil {
     // return : Eigen::VectorXd
     Eigen::VectorXd eigenCrossCor(Eigen::VectorXd & data_1, Eigen::VectorXd & data_2);
 
+    // Cross-correlation restricted to lags [min_lag, max_lag] of data_1 relative to data_2,
+    // element i is sum_n data_1[n + min_lag + i] * data_2[n].
+    // Computed directly for narrow windows, otherwise with the smallest FFT that does not wrap
+    // into the window.
+    Eigen::VectorXd eigenCrossCor(Eigen::VectorXd const & data_1, Eigen::VectorXd const & data_2,
+                                  Eigen::Index min_lag, Eigen::Index max_lag);
+
     // Implementation of np.roots
     // Quadratic equation: coeffs[2] * x^2 + coeffs[1] * x + coeffs[0] = 0
     Eigen::Vector2d quadraticRoots(Eigen::VectorXd const & coeffs);
 
-    Eigen::MatrixX3d vectorToEigMatrixX3d(std::vector<std::vector<double>> data);
+    Eigen::MatrixX3d vectorToEigMatrixX3d(std::vector<std::vector<double>> const & data);
+
+    // Wraps column-major data of a N x 3 matrix, the only copy is into the returned matrix
+    Eigen::MatrixX3d columnsToEigMatrixX3d(std::vector<double> const & data);
 
-    Eigen::VectorXd vectorToEigVectorXd(std::vector<double> data);
+    Eigen::VectorXd vectorToEigVectorXd(std::vector<double> const & data);
 
     Eigen::VectorXd getNormOfRows(Eigen::MatrixX3d const & data);
 
@@ -35,6 +45,8 @@ namespace tsutil {
     struct CorrData{
         Eigen::VectorXd cross_cor;
         Eigen::Index initial_index;
+        // Lag of the first cross_cor element
+        Eigen::Index min_lag;
     };
 }
 
@@ -28,14 +28,13 @@ import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 import com.googleresearch.capturesync.ImageMetadataSynchronizer.CaptureRequestTag;
+import com.googleresearch.capturesync.softwaresync.CaptureFileServer;
 import com.googleresearch.capturesync.softwaresync.TimeDomainConverter;
 import com.googleresearch.capturesync.softwaresync.TimeUtils;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.TimeZone;
 
 
 /** High level camera controls. */
@@ -217,17 +216,12 @@ public class CameraController {
 
   // Input desired capture time in leader time domain (first frame that >= that timestamp).
   public void setUpcomingCaptureStill(long desiredSynchronizedCaptureTimeNs) {
-    goalOutputDirName = getTimeStr(desiredSynchronizedCaptureTimeNs);
+    // Same name as on the other devices, which lets the leader collect the capture.
+    goalOutputDirName = CaptureFileServer.captureDirName(desiredSynchronizedCaptureTimeNs);
     goalSynchronizedTimestampNs = desiredSynchronizedCaptureTimeNs;
     Log.i(
         TAG,
         String.format(
             "Request sync still at %d to %s", goalSynchronizedTimestampNs, goalOutputDirName));
   }
-
-  private String getTimeStr(long timestampNs) {
-    SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS");
-    simpleDateFormat.setTimeZone(TimeZone.getDefault());
-    return simpleDateFormat.format(timestampNs / 1_000_000L);
-  }
 }
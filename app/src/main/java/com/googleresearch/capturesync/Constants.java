@@ -36,6 +36,26 @@ public final class Constants {
    */
   public static final int GYRO_PERIOD_US = 2_000;
 
+  /**
+   * Set true to record gyroscope samples as CSV text instead of the binary format
+   * ({@link GyroBinaryFormat}). CSV is slower to write and larger to transfer, so in this mode
+   * sync windows are only exported to {@link #LOCAL_SENSOR_DIR} and never sent as CSV.
+   */
+  public static final boolean SAVE_GYRO_CSV = false;
+
+  /**
+   * Length of gyroscope history kept in memory by the always-on recorder, sync windows can be
+   * requested retroactively from it.
+   */
+  public static final long GYRO_HISTORY_MILLIS = 30_000;
+
+  /**
+   * Set true to run gyro time sync in the native library when it is available on the device,
+   * the pure Java engine is used otherwise. Enabling the pyramid search in
+   * SyncConstants.GYRO_SYNC_PYRAMID_LEVELS overrides this, it only exists in the Java engine.
+   */
+  public static final boolean PREFER_NATIVE_TIME_SYNC = true;
+
   /**
    * Subdirectory with local sensor recordings
    */
@@ -0,0 +1,402 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Fixed-width little-endian binary format for gyroscope recordings.
+ *
+ * <p>File layout:
+ * <pre>
+ *   header: int magic, short version, short deviceIdLength, int samplePeriodUs,
+ *           byte[deviceIdLength] deviceId (UTF-8)
+ *   record: float x, float y, float z, long timestampNs  (RECORD_SIZE bytes each)
+ * </pre>
+ *
+ * <p>Streams may instead be encoded with a {@link GyroCodec} ({@link #VERSION_ENCODED}):
+ * <pre>
+ *   header: int magic, short version, short deviceIdLength, int samplePeriodUs,
+ *           byte codec, float scale, byte[deviceIdLength] deviceId (UTF-8)
+ *   block:  int payloadLength, int samples, byte[payloadLength] payload
+ * </pre>
+ * Files are always written with fixed-width records, so that they can be memory-mapped.
+ */
+public final class GyroBinaryFormat {
+    public static final int MAGIC = 0x42525947; // "GYRB" when read as little-endian bytes.
+    public static final short VERSION = 1;
+    public static final short VERSION_ENCODED = 2;
+    public static final String FILE_EXTENSION = ".bin";
+
+    /** Size of the fixed part of the header, without device id bytes. */
+    public static final int HEADER_FIXED_SIZE = 4 + 2 + 2 + 4;
+    private static final int DEVICE_ID_LENGTH_OFFSET = 4 + 2;
+    private static final int VERSION_OFFSET = 4;
+    /** Codec and scale fields of encoded stream headers. */
+    private static final int CODEC_FIELDS_SIZE = 1 + 4;
+    private static final int BLOCK_HEADER_SIZE = 4 + 4;
+    public static final int RECORD_SIZE = (3 * Float.SIZE + Long.SIZE) / Byte.SIZE;
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final Charset DEVICE_ID_CHARSET = Charset.forName("UTF-8");
+    private static final int MAX_DEVICE_ID_LENGTH = 255;
+
+    /** Parsed file header. */
+    public static final class Header {
+        private final short mVersion;
+        private final int mSamplePeriodUs;
+        private final String mDeviceId;
+        private final int mCodec;
+        private final float mScale;
+
+        Header(short version, int samplePeriodUs, String deviceId, int codec, float scale) {
+            mVersion = version;
+            mSamplePeriodUs = samplePeriodUs;
+            mDeviceId = deviceId;
+            mCodec = codec;
+            mScale = scale;
+        }
+
+        public short version() {
+            return mVersion;
+        }
+
+        /** Requested sensor sampling period in microseconds. */
+        public int samplePeriodUs() {
+            return mSamplePeriodUs;
+        }
+
+        public String deviceId() {
+            return mDeviceId;
+        }
+
+        /** {@link GyroCodec} of the samples, {@link GyroCodec#RAW} for fixed-width records. */
+        public int codec() {
+            return mCodec;
+        }
+
+        /** Quantisation scale of {@link GyroCodec#QUANTIZED} streams. */
+        public float scale() {
+            return mScale;
+        }
+
+        /** Full header size in bytes, records start right after it. */
+        public int size() {
+            return HEADER_FIXED_SIZE + (mVersion == VERSION_ENCODED ? CODEC_FIELDS_SIZE : 0)
+                    + mDeviceId.getBytes(DEVICE_ID_CHARSET).length;
+        }
+    }
+
+    /**
+     * Buffered record writer. Records are put into a reusable direct buffer and written to the
+     * channel only when it is full, so appending a sample does not allocate. Methods are
+     * synchronized since the sensor thread appends while another thread may close the writer.
+     *
+     * <p>After a header with a codec other than {@link GyroCodec#RAW}, samples are encoded into
+     * blocks of up to batchRecords samples, written on {@link #flush()} or when full.
+     */
+    public static final class Writer implements AutoCloseable {
+        /** Number of records kept in memory before they are written to the channel. */
+        public static final int DEFAULT_BATCH_RECORDS = 256;
+
+        private final WritableByteChannel mChannel;
+        private final ByteBuffer mBuffer;
+        private final int mBatchRecords;
+        private GyroCodec mEncoder;
+        private final GyroCodec.BitWriter mBlock = new GyroCodec.BitWriter();
+        private int mBlockSamples;
+
+        public Writer(WritableByteChannel channel) {
+            this(channel, DEFAULT_BATCH_RECORDS);
+        }
+
+        public Writer(WritableByteChannel channel, int batchRecords) {
+            mChannel = channel;
+            mBatchRecords = Math.max(1, batchRecords);
+            mBuffer = ByteBuffer.allocateDirect(
+                    Math.max(batchRecords * RECORD_SIZE, HEADER_FIXED_SIZE + MAX_DEVICE_ID_LENGTH)
+            ).order(BYTE_ORDER);
+        }
+
+        public synchronized void writeHeader(int samplePeriodUs, String deviceId) throws IOException {
+            writeHeader(samplePeriodUs, deviceId, GyroCodec.RAW, 0.0f);
+        }
+
+        /**
+         * Writes a header for samples encoded with the codec, the scale is only used by
+         * {@link GyroCodec#QUANTIZED}.
+         */
+        public synchronized void writeHeader(
+                int samplePeriodUs, String deviceId, int codec, float scale) throws IOException {
+            byte[] deviceIdBytes = deviceId.getBytes(DEVICE_ID_CHARSET);
+            if (deviceIdBytes.length > MAX_DEVICE_ID_LENGTH) {
+                throw new IllegalArgumentException("Device id is too long: " + deviceId);
+            }
+            boolean encoded = codec != GyroCodec.RAW;
+            mBuffer.putInt(MAGIC)
+                    .putShort(encoded ? VERSION_ENCODED : VERSION)
+                    .putShort((short) deviceIdBytes.length)
+                    .putInt(samplePeriodUs);
+            if (encoded) {
+                mEncoder = GyroCodec.create(codec, scale, samplePeriodUs * 1000L);
+                mBuffer.put((byte) codec).putFloat(scale);
+            }
+            mBuffer.put(deviceIdBytes);
+            flush();
+        }
+
+        public synchronized void write(float x, float y, float z, long timestampNs) throws IOException {
+            if (mEncoder != null) {
+                mEncoder.encode(x, y, z, timestampNs, mBlock);
+                if (++mBlockSamples >= mBatchRecords) {
+                    writeBlock();
+                }
+                return;
+            }
+            if (mBuffer.remaining() < RECORD_SIZE) {
+                flush();
+            }
+            mBuffer.putFloat(x).putFloat(y).putFloat(z).putLong(timestampNs);
+        }
+
+        /** Appends all samples of the view. */
+        public synchronized void write(GyroView series) throws IOException {
+            for (int i = 0; i < series.size(); i++) {
+                write(series.x(i), series.y(i), series.z(i), series.timestampNs(i));
+            }
+        }
+
+        /** Writes all buffered records to the underlying channel. */
+        public synchronized void flush() throws IOException {
+            if (mBlockSamples > 0) {
+                writeBlock();
+            }
+            writeBuffer();
+        }
+
+        private void writeBlock() throws IOException {
+            if (mBuffer.remaining() < BLOCK_HEADER_SIZE) {
+                writeBuffer();
+            }
+            mBuffer.putInt(mBlock.byteLength()).putInt(mBlockSamples);
+            writeBuffer();
+            ByteBuffer payload = ByteBuffer.wrap(mBlock.bytes(), 0, mBlock.byteLength());
+            while (payload.hasRemaining()) {
+                mChannel.write(payload);
+            }
+            mBlock.clear();
+            mBlockSamples = 0;
+        }
+
+        private void writeBuffer() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                mChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the header from the beginning of the buffer and leaves the buffer positioned at the
+     * first record. The buffer byte order is switched to {@link #BYTE_ORDER}.
+     *
+     * @throws IOException if the buffer does not start with a supported gyro header.
+     */
+    public static Header readHeader(ByteBuffer buffer) throws IOException {
+        buffer.order(BYTE_ORDER);
+        if (buffer.remaining() < HEADER_FIXED_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a binary gyro recording");
+        }
+        short version = buffer.getShort();
+        if (version != VERSION && version != VERSION_ENCODED) {
+            throw new IOException("Unsupported binary gyro recording version " + version);
+        }
+        int deviceIdLength = buffer.getShort() & 0xFFFF;
+        int samplePeriodUs = buffer.getInt();
+        int codec = GyroCodec.RAW;
+        float scale = 0.0f;
+        if (version == VERSION_ENCODED) {
+            if (buffer.remaining() < CODEC_FIELDS_SIZE) {
+                throw new IOException("Truncated binary gyro recording header");
+            }
+            codec = buffer.get() & 0xFF;
+            scale = buffer.getFloat();
+            if (codec == GyroCodec.RAW || !GyroCodec.isSupported(codec)) {
+                throw new IOException("Unsupported gyro codec " + codec);
+            }
+        }
+        if (buffer.remaining() < deviceIdLength) {
+            throw new IOException("Truncated binary gyro recording header");
+        }
+        byte[] deviceIdBytes = new byte[deviceIdLength];
+        buffer.get(deviceIdBytes);
+        return new Header(
+                version, samplePeriodUs, new String(deviceIdBytes, DEVICE_ID_CHARSET), codec, scale
+        );
+    }
+
+    /**
+     * Incremental record reader for streams whose samples arrive over time: each {@link #read}
+     * appends the records received so far, so they can be processed before the stream ends.
+     * Encoded streams are decoded a whole block at a time.
+     */
+    public static final class Reader {
+        private final ReadableByteChannel mChannel;
+        private ByteBuffer mBuffer = ByteBuffer.allocate(
+                Math.max(Writer.DEFAULT_BATCH_RECORDS * RECORD_SIZE,
+                        HEADER_FIXED_SIZE + CODEC_FIELDS_SIZE + MAX_DEVICE_ID_LENGTH)
+        ).order(BYTE_ORDER);
+        private boolean mEndOfStream;
+        private GyroCodec mDecoder;
+
+        public Reader(ReadableByteChannel channel) {
+            mChannel = channel;
+        }
+
+        /** Reads the header, must be called once before the records are read. */
+        public Header readHeader() throws IOException {
+            mBuffer.clear();
+            mBuffer.limit(HEADER_FIXED_SIZE);
+            readFully(mChannel, mBuffer);
+            int deviceIdLength = mBuffer.getShort(DEVICE_ID_LENGTH_OFFSET) & 0xFFFF;
+            boolean encoded = mBuffer.getShort(VERSION_OFFSET) == VERSION_ENCODED;
+            mBuffer.limit(HEADER_FIXED_SIZE + (encoded ? CODEC_FIELDS_SIZE : 0) + deviceIdLength);
+            readFully(mChannel, mBuffer);
+            mBuffer.flip();
+            Header header = GyroBinaryFormat.readHeader(mBuffer);
+            mBuffer.clear();
+            if (header.codec() != GyroCodec.RAW) {
+                mDecoder = GyroCodec.create(
+                        header.codec(), header.scale(), header.samplePeriodUs() * 1000L
+                );
+            }
+            return header;
+        }
+
+        /**
+         * Blocks until more bytes arrive and appends the complete records among them.
+         *
+         * @return number of records appended, -1 at end of stream.
+         */
+        public int read(GyroSeries.Builder series) throws IOException {
+            if (mEndOfStream) {
+                return -1;
+            }
+            mEndOfStream = mChannel.read(mBuffer) < 0;
+            mBuffer.flip();
+            int records = mDecoder == null ? readRecords(series) : readBlocks(series);
+            mBuffer.compact();
+            if (mEndOfStream) {
+                if (mBuffer.position() != 0) {
+                    throw new IOException("Binary gyro recording ends with a partial record");
+                }
+                return -1;
+            }
+            return records;
+        }
+
+        private int readRecords(GyroSeries.Builder series) {
+            int records = 0;
+            while (mBuffer.remaining() >= RECORD_SIZE) {
+                series.add(
+                        mBuffer.getFloat(), mBuffer.getFloat(), mBuffer.getFloat(), mBuffer.getLong()
+                );
+                records++;
+            }
+            return records;
+        }
+
+        /** Decodes the complete blocks in the buffer, grows it for a block that does not fit. */
+        private int readBlocks(GyroSeries.Builder series) throws IOException {
+            int records = 0;
+            while (mBuffer.remaining() >= BLOCK_HEADER_SIZE) {
+                int start = mBuffer.position();
+                int payloadLength = mBuffer.getInt(start);
+                int samples = mBuffer.getInt(start + 4);
+                if (payloadLength < 0 || samples < 0) {
+                    throw new IOException("Malformed encoded gyro block");
+                }
+                int blockSize = BLOCK_HEADER_SIZE + payloadLength;
+                if (mBuffer.remaining() < blockSize) {
+                    if (blockSize > mBuffer.capacity()) {
+                        ByteBuffer larger = ByteBuffer.allocate(blockSize).order(BYTE_ORDER);
+                        larger.put(mBuffer);
+                        larger.flip();
+                        mBuffer = larger;
+                    }
+                    break;
+                }
+                GyroCodec.BitReader payload = new GyroCodec.BitReader(
+                        mBuffer.array(), mBuffer.arrayOffset() + start + BLOCK_HEADER_SIZE,
+                        payloadLength
+                );
+                for (int i = 0; i < samples; i++) {
+                    mDecoder.decode(payload, series);
+                }
+                mBuffer.position(start + blockSize);
+                records += samples;
+            }
+            return records;
+        }
+    }
+
+    /**
+     * Reads a whole recording (header and records) from the channel until end of stream.
+     * Used for recordings sent over the network, where the length is not known upfront.
+     */
+    public static GyroSeries readSeries(ReadableByteChannel channel) throws IOException {
+        Reader reader = new Reader(channel);
+        reader.readHeader();
+        GyroSeries.Builder series = new GyroSeries.Builder();
+        while (reader.read(series) >= 0) {
+            // Keep reading until end of stream.
+        }
+        return series.build();
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of binary gyro recording");
+            }
+        }
+    }
+
+    /** Checks whether the first bytes of the buffer hold the binary gyro magic number. */
+    public static boolean hasMagic(ByteBuffer buffer) {
+        return buffer.remaining() >= Integer.SIZE / Byte.SIZE
+                && buffer.duplicate().order(BYTE_ORDER).getInt() == MAGIC;
+    }
+
+    private GyroBinaryFormat() {}
+}
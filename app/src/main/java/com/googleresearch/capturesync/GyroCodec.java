@@ -0,0 +1,319 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact encodings of gyro samples for transfer, see {@link GyroBinaryFormat}.
+ *
+ * <p>Timestamps are encoded as the difference between the actual sample period and the expected
+ * one, zigzag varint coded, which takes one or two bytes for a regular sensor. The expected period
+ * starts at the nominal period and follows the previous actual period, since sensors often run
+ * faster than requested. Angular velocities are
+ * either quantised with the scale declared in the stream header and delta coded as zigzag varints
+ * ({@link #QUANTIZED}, lossy by at most half the scale), or XOR-compressed against the previous
+ * value of the axis ({@link #XOR_FLOAT}, lossless).
+ *
+ * <p>Codec instances keep the previous sample, so one instance encodes or decodes one stream.
+ */
+public abstract class GyroCodec {
+    /** Fixed-width records, readable by any peer. */
+    public static final int RAW = 0;
+    public static final int QUANTIZED = 1;
+    public static final int XOR_FLOAT = 2;
+
+    /** Bit mask of the codecs this build can encode and decode. */
+    public static final int SUPPORTED_CODECS = (1 << RAW) | (1 << QUANTIZED) | (1 << XOR_FLOAT);
+    /** Quantisation step of angular velocities, rad/s, well below gyro noise. */
+    public static final float DEFAULT_SCALE = 1e-4f;
+
+    /** Codecs in order of preference, the first one supported by the peer is used. */
+    private static final int[] PREFERENCE = {QUANTIZED, XOR_FLOAT, RAW};
+
+    private long mPeriodNs;
+    private long mTimestampNs;
+    private boolean mStarted;
+
+    GyroCodec(long periodNs) {
+        mPeriodNs = periodNs;
+    }
+
+    /** Best codec supported by both this build and the peer, {@link #RAW} if none. */
+    public static int choose(int peerCodecs) {
+        for (int codec : PREFERENCE) {
+            if ((peerCodecs & SUPPORTED_CODECS & (1 << codec)) != 0) {
+                return codec;
+            }
+        }
+        return RAW;
+    }
+
+    public static boolean isSupported(int codec) {
+        return codec >= 0 && codec < Integer.SIZE && (SUPPORTED_CODECS & (1 << codec)) != 0;
+    }
+
+    /**
+     * Creates the codec of an encoded stream.
+     *
+     * @throws IllegalArgumentException for {@link #RAW}, which has no encoded form.
+     */
+    static GyroCodec create(int codec, float scale, long periodNs) {
+        switch (codec) {
+            case QUANTIZED:
+                return new Quantized(scale, periodNs);
+            case XOR_FLOAT:
+                return new XorFloat(periodNs);
+            default:
+                throw new IllegalArgumentException("No encoder for gyro codec " + codec);
+        }
+    }
+
+    void encode(float x, float y, float z, long timestampNs, BitWriter out) {
+        long periodNs = timestampNs - mTimestampNs;
+        out.writeVarint(zigzag(periodNs - mPeriodNs));
+        advance(timestampNs, periodNs);
+        encodeValues(x, y, z, out);
+    }
+
+    void decode(BitReader in, GyroSeries.Builder out) throws IOException {
+        long periodNs = mPeriodNs + unzigzag(in.readVarint());
+        advance(mTimestampNs + periodNs, periodNs);
+        decodeValues(in, out, mTimestampNs);
+    }
+
+    /** The first timestamp is coded against zero, it does not give a period. */
+    private void advance(long timestampNs, long periodNs) {
+        if (mStarted) {
+            mPeriodNs = periodNs;
+        }
+        mStarted = true;
+        mTimestampNs = timestampNs;
+    }
+
+    abstract void encodeValues(float x, float y, float z, BitWriter out);
+
+    abstract void decodeValues(BitReader in, GyroSeries.Builder out, long timestampNs)
+            throws IOException;
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Quantized extends GyroCodec {
+        private final float mScale;
+        private final long[] mPrevious = new long[3];
+
+        Quantized(float scale, long periodNs) {
+            super(periodNs);
+            if (!(scale > 0)) {
+                throw new IllegalArgumentException("Quantisation scale must be positive: " + scale);
+            }
+            mScale = scale;
+        }
+
+        @Override
+        void encodeValues(float x, float y, float z, BitWriter out) {
+            encodeAxis(0, x, out);
+            encodeAxis(1, y, out);
+            encodeAxis(2, z, out);
+        }
+
+        private void encodeAxis(int axis, float value, BitWriter out) {
+            long quantised = Math.round((double) value / mScale);
+            out.writeVarint(zigzag(quantised - mPrevious[axis]));
+            mPrevious[axis] = quantised;
+        }
+
+        @Override
+        void decodeValues(BitReader in, GyroSeries.Builder out, long timestampNs)
+                throws IOException {
+            for (int axis = 0; axis < 3; axis++) {
+                mPrevious[axis] += unzigzag(in.readVarint());
+            }
+            out.add((float) (mPrevious[0] * (double) mScale), (float) (mPrevious[1] * (double) mScale),
+                    (float) (mPrevious[2] * (double) mScale), timestampNs);
+        }
+    }
+
+    /**
+     * XOR of the float bits with the previous value of the axis: a zero bit if equal, otherwise
+     * the meaningful bits of the XOR, within the previous leading and trailing zeros if they fit,
+     * or after 5 bits of leading zeros and 5 bits of meaningful length.
+     */
+    private static final class XorFloat extends GyroCodec {
+        private final int[] mPrevious = new int[3];
+        private final int[] mLeading = {-1, -1, -1};
+        private final int[] mTrailing = new int[3];
+
+        XorFloat(long periodNs) {
+            super(periodNs);
+        }
+
+        @Override
+        void encodeValues(float x, float y, float z, BitWriter out) {
+            encodeAxis(0, x, out);
+            encodeAxis(1, y, out);
+            encodeAxis(2, z, out);
+        }
+
+        private void encodeAxis(int axis, float value, BitWriter out) {
+            int bits = Float.floatToRawIntBits(value);
+            int xor = bits ^ mPrevious[axis];
+            mPrevious[axis] = bits;
+            if (xor == 0) {
+                out.writeBits(0, 1);
+                return;
+            }
+            out.writeBits(1, 1);
+            int leading = Integer.numberOfLeadingZeros(xor);
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (mLeading[axis] >= 0 && leading >= mLeading[axis] && trailing >= mTrailing[axis]) {
+                out.writeBits(0, 1);
+                out.writeBits(xor >>> mTrailing[axis], Integer.SIZE - mLeading[axis] - mTrailing[axis]);
+                return;
+            }
+            int meaningful = Integer.SIZE - leading - trailing;
+            out.writeBits(1, 1);
+            out.writeBits(leading, 5);
+            out.writeBits(meaningful - 1, 5);
+            out.writeBits(xor >>> trailing, meaningful);
+            mLeading[axis] = leading;
+            mTrailing[axis] = trailing;
+        }
+
+        @Override
+        void decodeValues(BitReader in, GyroSeries.Builder out, long timestampNs)
+                throws IOException {
+            for (int axis = 0; axis < 3; axis++) {
+                if (in.readBits(1) == 0) {
+                    continue;
+                }
+                if (in.readBits(1) == 1) {
+                    mLeading[axis] = (int) in.readBits(5);
+                    int meaningful = (int) in.readBits(5) + 1;
+                    mTrailing[axis] = Integer.SIZE - mLeading[axis] - meaningful;
+                } else if (mLeading[axis] < 0) {
+                    throw new IOException("Malformed XOR gyro stream");
+                }
+                int meaningful = Integer.SIZE - mLeading[axis] - mTrailing[axis];
+                mPrevious[axis] ^= (int) in.readBits(meaningful) << mTrailing[axis];
+            }
+            out.add(Float.intBitsToFloat(mPrevious[0]), Float.intBitsToFloat(mPrevious[1]),
+                    Float.intBitsToFloat(mPrevious[2]), timestampNs);
+        }
+    }
+
+    /** Appends bits, most significant first, to a growing byte array. */
+    static final class BitWriter {
+        private byte[] mBytes = new byte[256];
+        private int mBitCount;
+
+        /** Writes the low count bits of value, count in [0, 64]. */
+        void writeBits(long value, int count) {
+            mBytes = ensureCapacity(mBytes, (mBitCount + count + 7) / 8);
+            if (count == Byte.SIZE && (mBitCount & 7) == 0) {
+                // Varint bytes of byte-aligned codecs.
+                mBytes[mBitCount >>> 3] = (byte) value;
+                mBitCount += Byte.SIZE;
+                return;
+            }
+            for (int i = count - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    mBytes[mBitCount >>> 3] |= (byte) (0x80 >>> (mBitCount & 7));
+                }
+                mBitCount++;
+            }
+        }
+
+        /** Unsigned LEB128 varint, 7 bits per byte. */
+        void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeBits((value & 0x7F) | 0x80, 8);
+                value >>>= 7;
+            }
+            writeBits(value, 8);
+        }
+
+        /** Length in bytes, the last byte is padded with zero bits. */
+        int byteLength() {
+            return (mBitCount + 7) / 8;
+        }
+
+        byte[] bytes() {
+            return mBytes;
+        }
+
+        void clear() {
+            Arrays.fill(mBytes, 0, byteLength(), (byte) 0);
+            mBitCount = 0;
+        }
+
+        private static byte[] ensureCapacity(byte[] bytes, int size) {
+            return bytes.length >= size ? bytes : Arrays.copyOf(bytes, Math.max(size, 2 * bytes.length));
+        }
+    }
+
+    /** Reads bits written by {@link BitWriter} from a byte range. */
+    static final class BitReader {
+        private final byte[] mBytes;
+        private long mBit;
+        private final long mEndBit;
+
+        BitReader(byte[] bytes, int offset, int length) {
+            mBytes = bytes;
+            mBit = (long) offset * 8;
+            mEndBit = (long) (offset + length) * 8;
+        }
+
+        long readBits(int count) throws IOException {
+            if (mBit + count > mEndBit) {
+                throw new IOException("Truncated encoded gyro block");
+            }
+            if (count == Byte.SIZE && (mBit & 7) == 0) {
+                long value = mBytes[(int) (mBit >>> 3)] & 0xFF;
+                mBit += Byte.SIZE;
+                return value;
+            }
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                int bit = (mBytes[(int) (mBit >>> 3)] >>> (7 - (int) (mBit & 7))) & 1;
+                value = (value << 1) | bit;
+                mBit++;
+            }
+            return value;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < Long.SIZE; shift += 7) {
+                long b = readBits(8);
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in encoded gyro block");
+        }
+    }
+}
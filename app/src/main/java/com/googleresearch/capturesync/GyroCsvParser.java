@@ -0,0 +1,294 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Single-pass parser of gyro CSV recordings ("x,y,z,timestampNs" per line).
+ *
+ * <p>Bytes are scanned directly from the channel buffer and numbers are parsed in place, without
+ * creating a String per line or field. Samples are appended to a {@link GyroSeries.Builder}, so
+ * the file is read once.
+ * Values that cannot be represented exactly by the fast path (more than 18 significant digits,
+ * large exponents, NaN) fall back to {@link Double#parseDouble}.
+ */
+public final class GyroCsvParser {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_MANTISSA_DIGITS = 18;
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final char SEPARATOR = ',';
+
+    /** Powers of ten that are exactly representable as doubles. */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final byte[] mBytes = new byte[BUFFER_SIZE];
+    private final ByteBuffer mBuffer = ByteBuffer.wrap(mBytes);
+
+    /** Bytes of the line being parsed and position of its next unparsed byte. */
+    private byte[] mLine;
+    private int mCursor;
+    private int mLineNumber;
+
+    /** Fields of the last parsed record. */
+    private float mRecordX;
+    private float mRecordY;
+    private float mRecordZ;
+    private long mRecordTimestampNs;
+
+    private GyroSeries.Builder mSeries;
+
+    public static GyroSeries parse(File file) throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            return new GyroCsvParser().parse(channel);
+        }
+    }
+
+    /** Parses the channel until end of stream. The parser can be reused for several channels. */
+    public GyroSeries parse(ReadableByteChannel channel) throws IOException {
+        mSeries = new GyroSeries.Builder();
+        mLineNumber = 0;
+        mBuffer.clear();
+
+        boolean endOfStream = false;
+        while (!endOfStream) {
+            endOfStream = channel.read(mBuffer) < 0;
+            int limit = mBuffer.position();
+            int lineStart = 0;
+            for (int i = 0; i < limit; i++) {
+                if (mBytes[i] == '\n') {
+                    parseLine(lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            if (endOfStream) {
+                if (lineStart < limit) {
+                    parseLine(lineStart, limit);
+                }
+            } else {
+                if (lineStart == 0 && limit == mBytes.length) {
+                    throw new IOException("Line " + (mLineNumber + 1) + " is too long");
+                }
+                // Carry the incomplete line over to the next read.
+                System.arraycopy(mBytes, lineStart, mBytes, 0, limit - lineStart);
+                mBuffer.position(limit - lineStart);
+            }
+        }
+        GyroSeries series = mSeries.build();
+        mSeries = null;
+        return series;
+    }
+
+    private void parseLine(int start, int end) throws IOException {
+        mLineNumber++;
+        if (!parseRecord(mBytes, start, end)) {
+            return;
+        }
+        mSeries.add(mRecordX, mRecordY, mRecordZ, mRecordTimestampNs);
+    }
+
+    /**
+     * Parses one line without its line break into the record fields.
+     *
+     * @return false if the line is blank.
+     */
+    boolean parseRecord(byte[] bytes, int start, int end) throws IOException {
+        while (end > start && isWhitespace(bytes[end - 1])) {
+            end--;
+        }
+        if (end == start) {
+            return false;
+        }
+        mLine = bytes;
+        mCursor = start;
+        mRecordX = (float) parseDouble(end);
+        mRecordY = (float) parseDouble(end);
+        mRecordZ = (float) parseDouble(end);
+        mRecordTimestampNs = parseLong(end);
+        if (mCursor <= end) {
+            throw new IOException("Line " + mLineNumber + " has more than 4 columns");
+        }
+        return true;
+    }
+
+    float recordX() {
+        return mRecordX;
+    }
+
+    float recordY() {
+        return mRecordY;
+    }
+
+    float recordZ() {
+        return mRecordZ;
+    }
+
+    long recordTimestampNs() {
+        return mRecordTimestampNs;
+    }
+
+    /** Sets the line number reported in parse errors. */
+    void setLineNumber(int lineNumber) {
+        mLineNumber = lineNumber;
+    }
+
+    /**
+     * Parses the field starting at the cursor and moves the cursor past its separator.
+     */
+    private double parseDouble(int end) throws IOException {
+        checkHasField(end);
+        final int fieldStart = mCursor;
+        int i = fieldStart;
+        boolean negative = false;
+        if (i < end && (mLine[i] == '-' || mLine[i] == '+')) {
+            negative = mLine[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean exact = true;
+        boolean anyDigits = false;
+        for (; i < end && isDigit(mLine[i]); i++) {
+            anyDigits = true;
+            if (digits < MAX_MANTISSA_DIGITS) {
+                mantissa = mantissa * 10 + (mLine[i] - '0');
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+                exact &= mLine[i] == '0';
+            }
+        }
+        if (i < end && mLine[i] == '.') {
+            for (i++; i < end && isDigit(mLine[i]); i++) {
+                anyDigits = true;
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (mLine[i] - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    exponent--;
+                } else {
+                    exact &= mLine[i] == '0';
+                }
+            }
+        }
+        if (anyDigits && i < end && (mLine[i] == 'e' || mLine[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (mLine[i] == '-' || mLine[i] == '+')) {
+                negativeExponent = mLine[i] == '-';
+                i++;
+            }
+            int explicitExponent = 0;
+            boolean anyExponentDigits = false;
+            for (; i < end && isDigit(mLine[i]); i++) {
+                anyExponentDigits = true;
+                if (explicitExponent < 10_000) {
+                    explicitExponent = explicitExponent * 10 + (mLine[i] - '0');
+                }
+            }
+            anyDigits = anyExponentDigits;
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+
+        int fieldEnd = i;
+        if (!anyDigits || (fieldEnd < end && mLine[fieldEnd] != SEPARATOR)) {
+            // Not a plain decimal (NaN, Infinity, hex...), leave it to the platform parser.
+            fieldEnd = findSeparator(fieldStart, end);
+            mCursor = fieldEnd + 1;
+            return parseFallback(fieldStart, fieldEnd);
+        }
+        mCursor = fieldEnd + 1;
+        if (exact && mantissa < MAX_EXACT_MANTISSA && Math.abs(exponent) < POWERS_OF_TEN.length) {
+            // Both operands are exact, so a single multiplication or division rounds correctly.
+            double value = exponent >= 0
+                    ? mantissa * POWERS_OF_TEN[exponent]
+                    : mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        return parseFallback(fieldStart, fieldEnd);
+    }
+
+    private long parseLong(int end) throws IOException {
+        checkHasField(end);
+        final int fieldStart = mCursor;
+        int i = fieldStart;
+        boolean negative = false;
+        if (i < end && (mLine[i] == '-' || mLine[i] == '+')) {
+            negative = mLine[i] == '-';
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        for (; i < end && isDigit(mLine[i]); i++, digits++) {
+            value = value * 10 + (mLine[i] - '0');
+        }
+        if (digits == 0 || digits > MAX_MANTISSA_DIGITS
+                || (i < end && mLine[i] != SEPARATOR)) {
+            // Timestamp written in floating point notation.
+            int fieldEnd = findSeparator(fieldStart, end);
+            mCursor = fieldEnd + 1;
+            return (long) parseFallback(fieldStart, fieldEnd);
+        }
+        mCursor = i + 1;
+        return negative ? -value : value;
+    }
+
+    private double parseFallback(int start, int end) throws IOException {
+        String field = new String(mLine, start, end - start, ASCII).trim();
+        try {
+            return Double.parseDouble(field);
+        } catch (NumberFormatException e) {
+            throw new IOException("Line " + mLineNumber + ": malformed number '" + field + "'");
+        }
+    }
+
+    private void checkHasField(int end) throws IOException {
+        if (mCursor > end) {
+            throw new IOException("Line " + mLineNumber + " has less than 4 columns");
+        }
+    }
+
+    private int findSeparator(int start, int end) {
+        int i = start;
+        while (i < end && mLine[i] != SEPARATOR) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == '\r' || b == ' ' || b == '\t';
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.util.Arrays;
+
+/**
+ * Single-producer ring buffer of gyroscope samples backed by preallocated primitive arrays.
+ *
+ * <p>Only the sensor thread calls {@link #add}, which never allocates. Any thread may take a
+ * {@link #snapshot()}; samples overwritten by the producer while the snapshot is being copied are
+ * dropped from it.
+ */
+public final class GyroRingBuffer {
+    /**
+     * Sensors treat the requested period as a hint and often deliver events faster,
+     * so capacity is reserved for this many times the nominal number of samples.
+     */
+    private static final int RATE_HEADROOM = 2;
+
+    private final int mCapacity;
+    private final float[] mX;
+    private final float[] mY;
+    private final float[] mZ;
+    private final long[] mTimestampsNs;
+
+    /** Total number of samples ever added, the next write goes to mWriteCount % mCapacity. */
+    private volatile long mWriteCount;
+
+    public GyroRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        mCapacity = capacity;
+        mX = new float[capacity];
+        mY = new float[capacity];
+        mZ = new float[capacity];
+        mTimestampsNs = new long[capacity];
+    }
+
+    /**
+     * Capacity needed to hold a recording of the given duration at the given sensor period.
+     */
+    public static int capacityFor(int samplePeriodUs, long durationMillis) {
+        long samples = durationMillis * 1000 / samplePeriodUs;
+        return (int) Math.min(Integer.MAX_VALUE, samples * RATE_HEADROOM);
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /** Appends a sample, overwriting the oldest one when full. Producer thread only. */
+    public void add(float x, float y, float z, long timestampNs) {
+        long count = mWriteCount;
+        int index = (int) (count % mCapacity);
+        mX[index] = x;
+        mY[index] = y;
+        mZ[index] = z;
+        mTimestampsNs[index] = timestampNs;
+        // Volatile write publishes the sample to readers.
+        mWriteCount = count + 1;
+    }
+
+    /** Drops all samples. Must not race with {@link #add}. */
+    public void clear() {
+        mWriteCount = 0;
+    }
+
+    /** Number of samples currently held. */
+    public int size() {
+        return (int) Math.min(mWriteCount, mCapacity);
+    }
+
+    /** Copies the held samples, oldest first, into a new series. */
+    public GyroSeries snapshot() {
+        long end = mWriteCount;
+        return copyRange(Math.max(0, end - mCapacity), end);
+    }
+
+    /**
+     * Copies the held samples with timestamps in [fromNs, toNs], oldest first, into a new series.
+     * Samples must have been added in timestamp order.
+     */
+    public GyroSeries snapshot(long fromNs, long toNs) {
+        long end = mWriteCount;
+        long start = Math.max(0, end - mCapacity);
+        // toNs may be Long.MAX_VALUE for all samples since fromNs.
+        long to = toNs == Long.MAX_VALUE ? end : lowerBound(start, end, toNs + 1);
+        return copyRange(lowerBound(start, end, fromNs), to);
+    }
+
+    /** Timestamp of the oldest held sample, or {@link Long#MAX_VALUE} if there are none. */
+    public long oldestTimestampNs() {
+        long end = mWriteCount;
+        if (end == 0) {
+            return Long.MAX_VALUE;
+        }
+        return mTimestampsNs[(int) (Math.max(0, end - mCapacity) % mCapacity)];
+    }
+
+    /** First logical position in [start, end) whose timestamp is not less than timestampNs. */
+    private long lowerBound(long start, long end, long timestampNs) {
+        while (start < end) {
+            long middle = (start + end) >>> 1;
+            if (mTimestampsNs[(int) (middle % mCapacity)] < timestampNs) {
+                start = middle + 1;
+            } else {
+                end = middle;
+            }
+        }
+        return start;
+    }
+
+    /** Copies logical positions [start, end), both counted in samples ever added. */
+    private GyroSeries copyRange(long start, long end) {
+        int size = (int) (end - start);
+        float[] x = new float[size];
+        float[] y = new float[size];
+        float[] z = new float[size];
+        long[] timestampsNs = new long[size];
+
+        int first = (int) (start % mCapacity);
+        int firstPart = Math.min(size, mCapacity - first);
+        copy(first, 0, firstPart, x, y, z, timestampsNs);
+        copy(0, firstPart, size - firstPart, x, y, z, timestampsNs);
+
+        // Samples the producer overwrote (or may be overwriting right now, before publishing the
+        // new count) during the copy are no longer consistent.
+        long overwritten = Math.max(0, mWriteCount + 1 - mCapacity - start);
+        if (overwritten == 0) {
+            return new GyroSeries(x, y, z, timestampsNs, size);
+        }
+        int skip = (int) Math.min(size, overwritten);
+        return new GyroSeries(
+                Arrays.copyOfRange(x, skip, size), Arrays.copyOfRange(y, skip, size),
+                Arrays.copyOfRange(z, skip, size), Arrays.copyOfRange(timestampsNs, skip, size),
+                size - skip
+        );
+    }
+
+    private void copy(
+            int from, int to, int length, float[] x, float[] y, float[] z, long[] timestampsNs) {
+        System.arraycopy(mX, from, x, to, length);
+        System.arraycopy(mY, from, y, to, length);
+        System.arraycopy(mZ, from, z, to, length);
+        System.arraycopy(mTimestampsNs, from, timestampsNs, to, length);
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.util.Arrays;
+
+/**
+ * Columnar gyroscope series: angular velocities around x, y, z and sensor timestamps
+ * (SystemClock.elapsedRealtimeNanos() domain of the recording device).
+ *
+ * <p>Samples are stored as a struct of arrays. A series may cover only a part of its arrays,
+ * which lets {@link #slice} share them with the original series instead of copying.
+ * Series are immutable once built.
+ */
+public final class GyroSeries implements GyroView {
+    private static final float[] EMPTY_FLOATS = new float[0];
+    private static final long[] EMPTY_LONGS = new long[0];
+
+    /** Series without samples. */
+    public static final GyroSeries EMPTY =
+            new GyroSeries(EMPTY_FLOATS, EMPTY_FLOATS, EMPTY_FLOATS, EMPTY_LONGS, 0);
+
+    /** Resamples by linear interpolation of each axis between neighbouring samples. */
+    public static final Resampler LINEAR_RESAMPLER = new LinearResampler();
+
+    private final float[] mX;
+    private final float[] mY;
+    private final float[] mZ;
+    private final long[] mTimestampsNs;
+    private final int mOffset;
+    private final int mSize;
+
+    /**
+     * Wraps the first size elements of the arrays, which must not be modified afterwards.
+     */
+    public GyroSeries(float[] x, float[] y, float[] z, long[] timestampsNs, int size) {
+        this(x, y, z, timestampsNs, 0, size);
+    }
+
+    private GyroSeries(
+            float[] x, float[] y, float[] z, long[] timestampsNs, int offset, int size) {
+        int end = offset + size;
+        if (x.length < end || y.length < end || z.length < end || timestampsNs.length < end) {
+            throw new IllegalArgumentException("Series arrays are shorter than size " + size);
+        }
+        mX = x;
+        mY = y;
+        mZ = z;
+        mTimestampsNs = timestampsNs;
+        mOffset = offset;
+        mSize = size;
+    }
+
+    /** Copies any view into a new series. */
+    public static GyroSeries copyOf(GyroView view) {
+        if (view instanceof GyroSeries) {
+            return (GyroSeries) view;
+        }
+        Builder builder = new Builder(view.size());
+        for (int i = 0; i < view.size(); i++) {
+            builder.add(view.x(i), view.y(i), view.z(i), view.timestampNs(i));
+        }
+        return builder.build();
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public float x(int index) {
+        return mX[mOffset + index];
+    }
+
+    @Override
+    public float y(int index) {
+        return mY[mOffset + index];
+    }
+
+    @Override
+    public float z(int index) {
+        return mZ[mOffset + index];
+    }
+
+    @Override
+    public long timestampNs(int index) {
+        return mTimestampsNs[mOffset + index];
+    }
+
+    public long firstTimestampNs() {
+        return timestampNs(0);
+    }
+
+    public long lastTimestampNs() {
+        return timestampNs(mSize - 1);
+    }
+
+    /**
+     * Samples with timestamps in [fromNs, toNs], sharing storage with this series.
+     * Timestamps must be sorted.
+     */
+    public GyroSeries slice(long fromNs, long toNs) {
+        int from = lowerBound(fromNs);
+        int to = Math.max(from, toNs == Long.MAX_VALUE ? mSize : lowerBound(toNs + 1));
+        return new GyroSeries(mX, mY, mZ, mTimestampsNs, mOffset + from, to - from);
+    }
+
+    /** Index of the first sample whose timestamp is not less than timestampNs. */
+    public int lowerBound(long timestampNs) {
+        int start = 0;
+        int end = mSize;
+        while (start < end) {
+            int middle = (start + end) >>> 1;
+            if (mTimestampsNs[mOffset + middle] < timestampNs) {
+                start = middle + 1;
+            } else {
+                end = middle;
+            }
+        }
+        return start;
+    }
+
+    /** Resamples the series to a uniform grid with the given period. */
+    public GyroSeries resample(Resampler resampler, long periodNs) {
+        return resampler.resample(this, periodNs);
+    }
+
+    /**
+     * Row-wise copy of angular velocities, the layout expected by {@code TimeSync}.
+     */
+    public double[][] toRows() {
+        return toRows(this);
+    }
+
+    /** Timestamps converted to seconds, the layout expected by {@code TimeSync}. */
+    public double[] timesSeconds() {
+        return timesSeconds(this);
+    }
+
+    /**
+     * Angular velocities as one column-major array: all x values, then all y values, then all z
+     * values. This is the storage layout of the native N x 3 matrix, see {@code TimeSync}.
+     */
+    public double[] toColumns() {
+        return toColumns(this);
+    }
+
+    /**
+     * Row-wise copy of angular velocities of any view.
+     */
+    public static double[][] toRows(GyroView view) {
+        int size = view.size();
+        double[][] rows = new double[size][3];
+        for (int i = 0; i < size; i++) {
+            rows[i][0] = view.x(i);
+            rows[i][1] = view.y(i);
+            rows[i][2] = view.z(i);
+        }
+        return rows;
+    }
+
+    /** Column-major copy of angular velocities of any view, see {@link #toColumns()}. */
+    public static double[] toColumns(GyroView view) {
+        int size = view.size();
+        double[] columns = new double[3 * size];
+        for (int i = 0; i < size; i++) {
+            columns[i] = view.x(i);
+            columns[size + i] = view.y(i);
+            columns[2 * size + i] = view.z(i);
+        }
+        return columns;
+    }
+
+    /** Timestamps of any view converted to seconds. */
+    public static double[] timesSeconds(GyroView view) {
+        int size = view.size();
+        double[] times = new double[size];
+        for (int i = 0; i < size; i++) {
+            times[i] = view.timestampNs(i) / 1e9;
+        }
+        return times;
+    }
+
+    /** Strategy used by {@link #resample} to put samples on a uniform time grid. */
+    public interface Resampler {
+        GyroSeries resample(GyroSeries series, long periodNs);
+    }
+
+    private static final class LinearResampler implements Resampler {
+        @Override
+        public GyroSeries resample(GyroSeries series, long periodNs) {
+            if (periodNs <= 0) {
+                throw new IllegalArgumentException("Period must be positive: " + periodNs);
+            }
+            if (series.size() < 2) {
+                return series;
+            }
+            long startNs = series.firstTimestampNs();
+            int size = (int) ((series.lastTimestampNs() - startNs) / periodNs) + 1;
+            Builder builder = new Builder(size);
+            int right = 1;
+            for (int i = 0; i < size; i++) {
+                long timestampNs = startNs + i * periodNs;
+                while (series.timestampNs(right) < timestampNs) {
+                    right++;
+                }
+                int left = right - 1;
+                long leftNs = series.timestampNs(left);
+                long spanNs = series.timestampNs(right) - leftNs;
+                float weight = spanNs == 0 ? 0 : (float) (timestampNs - leftNs) / spanNs;
+                builder.add(
+                        lerp(series.x(left), series.x(right), weight),
+                        lerp(series.y(left), series.y(right), weight),
+                        lerp(series.z(left), series.z(right), weight),
+                        timestampNs
+                );
+            }
+            return builder.build();
+        }
+
+        private static float lerp(float left, float right, float weight) {
+            return left + (right - left) * weight;
+        }
+    }
+
+    /**
+     * Appends samples into growing column arrays. The samples added so far can be read through
+     * the {@link GyroView} methods. Not thread-safe.
+     */
+    public static final class Builder implements GyroView {
+        private static final int DEFAULT_CAPACITY = 1024;
+
+        private float[] mX;
+        private float[] mY;
+        private float[] mZ;
+        private long[] mTimestampsNs;
+        private int mSize;
+
+        public Builder() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        public Builder(int initialCapacity) {
+            int capacity = Math.max(1, initialCapacity);
+            mX = new float[capacity];
+            mY = new float[capacity];
+            mZ = new float[capacity];
+            mTimestampsNs = new long[capacity];
+        }
+
+        public Builder add(float x, float y, float z, long timestampNs) {
+            if (mSize == mX.length) {
+                grow();
+            }
+            mX[mSize] = x;
+            mY[mSize] = y;
+            mZ[mSize] = z;
+            mTimestampsNs[mSize] = timestampNs;
+            mSize++;
+            return this;
+        }
+
+        public Builder addAll(GyroView view) {
+            for (int i = 0; i < view.size(); i++) {
+                add(view.x(i), view.y(i), view.z(i), view.timestampNs(i));
+            }
+            return this;
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public float x(int index) {
+            return mX[index];
+        }
+
+        @Override
+        public float y(int index) {
+            return mY[index];
+        }
+
+        @Override
+        public float z(int index) {
+            return mZ[index];
+        }
+
+        @Override
+        public long timestampNs(int index) {
+            return mTimestampsNs[index];
+        }
+
+        /**
+         * Returns a series of the samples added so far. The builder must not be used afterwards,
+         * since the series shares its arrays.
+         */
+        public GyroSeries build() {
+            GyroSeries series = new GyroSeries(mX, mY, mZ, mTimestampsNs, mSize);
+            mX = null;
+            mY = null;
+            mZ = null;
+            mTimestampsNs = null;
+            return series;
+        }
+
+        private void grow() {
+            int capacity = mX.length * 2;
+            mX = Arrays.copyOf(mX, capacity);
+            mY = Arrays.copyOf(mY, capacity);
+            mZ = Arrays.copyOf(mZ, capacity);
+            mTimestampsNs = Arrays.copyOf(mTimestampsNs, capacity);
+        }
+    }
+}
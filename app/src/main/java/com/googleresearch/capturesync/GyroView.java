@@ -0,0 +1,35 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+/**
+ * Read-only columnar access to gyroscope samples, regardless of where they are stored
+ * (in-memory arrays or a memory-mapped recording).
+ */
+public interface GyroView {
+    int size();
+
+    /** Angular velocity around x of the sample at the given index. */
+    float x(int index);
+
+    float y(int index);
+
+    float z(int index);
+
+    /** Sensor timestamp in nanoseconds, SystemClock.elapsedRealtimeNanos() domain. */
+    long timestampNs(int index);
+}
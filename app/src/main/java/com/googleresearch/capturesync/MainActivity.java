@@ -57,21 +57,18 @@ import android.widget.SeekBar.OnSeekBarChangeListener;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.googleresearch.capturesync.softwaresync.ClientInfo;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncClient;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncLeader;
 import com.googleresearch.capturesync.softwaresync.TimeUtils;
 import com.googleresearch.capturesync.softwaresync.phasealign.PhaseConfig;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetAddress;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -351,11 +348,12 @@ public class MainActivity extends Activity {
                     "Trigger button, sending timestamp %,d at %,d",
                     futureTimestamp, currentTimestamp));
 
-            // Broadcast desired synchronized capture time to all devices.
+            // Broadcast desired synchronized capture time to all devices, each client acks once
+            // it has armed the trigger.
             ((SoftwareSyncLeader) softwareSyncController.softwareSync)
-                .broadcastRpc(
+                .broadcastReliableRpc(
                     SoftwareSyncController.METHOD_SET_TRIGGER_TIME,
-                    String.valueOf(futureTimestamp));
+                    writer -> writer.putLong(futureTimestamp));
           });
 
       phaseAlignButton.setOnClickListener(
@@ -370,12 +368,18 @@ public class MainActivity extends Activity {
             view -> {
               Log.d(TAG, "Starting time sync");
               SoftwareSyncLeader leader = ((SoftwareSyncLeader) softwareSyncController.softwareSync);
+              // All clients record one shared window.
+              leader.newSyncRequestForAllClients(/*retroactive=*/ false);
+            });
 
-              for (Map.Entry<InetAddress, ClientInfo> entry : leader.getClients().entrySet()) {
-                ClientInfo client = entry.getValue();
-                // Submit client sync request
-                leader.newSyncRequestForClient(client.address());
-              }
+      // Long press resyncs on the samples of the last recording period, for when the devices
+      // have already been shaken.
+      startSyncButton.setOnLongClickListener(
+            view -> {
+              Log.d(TAG, "Starting retroactive time sync");
+              SoftwareSyncLeader leader = ((SoftwareSyncLeader) softwareSyncController.softwareSync);
+              leader.newSyncRequestForAllClients(/*retroactive=*/ true);
+              return true;
             });
 
       exposureSeekBar.setOnSeekBarChangeListener(
@@ -667,11 +671,13 @@ public class MainActivity extends Activity {
     send2aHandler.postDelayed(
         () -> {
           Log.d(TAG, "Broadcasting current 2A values.");
-          String payload =
-              String.format("%d,%d", currentSensorExposureTimeNs, currentSensorSensitivity);
+          final long exposureTimeNs = currentSensorExposureTimeNs;
+          final int sensitivity = currentSensorSensitivity;
           // Send 2A values to all devices
           ((SoftwareSyncLeader) softwareSyncController.softwareSync)
-              .broadcastRpc(SoftwareSyncController.METHOD_SET_2A, payload);
+              .broadcastRpc(
+                  SoftwareSyncController.METHOD_SET_2A,
+                  writer -> writer.putLong(exposureTimeNs).putInt(sensitivity));
         },
         500);
   }
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Gyro recording memory-mapped with {@link FileChannel#map}, samples are read from the mapped
+ * region on access instead of being loaded into arrays.
+ *
+ * <p>Binary recordings are accessed directly by record offset. CSV recordings are indexed once by
+ * line start offsets and a line is parsed when one of its columns is accessed; the last parsed
+ * line is cached, so reading x, y, z and timestamp of the same sample parses it once.
+ *
+ * <p>Not thread-safe, each thread should {@link #open} its own log.
+ */
+public abstract class MappedGyroLog implements GyroView {
+    /** Gyro lines are short, longer lines are most likely not a gyro recording. */
+    private static final int MAX_CSV_LINE_LENGTH = 1024;
+
+    protected final MappedByteBuffer mBuffer;
+
+    private MappedGyroLog(MappedByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Maps the file read-only, the format is detected by the binary magic number.
+     * The mapping stays valid after the file channel is closed.
+     */
+    public static MappedGyroLog open(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Gyro recording is too large to be mapped: " + size);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (GyroBinaryFormat.hasMagic(buffer)) {
+            return new Binary(buffer);
+        }
+        return new Csv(buffer);
+    }
+
+    /** Copies the samples into a {@link GyroSeries}. */
+    public GyroSeries toSeries() {
+        return GyroSeries.copyOf(this);
+    }
+
+    private static final class Binary extends MappedGyroLog {
+        private final GyroBinaryFormat.Header mHeader;
+        private final int mRecordsOffset;
+        private final int mSize;
+
+        Binary(MappedByteBuffer buffer) throws IOException {
+            super(buffer);
+            mHeader = GyroBinaryFormat.readHeader(buffer);
+            if (mHeader.codec() != GyroCodec.RAW) {
+                throw new IOException("Encoded gyro streams cannot be memory-mapped");
+            }
+            mRecordsOffset = buffer.position();
+            int recordBytes = buffer.limit() - mRecordsOffset;
+            if (recordBytes % GyroBinaryFormat.RECORD_SIZE != 0) {
+                throw new IOException("Binary gyro recording ends with a partial record");
+            }
+            mSize = recordBytes / GyroBinaryFormat.RECORD_SIZE;
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public float x(int index) {
+            return mBuffer.getFloat(recordOffset(index));
+        }
+
+        @Override
+        public float y(int index) {
+            return mBuffer.getFloat(recordOffset(index) + Float.SIZE / Byte.SIZE);
+        }
+
+        @Override
+        public float z(int index) {
+            return mBuffer.getFloat(recordOffset(index) + 2 * Float.SIZE / Byte.SIZE);
+        }
+
+        @Override
+        public long timestampNs(int index) {
+            return mBuffer.getLong(recordOffset(index) + 3 * Float.SIZE / Byte.SIZE);
+        }
+
+        private int recordOffset(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Sample " + index + " of " + mSize);
+            }
+            return mRecordsOffset + index * GyroBinaryFormat.RECORD_SIZE;
+        }
+    }
+
+    private static final class Csv extends MappedGyroLog {
+        private final GyroCsvParser mParser = new GyroCsvParser();
+        private final byte[] mLine = new byte[MAX_CSV_LINE_LENGTH];
+        /** Reads lines in bulk without moving the position of the shared buffer. */
+        private final ByteBuffer mReader;
+        /** Offsets and line numbers of non-blank lines, blank lines hold no sample. */
+        private int[] mLineStarts;
+        private int[] mLineEnds;
+        private int[] mLineNumbers;
+        private int mSize;
+        private int mParsedIndex = -1;
+
+        Csv(MappedByteBuffer buffer) throws IOException {
+            super(buffer);
+            mReader = buffer.duplicate();
+            indexLines();
+            // Fail on open rather than on access for an obviously malformed file.
+            if (mSize > 0) {
+                parse(0);
+            }
+        }
+
+        private void indexLines() throws IOException {
+            int capacity = 1024;
+            mLineStarts = new int[capacity];
+            mLineEnds = new int[capacity];
+            mLineNumbers = new int[capacity];
+            int limit = mBuffer.limit();
+            int lineStart = 0;
+            int lineNumber = 0;
+            for (int i = 0; i <= limit; i++) {
+                if (i < limit && mBuffer.get(i) != '\n') {
+                    continue;
+                }
+                lineNumber++;
+                if (i - lineStart > MAX_CSV_LINE_LENGTH) {
+                    throw new IOException("Line " + lineNumber + " is too long");
+                }
+                if (!isBlank(lineStart, i)) {
+                    if (mSize == capacity) {
+                        capacity *= 2;
+                        mLineStarts = Arrays.copyOf(mLineStarts, capacity);
+                        mLineEnds = Arrays.copyOf(mLineEnds, capacity);
+                        mLineNumbers = Arrays.copyOf(mLineNumbers, capacity);
+                    }
+                    mLineStarts[mSize] = lineStart;
+                    mLineEnds[mSize] = i;
+                    mLineNumbers[mSize] = lineNumber;
+                    mSize++;
+                }
+                lineStart = i + 1;
+            }
+        }
+
+        private boolean isBlank(int start, int end) {
+            for (int i = start; i < end; i++) {
+                byte b = mBuffer.get(i);
+                if (b != ' ' && b != '\t' && b != '\r') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public float x(int index) {
+            parse(index);
+            return mParser.recordX();
+        }
+
+        @Override
+        public float y(int index) {
+            parse(index);
+            return mParser.recordY();
+        }
+
+        @Override
+        public float z(int index) {
+            parse(index);
+            return mParser.recordZ();
+        }
+
+        @Override
+        public long timestampNs(int index) {
+            parse(index);
+            return mParser.recordTimestampNs();
+        }
+
+        private void parse(int index) {
+            if (index == mParsedIndex) {
+                return;
+            }
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("Sample " + index + " of " + mSize);
+            }
+            int start = mLineStarts[index];
+            int length = mLineEnds[index] - start;
+            mReader.position(start);
+            mReader.get(mLine, 0, length);
+            mParser.setLineNumber(mLineNumbers[index]);
+            try {
+                mParser.parseRecord(mLine, 0, length);
+            } catch (IOException e) {
+                // Views cannot throw checked exceptions.
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            mParsedIndex = index;
+        }
+    }
+}
@@ -23,30 +23,57 @@ import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.util.Log;
 
+import com.googleresearch.capturesync.softwaresync.SyncConstants;
+
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 
 
 /**
- * Handles gyroscope and accelerometer raw info recording
+ * Handles gyroscope and accelerometer raw info recording.
+ *
+ * <p>Samples are written in {@link GyroBinaryFormat} by default, CSV text is kept as an optional
+ * export mode (see {@link Constants#SAVE_GYRO_CSV}). Alternatively samples can be captured in
+ * memory only ({@link #startCapture()}), which skips storage altogether.
  */
 public class RawSensorInfo implements SensorEventListener {
     private static final String TAG = "RawSensorInfo";
     private static final String SENSOR_TYPE_GYRO = "gyro";
     private static final String CSV_SEPARATOR = ",";
+    private static final String CSV_EXTENSION = ".csv";
+
+    /** In-memory capture capacity, enough for the longest sync recording. */
+    public static final int DEFAULT_CAPTURE_CAPACITY = GyroRingBuffer.capacityFor(
+            Constants.GYRO_PERIOD_US, SyncConstants.MAX_SENSOR_REC_PERIOD_MILLIS
+    );
 
     final private SensorManager mSensorManager;
     final private Sensor mSensor;
-    private PrintWriter mGyroBufferedWriter;
+    final private String mDeviceId;
+    private volatile PrintWriter mGyroBufferedWriter;
+    private volatile GyroBinaryFormat.Writer mGyroBinaryWriter;
     private String mLastGyroPath;
     private File mGyroFile;
+    private int mSamplePeriodUs;
+
+    private volatile boolean mIsRecording;
 
-    private boolean mIsRecording;
+    private final GyroRingBuffer mCaptureBuffer;
+    private volatile boolean mIsCapturing;
+    /** Set by {@link #startCapture()}, the sensor thread clears the buffer before its next add. */
+    private volatile boolean mCaptureResetPending;
 
-    public RawSensorInfo(Context context) {
+    public RawSensorInfo(Context context, String deviceId) {
+        this(context, deviceId, DEFAULT_CAPTURE_CAPACITY);
+    }
+
+    public RawSensorInfo(Context context, String deviceId, int captureCapacity) {
+        mDeviceId = deviceId;
+        mCaptureBuffer = new GyroRingBuffer(captureCapacity);
         mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
 
@@ -58,14 +85,41 @@ public class RawSensorInfo implements SensorEventListener {
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        if (mIsRecording && event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
+        if (event.sensor.getType() != Sensor.TYPE_GYROSCOPE) {
+            return;
+        }
+        if (mIsCapturing) {
+            if (mCaptureResetPending) {
+                // Only the sensor thread writes the buffer, so clearing here cannot race an add.
+                mCaptureResetPending = false;
+                mCaptureBuffer.clear();
+            }
+            mCaptureBuffer.add(
+                    event.values[0], event.values[1], event.values[2], event.timestamp
+            );
+        }
+        if (!mIsRecording) {
+            return;
+        }
+        // Writers are closed from another thread, so work with local references.
+        GyroBinaryFormat.Writer binaryWriter = mGyroBinaryWriter;
+        PrintWriter csvWriter = mGyroBufferedWriter;
+        if (binaryWriter != null) {
+            try {
+                binaryWriter.write(
+                        event.values[0], event.values[1], event.values[2], event.timestamp
+                );
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write gyro sample: " + e);
+            }
+        } else if (csvWriter != null) {
             for (int j = 0; j < 3; j++) {
-                mGyroBufferedWriter.write(
+                csvWriter.write(
                         event.values[j] + CSV_SEPARATOR
                 );
             }
-            mGyroBufferedWriter.write(String.valueOf(event.timestamp));
-            mGyroBufferedWriter.append("\n");
+            csvWriter.write(String.valueOf(event.timestamp));
+            csvWriter.append("\n");
         }
     }
 
@@ -76,7 +130,7 @@ public class RawSensorInfo implements SensorEventListener {
 
     /**
      * Handles sensor info file creation, uses StorageUtils to work both with SAF and standard file
-     * access. Saves files /{dirPath}/{sensor type}_timestamp.csv
+     * access. Saves files /{dirPath}/{sensor type}_timestamp.{bin|csv}
      */
     private File getRawSensorInfoFileWriter(
             Context context, String sensorType,
@@ -88,7 +142,7 @@ public class RawSensorInfo implements SensorEventListener {
         }
         cleanupDir(directory);
         File saveFile = new File(
-                directory, sensorType + "_" + timeStamp + ".csv"
+                directory, sensorType + "_" + timeStamp + getGyroFileExtension()
         );
         Log.d(TAG, "Save gyro file to: " + saveFile.getAbsolutePath());
         return saveFile;
@@ -104,15 +158,35 @@ public class RawSensorInfo implements SensorEventListener {
         return rawSensorInfoWriter;
     }
 
+    private GyroBinaryFormat.Writer setupRawSensorInfoBinaryWriter(File saveFile)
+            throws IOException {
+        GyroBinaryFormat.Writer writer = new GyroBinaryFormat.Writer(
+                new FileOutputStream(saveFile).getChannel()
+        );
+        writer.writeHeader(mSamplePeriodUs, mDeviceId);
+        return writer;
+    }
+
+    /**
+     * Extension of the gyro files produced by this device, depends on the recording format.
+     */
+    public static String getGyroFileExtension() {
+        return Constants.SAVE_GYRO_CSV ? CSV_EXTENSION : GyroBinaryFormat.FILE_EXTENSION;
+    }
+
     public void startRecording(
             Context context, String dirPath, String timeStamp
     ) {
         try {
             mGyroFile = getRawSensorInfoFileWriter(context, SENSOR_TYPE_GYRO, dirPath, timeStamp);
 
-            mGyroBufferedWriter = setupRawSensorInfoWriter(
-                    context, SENSOR_TYPE_GYRO, mGyroFile
-            );
+            if (Constants.SAVE_GYRO_CSV) {
+                mGyroBufferedWriter = setupRawSensorInfoWriter(
+                        context, SENSOR_TYPE_GYRO, mGyroFile
+                );
+            } else {
+                mGyroBinaryWriter = setupRawSensorInfoBinaryWriter(mGyroFile);
+            }
             mIsRecording = true;
         } catch (IOException e) {
             e.printStackTrace();
@@ -123,11 +197,84 @@ public class RawSensorInfo implements SensorEventListener {
     public void stopRecording() {
         mLastGyroPath = mGyroFile.getAbsolutePath();
         Log.d(TAG, "Close all files");
+        mIsRecording = false;
         if (mGyroBufferedWriter != null) {
             mGyroBufferedWriter.flush();
             mGyroBufferedWriter.close();
+            mGyroBufferedWriter = null;
         }
-        mIsRecording = false;
+        if (mGyroBinaryWriter != null) {
+            try {
+                mGyroBinaryWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to close gyro binary writer: " + e);
+            }
+            mGyroBinaryWriter = null;
+        }
+    }
+
+    /**
+     * Starts capturing gyro samples into the preallocated in-memory buffer,
+     * previously captured samples are dropped.
+     */
+    public void startCapture() {
+        mCaptureResetPending = true;
+        mIsCapturing = true;
+    }
+
+    public void stopCapture() {
+        mIsCapturing = false;
+    }
+
+    public boolean isCapturing() {
+        return mIsCapturing;
+    }
+
+    /**
+     * Returns samples captured since {@link #startCapture()}, without touching storage.
+     * When capture runs longer than the buffer capacity, only the latest samples are kept.
+     */
+    public GyroSeries getCapturedSeries() {
+        return mCaptureResetPending ? GyroSeries.EMPTY : mCaptureBuffer.snapshot();
+    }
+
+    /**
+     * Returns captured samples with timestamps in [fromNs, toNs]
+     * (SystemClock.elapsedRealtimeNanos() domain).
+     */
+    public GyroSeries getCapturedSeries(long fromNs, long toNs) {
+        return mCaptureResetPending ? GyroSeries.EMPTY : mCaptureBuffer.snapshot(fromNs, toNs);
+    }
+
+    /**
+     * Timestamp of the oldest sample still held in memory, {@link Long#MAX_VALUE} if none.
+     */
+    public long getOldestCapturedTimestampNs() {
+        return mCaptureResetPending ? Long.MAX_VALUE : mCaptureBuffer.oldestTimestampNs();
+    }
+
+    /**
+     * Saves the series to /{dirPath}/gyro_timestamp.{bin|csv} in the configured recording format.
+     */
+    public void exportSeries(
+            Context context, String dirPath, String timeStamp, GyroSeries series
+    ) throws IOException {
+        File file = getRawSensorInfoFileWriter(context, SENSOR_TYPE_GYRO, dirPath, timeStamp);
+        if (Constants.SAVE_GYRO_CSV) {
+            PrintWriter writer = setupRawSensorInfoWriter(context, SENSOR_TYPE_GYRO, file);
+            for (int i = 0; i < series.size(); i++) {
+                writer.write(
+                        series.x(i) + CSV_SEPARATOR + series.y(i) + CSV_SEPARATOR
+                                + series.z(i) + CSV_SEPARATOR + series.timestampNs(i) + "\n"
+                );
+            }
+            writer.close();
+        } else {
+            try (GyroBinaryFormat.Writer writer = setupRawSensorInfoBinaryWriter(file)) {
+                writer.write(series);
+            }
+        }
+        mLastGyroPath = file.getAbsolutePath();
     }
 
     public String getLastGyroPath() {
@@ -140,6 +287,7 @@ public class RawSensorInfo implements SensorEventListener {
 
     public void enableSensors(int gyroSampleRate) {
         Log.d(TAG, "enableSensors");
+        mSamplePeriodUs = gyroSampleRate;
         if (mSensor != null) {
             mSensorManager.registerListener(this, mSensor, gyroSampleRate);
         }
@@ -1,44 +1,47 @@
 package com.googleresearch.capturesync;
 
-import android.util.Pair;
-
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.LineNumberReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class ReadFromFile {
-    private static int countOfRows(File currentFile)
+    /**
+     * Reads a gyro recording in either binary or CSV format,
+     * the format is detected by the binary magic number.
+     */
+    public static GyroSeries readGyroSeries(File currentFile)
             throws IOException {
-        int counter = 0;
-        LineNumberReader lineNumberReader = new LineNumberReader(new FileReader(currentFile));
-        while (lineNumberReader.readLine() != null);
-        counter = lineNumberReader.getLineNumber();
-        return counter;
+        try (FileChannel channel = new FileInputStream(currentFile).getChannel()) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.SIZE / Byte.SIZE);
+            channel.read(magic);
+            magic.flip();
+            channel.position(0);
+            if (GyroBinaryFormat.hasMagic(magic)) {
+                return GyroBinaryFormat.readSeries(channel);
+            }
+            return new GyroCsvParser().parse(channel);
+        }
     }
 
-    public static Pair<double[][], double[]> readFromCSV(File currentFile)
-            throws IOException {
-        InputStream inputStream = new FileInputStream(currentFile);
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-        int countOfRows = countOfRows(currentFile);
-        double[][] coordinatesArray = new double[countOfRows][3];
-        double[] timeArray = new double[countOfRows];
-        int index = 0;
-
-        while(bufferedReader.ready()) {
-            String[] line = bufferedReader.readLine().split(",");
-            double[] tempCoordinatesArray = { Double.parseDouble(line[0]), Double.parseDouble(line[1]), Double.parseDouble(line[2])};
-            coordinatesArray[index] = tempCoordinatesArray;
-            timeArray[index] = Double.parseDouble(line[3]) / 1e9;
+    /**
+     * Memory-maps a gyro recording in either binary or CSV format, samples are read from
+     * the file on access. Preferred for long recordings.
+     */
+    public static MappedGyroLog mapGyroFile(File currentFile) throws IOException {
+        return MappedGyroLog.open(currentFile);
+    }
 
-            index++;
+    public static GyroSeries readFromBinary(File currentFile)
+            throws IOException {
+        try (FileChannel channel = new FileInputStream(currentFile).getChannel()) {
+            return GyroBinaryFormat.readSeries(channel);
         }
+    }
 
-        return new Pair<>(coordinatesArray, timeArray);
+    public static GyroSeries readFromCSV(File currentFile)
+            throws IOException {
+        return GyroCsvParser.parse(currentFile);
     }
 }
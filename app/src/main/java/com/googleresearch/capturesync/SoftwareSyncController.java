@@ -23,8 +23,12 @@ import android.provider.Settings.Secure;
 import android.util.Log;
 import android.widget.TextView;
 import com.googleresearch.capturesync.softwaresync.ClientInfo;
+import com.googleresearch.capturesync.softwaresync.ClientRegistry;
 import com.googleresearch.capturesync.softwaresync.NetworkHelpers;
 import com.googleresearch.capturesync.softwaresync.RpcCallback;
+import com.googleresearch.capturesync.softwaresync.RpcDispatcher;
+import com.googleresearch.capturesync.softwaresync.RpcDispatcher.Lane;
+import com.googleresearch.capturesync.softwaresync.TypedRpcCallback;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncBase;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncClient;
 import com.googleresearch.capturesync.softwaresync.SoftwareSyncLeader;
@@ -39,7 +43,6 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 
 // Note : Needs Network permissions.
 
@@ -125,15 +128,19 @@ public class SoftwareSyncController implements Closeable {
       }
     }
 
-    // Set up shared rpcs.
+    // Set up shared rpcs. Trigger time and 2A values are sent as typed fields. The trigger time
+    // is only recorded, so it is handled inline on arrival instead of waiting behind other rpcs.
     Map<Integer, RpcCallback> sharedRpcs = new HashMap<>();
-    sharedRpcs.put(
+    Map<Integer, TypedRpcCallback> sharedTypedRpcs = new HashMap<>();
+    sharedTypedRpcs.put(
         METHOD_SET_TRIGGER_TIME,
-        payload -> {
-          Log.v(TAG, "Setting next trigger to" + payload);
-          upcomingTriggerTimeNs = Long.valueOf(payload);
-          context.setUpcomingCaptureStill(upcomingTriggerTimeNs);
-        });
+        RpcDispatcher.onLane(
+            Lane.INLINE,
+            message -> {
+              upcomingTriggerTimeNs = message.readLong();
+              Log.v(TAG, "Setting next trigger to" + upcomingTriggerTimeNs);
+              context.setUpcomingCaptureStill(upcomingTriggerTimeNs);
+            }));
 
     sharedRpcs.put(
         METHOD_DO_PHASE_ALIGN,
@@ -145,19 +152,17 @@ public class SoftwareSyncController implements Closeable {
           phaseAlignController.startAlign();
         });
 
-    sharedRpcs.put(
+    // Restarts the preview, which is slow, on a lane of its own.
+    sharedTypedRpcs.put(
         METHOD_SET_2A,
-        payload -> {
-          Log.v(TAG, "Received payload: " + payload);
-
-          String[] segments = payload.split(",");
-          if (segments.length != 2) {
-            throw new IllegalArgumentException("Wrong number of segments in payload: " + payload);
-          }
-          long sensorExposureNs = Long.parseLong(segments[0]);
-          int sensorSensitivity = Integer.parseInt(segments[1]);
-          context.set2aAndUpdatePreview(sensorExposureNs, sensorSensitivity);
-        });
+        RpcDispatcher.onLane(
+            Lane.SERIAL,
+            message -> {
+              long sensorExposureNs = message.readLong();
+              int sensorSensitivity = message.readInt();
+              Log.v(TAG, "Received 2A: " + sensorExposureNs + ", " + sensorSensitivity);
+              context.set2aAndUpdatePreview(sensorExposureNs, sensorSensitivity);
+            }));
 
     if (isLeader) {
       // Leader.
@@ -171,7 +176,20 @@ public class SoftwareSyncController implements Closeable {
       leaderRpcs.put(SyncConstants.METHOD_MSG_REMOVED_CLIENT, payload -> updateClientsUI());
       leaderRpcs.put(SyncConstants.METHOD_MSG_SYNCING, payload -> updateClientsUI());
       leaderRpcs.put(SyncConstants.METHOD_MSG_OFFSET_UPDATED, payload -> updateClientsUI());
-      softwareSync = new SoftwareSyncLeader(name, initTimeNs, localAddress, leaderRpcs, context);
+      Map<Integer, TypedRpcCallback> leaderTypedRpcs = new HashMap<>(sharedTypedRpcs);
+      // Once the capture is saved, pull it from all clients into one capture set.
+      TypedRpcCallback setTriggerTime = sharedTypedRpcs.get(METHOD_SET_TRIGGER_TIME);
+      leaderTypedRpcs.put(
+          METHOD_SET_TRIGGER_TIME,
+          RpcDispatcher.onLane(
+              Lane.INLINE,
+              message -> {
+                setTriggerTime.call(message);
+                ((SoftwareSyncLeader) softwareSync).collectCaptures(upcomingTriggerTimeNs);
+              }));
+      softwareSync =
+          new SoftwareSyncLeader(
+              name, initTimeNs, localAddress, leaderRpcs, leaderTypedRpcs, context);
     } else {
       // Client.
 
@@ -195,7 +213,9 @@ public class SoftwareSyncController implements Closeable {
                           String.format(
                               "Client %s\n-Synced to Leader %s",
                               softwareSync.getName(), softwareSync.getLeaderAddress()))));
-      softwareSync = new SoftwareSyncClient(name, localAddress, leaderAddress, clientRpcs, context);
+      softwareSync =
+          new SoftwareSyncClient(
+              name, localAddress, leaderAddress, clientRpcs, sharedTypedRpcs, context);
     }
 
     if (isLeader) {
@@ -220,14 +240,15 @@ public class SoftwareSyncController implements Closeable {
    */
   private void updateClientsUI() {
     SoftwareSyncLeader leader = ((SoftwareSyncLeader) softwareSync);
-    final int clientCount = leader.getClients().size();
+    // One snapshot, so the count and the listed clients agree.
+    final ClientRegistry.Snapshot clients = leader.getClientSnapshot();
     context.runOnUiThread(
         () -> {
           StringBuilder msg = new StringBuilder();
           msg.append(
-              String.format("Leader %s: %d clients.\n", softwareSync.getName(), clientCount));
-          for (Entry<InetAddress, ClientInfo> entry : leader.getClients().entrySet()) {
-            ClientInfo client = entry.getValue();
+              String.format("Leader %s: %d clients.\n", softwareSync.getName(), clients.size()));
+          for (int i = 0; i < clients.size(); i++) {
+            ClientInfo client = clients.get(i);
             msg.append(String.format("-Client %s: ready to sync\n", client.name()));
           }
           statusView.setText(msg.toString());
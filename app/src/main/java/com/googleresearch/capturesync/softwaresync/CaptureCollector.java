@@ -0,0 +1,403 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leader side of capture collection: pulls the capture of a trigger time from every client
+ * through their {@link CaptureFileServer} and assembles one capture set.
+ *
+ * <p>Clients are pulled in parallel, at most CAPTURE_MAX_STREAMS at a time, each over one
+ * connection that is kept open for the following captures: a stream of the data channel of the
+ * client, or a connection to its capture server when it has no data channel. The total rate is shaped by a token
+ * bucket shared by all connections. A dropped connection is reopened and interrupted files resume
+ * from their verified chunks, see {@link ChunkedFileTransfer}.
+ *
+ * <p>A capture set is the directory capture_sets/&lt;leaderTimestampNs&gt; under the root, keyed
+ * by the leader_sensor_timestamp_ns of the leader's sync_metadata file, or the earliest client
+ * one when the leader saved nothing. It holds one directory per device and capture_set.txt,
+ * which lists the synced timestamp of every device.
+ */
+public class CaptureCollector implements Closeable {
+    private static final String TAG = "CaptureCollector";
+    private static final String SETS_DIR = "capture_sets";
+    private static final String SYNC_METADATA_PREFIX = "sync_metadata_";
+    private static final String LEADER_TIMESTAMP_KEY = "leader_sensor_timestamp_ns:";
+    private static final int CONNECT_TIMEOUT_MILLIS = 3_000;
+
+    private final File mRoot;
+    private final String mLeaderName;
+    private final int mPort;
+    private final ChunkedFileTransfer mTransfer;
+    private final DataChannels mDataChannels;
+    /** Runs one collection at a time, so that a client connection is used by a single thread. */
+    private final ScheduledExecutorService mCollectExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService mStreamExecutor =
+            Executors.newFixedThreadPool(SyncConstants.CAPTURE_MAX_STREAMS);
+    private final Map<InetAddress, Connection> mConnections = new ConcurrentHashMap<>();
+
+    public CaptureCollector(File root, String leaderName, DataChannels dataChannels) {
+        this(root, leaderName, dataChannels, SyncConstants.CAPTURE_TRANSFER_PORT,
+                SyncConstants.CAPTURE_BANDWIDTH_BYTES_PER_SECOND);
+    }
+
+    CaptureCollector(
+            File root, String leaderName, DataChannels dataChannels, int port,
+            long bytesPerSecond) {
+        mRoot = root;
+        mLeaderName = leaderName;
+        mDataChannels = dataChannels;
+        mPort = port;
+        TokenBucket bucket = new TokenBucket(bytesPerSecond, bytesPerSecond / 10);
+        mTransfer = new ChunkedFileTransfer(
+                ChunkedFileTransfer.DEFAULT_CHUNK_SIZE,
+                ChunkedFileTransfer.DEFAULT_MAX_ATTEMPTS,
+                bucket.inputThrottle()
+        );
+    }
+
+    /**
+     * Collects the capture of the trigger time from the clients after delayMillis.
+     *
+     * @param clients client names by address, copied.
+     * @return future of the capture set directory.
+     */
+    public Future<File> collect(
+            long triggerTimeNs, Map<InetAddress, String> clients, long delayMillis) {
+        final Map<InetAddress, String> clientNames = new HashMap<>(clients);
+        return mCollectExecutor.schedule(
+                () -> doCollect(triggerTimeNs, clientNames), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private File doCollect(long triggerTimeNs, Map<InetAddress, String> clients)
+            throws IOException, InterruptedException {
+        String captureName = CaptureFileServer.captureDirName(triggerTimeNs);
+        File staging = new File(new File(mRoot, SETS_DIR), captureName + ".part");
+        if (!staging.isDirectory() && !staging.mkdirs()) {
+            throw new IOException("Could not create dir " + staging);
+        }
+        long startNs = System.nanoTime();
+
+        Map<String, Future<Long>> pulls = new LinkedHashMap<>();
+        for (Map.Entry<InetAddress, String> client : clients.entrySet()) {
+            File clientDir = new File(staging, new File(client.getValue()).getName());
+            pulls.put(client.getValue(), mStreamExecutor.submit(
+                    () -> pullClient(client.getKey(), triggerTimeNs, clientDir)));
+        }
+        long totalBytes = 0;
+        for (Map.Entry<String, Future<Long>> pull : pulls.entrySet()) {
+            try {
+                totalBytes += pull.getValue().get();
+            } catch (ExecutionException e) {
+                // Keep what the other clients captured.
+                Log.e(TAG, "Could not collect the capture of " + pull.getKey() + ": "
+                        + e.getCause());
+            }
+        }
+        File leaderCapture = new File(mRoot, captureName);
+        if (leaderCapture.isDirectory()) {
+            copyDirectory(leaderCapture, new File(staging, new File(mLeaderName).getName()));
+        }
+
+        File captureSet = assemble(staging, new File(mLeaderName).getName(), triggerTimeNs);
+        Log.d(TAG, String.format(
+                "Collected %d bytes from %d clients into %s in %d ms", totalBytes,
+                clients.size(), captureSet, (System.nanoTime() - startNs) / 1_000_000));
+        return captureSet;
+    }
+
+    /**
+     * Pulls all files of the capture of one client, reconnecting on failures.
+     *
+     * @return bytes pulled.
+     */
+    private long pullClient(InetAddress address, long triggerTimeNs, File directory)
+            throws IOException, InterruptedException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create dir " + directory);
+        }
+        IOException lastError = null;
+        for (int attempt = 0; attempt < SyncConstants.CAPTURE_CONNECT_ATTEMPTS; attempt++) {
+            try {
+                Connection connection = connection(address);
+                Map<String, Long> files = awaitStableListing(connection, triggerTimeNs);
+                long bytes = 0;
+                for (Map.Entry<String, Long> file : files.entrySet()) {
+                    if (!new File(file.getKey()).getName().equals(file.getKey())) {
+                        throw new IOException("Malformed capture file name " + file.getKey());
+                    }
+                    File local = new File(directory, file.getKey());
+                    if (!local.exists() || local.length() != file.getValue()) {
+                        connection.get(triggerTimeNs, file.getKey(), directory);
+                    }
+                    bytes += file.getValue();
+                }
+                return bytes;
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                lastError = e;
+                closeConnection(address);
+                Log.w(TAG, "Collection from " + address + " failed, retrying: " + e);
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Lists the capture until its sync metadata is present and two consecutive listings agree.
+     */
+    private static Map<String, Long> awaitStableListing(Connection connection, long triggerTimeNs)
+            throws IOException, InterruptedException {
+        Map<String, Long> previous = null;
+        for (int poll = 0; poll < SyncConstants.CAPTURE_LISTING_POLLS; poll++) {
+            if (poll > 0) {
+                Thread.sleep(SyncConstants.CAPTURE_LISTING_POLL_MILLIS);
+            }
+            Map<String, Long> listing = connection.list(triggerTimeNs);
+            if (listing.equals(previous) && hasSyncMetadata(listing.keySet())) {
+                return listing;
+            }
+            previous = listing;
+        }
+        throw new IOException("Capture was not complete after "
+                + SyncConstants.CAPTURE_LISTING_POLLS + " listings: " + previous);
+    }
+
+    private static boolean hasSyncMetadata(Iterable<String> names) {
+        for (String name : names) {
+            if (name.startsWith(SYNC_METADATA_PREFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes capture_set.txt and moves the staging directory to its key.
+     */
+    private static File assemble(File staging, String leaderDirName, long triggerTimeNs)
+            throws IOException {
+        Map<String, Long> timestamps = new LinkedHashMap<>();
+        File[] deviceDirs = staging.listFiles();
+        if (deviceDirs != null) {
+            for (File deviceDir : deviceDirs) {
+                Long timestampNs = readLeaderTimestampNs(deviceDir);
+                if (timestampNs != null) {
+                    timestamps.put(deviceDir.getName(), timestampNs);
+                }
+            }
+        }
+        Long keyNs = timestamps.get(leaderDirName);
+        if (keyNs == null) {
+            keyNs = timestamps.isEmpty() ? triggerTimeNs : Collections.min(timestamps.values());
+        }
+
+        try (PrintWriter writer = new PrintWriter(new File(staging, "capture_set.txt"), "UTF-8")) {
+            writer.printf("trigger_time_ns: %d\n", triggerTimeNs);
+            writer.printf("leader_sensor_timestamp_ns: %d\n", keyNs);
+            for (Map.Entry<String, Long> device : timestamps.entrySet()) {
+                writer.printf("%s: %d (%+d ns)\n",
+                        device.getKey(), device.getValue(), device.getValue() - keyNs);
+            }
+        }
+        File captureSet = new File(staging.getParentFile(), Long.toString(keyNs));
+        if (captureSet.exists() || !staging.renameTo(captureSet)) {
+            Log.w(TAG, "Could not move " + staging + " to " + captureSet);
+            return staging;
+        }
+        return captureSet;
+    }
+
+    /** Synced timestamp of the first sync_metadata file of the directory, if any. */
+    private static Long readLeaderTimestampNs(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return null;
+        }
+        for (File file : files) {
+            if (!file.getName().startsWith(SYNC_METADATA_PREFIX)) {
+                continue;
+            }
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(LEADER_TIMESTAMP_KEY)) {
+                        try {
+                            return Long.parseLong(
+                                    line.substring(LEADER_TIMESTAMP_KEY.length()).trim());
+                        } catch (NumberFormatException e) {
+                            Log.w(TAG, "Malformed " + file + ": " + line);
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void copyDirectory(File source, File target) throws IOException {
+        File[] files = source.listFiles();
+        if (files == null) {
+            return;
+        }
+        if (!target.isDirectory() && !target.mkdirs()) {
+            throw new IOException("Could not create dir " + target);
+        }
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            try (FileChannel in = new FileInputStream(file).getChannel();
+                 FileChannel out = new FileOutputStream(new File(target, file.getName()))
+                         .getChannel()) {
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            }
+        }
+    }
+
+    /**
+     * Open connection to the client: a stream of its data channel if there is one, a connection
+     * to its capture server otherwise.
+     */
+    private Connection connection(InetAddress address) throws IOException {
+        Connection connection = mConnections.get(address);
+        if (connection == null) {
+            DataChannel channel = mDataChannels.get(address);
+            if (channel != null) {
+                DataChannel.Stream stream = channel.openStream(SyncConstants.DATA_STREAM_CAPTURE);
+                connection = new Connection(
+                        stream, stream.getInputStream(), stream.getOutputStream());
+            } else {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(
+                            new InetSocketAddress(address, mPort), CONNECT_TIMEOUT_MILLIS);
+                    socket.setSoTimeout(ChunkedFileTransfer.SOCKET_TIMEOUT_MILLIS);
+                    connection = new Connection(
+                            socket, socket.getInputStream(), socket.getOutputStream());
+                } catch (IOException e) {
+                    socket.close();
+                    throw e;
+                }
+            }
+            mConnections.put(address, connection);
+        }
+        return connection;
+    }
+
+    private void closeConnection(InetAddress address) {
+        Connection connection = mConnections.remove(address);
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        mCollectExecutor.shutdownNow();
+        mStreamExecutor.shutdownNow();
+        for (InetAddress address : new ArrayList<>(mConnections.keySet())) {
+            closeConnection(address);
+        }
+    }
+
+    /** Persistent connection to the capture server of one client. */
+    private final class Connection {
+        private final Closeable mResource;
+        private final DataInputStream mIn;
+        private final DataOutputStream mOut;
+
+        Connection(Closeable resource, InputStream in, OutputStream out) throws IOException {
+            mResource = resource;
+            mIn = mTransfer.openInput(in);
+            mOut = mTransfer.openOutput(out);
+        }
+
+        /** File sizes of the capture by name. */
+        Map<String, Long> list(long triggerTimeNs) throws IOException {
+            mOut.writeInt(CaptureFileServer.OP_LIST);
+            mOut.writeLong(triggerTimeNs);
+            mOut.flush();
+            int count = mIn.readInt();
+            if (count < 0) {
+                throw new IOException("Malformed capture listing of " + count + " files");
+            }
+            Map<String, Long> files = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                files.put(mIn.readUTF(), mIn.readLong());
+            }
+            return files;
+        }
+
+        void get(long triggerTimeNs, String name, File directory) throws IOException {
+            mOut.writeInt(CaptureFileServer.OP_GET);
+            mOut.writeLong(triggerTimeNs);
+            mOut.writeUTF(name);
+            mOut.flush();
+            if (mIn.readByte() != CaptureFileServer.STATUS_OK) {
+                throw new IOException("Client no longer has " + name);
+            }
+            mTransfer.receiveFile(mIn, mOut, directory, (details, transferredBytes) -> { });
+        }
+
+        void close() {
+            try {
+                mResource.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing capture connection: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Client side of capture collection, serves the files of synchronized captures to the
+ * {@link CaptureCollector} of the leader.
+ *
+ * <p>A connection is kept open for any number of requests:
+ * <pre>
+ *   OP_LIST, long triggerTimeNs            -> int count, count x (UTF name, long size)
+ *   OP_GET, long triggerTimeNs, UTF name   -> byte STATUS_OK, then a {@link ChunkedFileTransfer}
+ *                                             exchange, or byte STATUS_NOT_FOUND
+ * </pre>
+ * The capture of a trigger time is the directory {@link #captureDirName} under the root.
+ * Requests come over connections to the server socket or over data channel streams of type
+ * {@link SyncConstants#DATA_STREAM_CAPTURE}. Connections to the server socket are socket
+ * channels, so that files are sent to them with {@link ChunkedFileTransfer#directChannel}.
+ */
+public class CaptureFileServer extends Thread {
+    private static final String TAG = "CaptureFileServer";
+    static final int OP_LIST = 1;
+    static final int OP_GET = 2;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_NOT_FOUND = 1;
+
+    private final File mRoot;
+    private final ServerSocket mServerSocket;
+    private final ChunkedFileTransfer mTransfer;
+    private final ExecutorService mConnectionExecutor = Executors.newCachedThreadPool();
+
+    public CaptureFileServer(File root, int port) throws IOException {
+        this(root, openServerSocket(port), new ChunkedFileTransfer());
+    }
+
+    CaptureFileServer(File root, ServerSocket serverSocket, ChunkedFileTransfer transfer) {
+        super(TAG);
+        mRoot = root;
+        mServerSocket = serverSocket;
+        mTransfer = transfer;
+    }
+
+    private static ServerSocket openServerSocket(int port) throws IOException {
+        ServerSocket serverSocket = ServerSocketChannel.open().socket();
+        try {
+            serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        return serverSocket;
+    }
+
+    /**
+     * Name of the directory holding the capture of a trigger time, in the leader time domain.
+     * Formatted in the device time zone like the rest of the file names.
+     */
+    public static String captureDirName(long triggerTimeNs) {
+        SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS");
+        simpleDateFormat.setTimeZone(TimeZone.getDefault());
+        return simpleDateFormat.format(triggerTimeNs / 1_000_000L);
+    }
+
+    public void stopRunning() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing capture server socket: " + e);
+        }
+        mConnectionExecutor.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "Serving captures on port " + mServerSocket.getLocalPort());
+        while (!mServerSocket.isClosed()) {
+            try {
+                Socket socket = mServerSocket.accept();
+                mConnectionExecutor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!mServerSocket.isClosed()) {
+                    Log.e(TAG, "Error accepting capture connection: " + e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            serve(connection.getInputStream(), connection.getOutputStream(),
+                    mTransfer.directChannel(connection));
+        } catch (IOException e) {
+            Log.w(TAG, "Capture connection from " + socket.getInetAddress() + " failed: " + e);
+        }
+    }
+
+    /**
+     * Serves requests from the streams of one connection until the leader closes it, then
+     * closes the streams. Used for data channel streams as well.
+     */
+    void serve(InputStream input, OutputStream output) throws IOException {
+        serve(input, output, null);
+    }
+
+    private void serve(InputStream input, OutputStream output, SocketChannel channel)
+            throws IOException {
+        try (
+                DataInputStream in = mTransfer.openInput(input);
+                DataOutputStream out = mTransfer.openOutput(output)
+        ) {
+            while (true) {
+                int op;
+                try {
+                    op = in.readInt();
+                } catch (EOFException e) {
+                    // Leader closed the connection.
+                    return;
+                }
+                File captureDir = new File(mRoot, captureDirName(in.readLong()));
+                if (op == OP_LIST) {
+                    List<File> files = listFiles(captureDir);
+                    out.writeInt(files.size());
+                    for (File file : files) {
+                        out.writeUTF(file.getName());
+                        out.writeLong(file.length());
+                    }
+                    out.flush();
+                } else if (op == OP_GET) {
+                    File file = new File(captureDir, in.readUTF());
+                    if (!listFiles(captureDir).contains(file)) {
+                        out.writeByte(STATUS_NOT_FOUND);
+                        out.flush();
+                        continue;
+                    }
+                    out.writeByte(STATUS_OK);
+                    mTransfer.sendFile(
+                            file, in, out, channel, (details, transferredBytes) -> { });
+                } else {
+                    throw new IOException("Unknown capture request " + op);
+                }
+            }
+        }
+    }
+
+    /** Regular files directly in the directory, sorted by name. Empty if it does not exist. */
+    private static List<File> listFiles(File directory) {
+        List<File> files = new ArrayList<>();
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return files;
+        }
+        Arrays.sort(entries);
+        for (File entry : entries) {
+            if (entry.isFile()) {
+                files.add(entry);
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Resumable file transfer over TCP, split into checksummed chunks.
+ *
+ * <p>A transfer over one connection goes as follows:
+ * <pre>
+ *   sender:   int magic, short nameLength, byte[nameLength] name (UTF-8), long size,
+ *             int chunkSize, int chunkCount, int[chunkCount] crc32c, int manifestCrc32c
+ *   receiver: int missingCount, int[missingCount] missing chunk indices
+ *   sender:   int index, int length, byte[length] data      (for each missing chunk)
+ *   receiver: int index, byte ACK_OK | ACK_BAD              (for each received chunk)
+ *   receiver: int DONE                                      (once all chunks are verified)
+ * </pre>
+ * Chunks failing their checksum are sent again. Data is written to a "name.part" file, which is
+ * renamed once every chunk is verified. When the connection drops, the partial file stays in
+ * place: on the next connection the receiver checks its chunks against the manifest and asks only
+ * for the missing ones, so the transfer resumes where it stopped. The sender reconnects by itself
+ * through its {@link Connector}.
+ *
+ * <p>Socket streams pass through a {@link StreamWrapper}, which allows to inject a lossy link.
+ * When the streams are not wrapped and the sender's socket has a {@link SocketChannel}, chunk data
+ * goes from the file to the socket with {@link FileChannel#transferTo}, without passing through
+ * the Java heap. The receiver checks every chunk before writing it, so it reads chunks through
+ * its streams, and flushes acknowledgements only once no more data is buffered.
+ */
+public class ChunkedFileTransfer {
+    private static final String TAG = "ChunkedFileTransfer";
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    /** Chunks sent ahead of their acknowledgement. */
+    private static final int WINDOW_CHUNKS = 8;
+    private static final int MAX_CHUNK_SIZE = 16 << 20;
+    public static final int SOCKET_TIMEOUT_MILLIS = 10_000;
+    private static final long RETRY_DELAY_MILLIS = 500;
+    private static final int MAGIC = 0x434b4654; // "CKFT"
+    private static final int DONE = 0x444f4e45; // "DONE"
+    /** Acknowledgement values that a few flipped bits cannot turn into each other. */
+    private static final byte ACK_OK = 0x5A;
+    private static final byte ACK_BAD = (byte) 0xA5;
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final Charset NAME_CHARSET = Charset.forName("UTF-8");
+
+    /** Wraps the streams of every connection, {@link #PLAIN} leaves them unchanged. */
+    public interface StreamWrapper {
+        InputStream wrapInput(InputStream in) throws IOException;
+
+        OutputStream wrapOutput(OutputStream out) throws IOException;
+    }
+
+    public static final StreamWrapper PLAIN = new StreamWrapper() {
+        @Override
+        public InputStream wrapInput(InputStream in) {
+            return in;
+        }
+
+        @Override
+        public OutputStream wrapOutput(OutputStream out) {
+            return out;
+        }
+    };
+
+    /** Opens a new connection to the receiver, called again after a connection drops. */
+    public interface Connector {
+        Socket connect() throws IOException;
+    }
+
+    /** Reports how many bytes of a file have been sent or verified by the receiver. */
+    public interface ProgressListener {
+        void onProgress(FileDetails details, long transferredBytes);
+    }
+
+    private static final ProgressListener NO_PROGRESS =
+            (details, transferredBytes) -> { };
+
+    private final int mChunkSize;
+    private final int mMaxAttempts;
+    private final StreamWrapper mWrapper;
+
+    public ChunkedFileTransfer() {
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_ATTEMPTS, PLAIN);
+    }
+
+    /**
+     * @param maxAttempts connections opened per file by the sender, and transmissions of one
+     *                    chunk that fails its checksum.
+     */
+    public ChunkedFileTransfer(int chunkSize, int maxAttempts, StreamWrapper wrapper) {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size out of range: " + chunkSize);
+        }
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("Attempts must be positive: " + maxAttempts);
+        }
+        mChunkSize = chunkSize;
+        mMaxAttempts = maxAttempts;
+        mWrapper = wrapper;
+    }
+
+    public void sendFile(File file, Connector connector) throws IOException {
+        sendFile(file, connector, NO_PROGRESS);
+    }
+
+    /**
+     * Sends the file, reconnecting and resuming after failures until the receiver has verified
+     * all chunks.
+     *
+     * @throws IOException if the file could not be delivered in maxAttempts connections.
+     */
+    public FileDetails sendFile(
+            File file, Connector connector, ProgressListener listener
+    ) throws IOException {
+        Manifest manifest = Manifest.of(file, mChunkSize);
+        IOException lastError = null;
+        for (int attempt = 0; attempt < mMaxAttempts; attempt++) {
+            if (attempt > 0) {
+                Log.w(TAG, "Retrying transfer of " + file.getName() + ": " + lastError);
+                sleep(RETRY_DELAY_MILLIS * attempt);
+            }
+            try (Socket socket = connector.connect()) {
+                socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+                sendOnce(file, manifest, openInput(socket), openOutput(socket),
+                        directChannel(socket), listener);
+                Log.d(TAG, "Sent " + file.getName() + ", " + manifest.size + " bytes");
+                return manifest.details();
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw new IOException("Transfer of " + file.getName() + " failed after "
+                + mMaxAttempts + " attempts", lastError);
+    }
+
+    /**
+     * Sends the file over streams of an open connection, for connections that carry other
+     * messages as well. Makes a single attempt, streams are left open.
+     *
+     * @throws IOException if the receiver did not confirm the file. Resending the file on a new
+     *                     connection resumes the transfer.
+     */
+    public FileDetails sendFile(
+            File file, DataInputStream in, DataOutputStream out,
+            ProgressListener listener
+    ) throws IOException {
+        return sendFile(file, in, out, null, listener);
+    }
+
+    /**
+     * Sends the file over streams of an open connection like
+     * {@link #sendFile(File, DataInputStream, DataOutputStream, ProgressListener)}, writing chunk
+     * data straight to the channel of the connection if there is one.
+     *
+     * @param channel channel of the connection under the streams, see {@link #directChannel}, or
+     *                null to send chunk data through the streams.
+     */
+    public FileDetails sendFile(
+            File file, DataInputStream in, DataOutputStream out, SocketChannel channel,
+            ProgressListener listener
+    ) throws IOException {
+        Manifest manifest = Manifest.of(file, mChunkSize);
+        sendOnce(file, manifest, in, out, channel, listener);
+        return manifest.details();
+    }
+
+    /**
+     * Channel of the socket that chunk data can be sent to directly, null if the socket has none
+     * or its streams are wrapped, since a direct write would bypass the wrapper.
+     */
+    public SocketChannel directChannel(Socket socket) {
+        return mWrapper == PLAIN ? socket.getChannel() : null;
+    }
+
+    private void sendOnce(
+            File file, Manifest manifest, DataInputStream in, DataOutputStream out,
+            SocketChannel channel, ProgressListener listener
+    ) throws IOException {
+        manifest.write(out);
+        out.flush();
+
+        int missingCount = in.readInt();
+        if (missingCount < 0 || missingCount > manifest.chunkCount()) {
+            throw new IOException("Malformed resume request of " + missingCount + " chunks");
+        }
+        ArrayDeque<Integer> pending = new ArrayDeque<>(missingCount);
+        long transferred = manifest.size;
+        for (int i = 0; i < missingCount; i++) {
+            int index = in.readInt();
+            checkIndex(index, manifest);
+            pending.add(index);
+            transferred -= manifest.chunkLength(index);
+        }
+        if (missingCount < manifest.chunkCount()) {
+            Log.d(TAG, "Resuming " + file.getName() + " at " + transferred + " bytes");
+        }
+
+        int[] transmissions = new int[manifest.chunkCount()];
+        ArrayDeque<Integer> unacknowledged = new ArrayDeque<>(WINDOW_CHUNKS);
+        byte[] chunk = channel == null ? new byte[mChunkSize] : null;
+        try (RandomAccessFile data = new RandomAccessFile(file, "r")) {
+            while (!pending.isEmpty() || !unacknowledged.isEmpty()) {
+                if (!pending.isEmpty() && unacknowledged.size() < WINDOW_CHUNKS) {
+                    int index = pending.poll();
+                    if (++transmissions[index] > mMaxAttempts) {
+                        throw new IOException("Chunk " + index + " of " + file.getName()
+                                + " keeps failing its checksum");
+                    }
+                    int length = manifest.chunkLength(index);
+                    out.writeInt(index);
+                    out.writeInt(length);
+                    if (channel != null) {
+                        out.flush();
+                        transferFully(data.getChannel(), manifest.chunkOffset(index), length,
+                                channel);
+                    } else {
+                        data.seek(manifest.chunkOffset(index));
+                        data.readFully(chunk, 0, length);
+                        out.write(chunk, 0, length);
+                    }
+                    unacknowledged.add(index);
+                    continue;
+                }
+                out.flush();
+                int index = in.readInt();
+                byte status = in.readByte();
+                if (index != unacknowledged.peek() || (status != ACK_OK && status != ACK_BAD)) {
+                    throw new IOException("Malformed acknowledgement of chunk " + index);
+                }
+                unacknowledged.poll();
+                if (status == ACK_BAD) {
+                    pending.add(index);
+                } else {
+                    transferred += manifest.chunkLength(index);
+                    listener.onProgress(manifest.details(), transferred);
+                }
+            }
+        }
+        out.flush();
+        if (in.readInt() != DONE) {
+            throw new IOException("Receiver did not confirm " + file.getName());
+        }
+    }
+
+    /** Receives one file into the directory without progress reports. */
+    public File receiveFile(Socket socket, File directory) throws IOException {
+        return receiveFile(socket, directory, NO_PROGRESS);
+    }
+
+    /**
+     * Receives one file over the connection into the directory, under the name announced by the
+     * sender without its path. Chunks already present in a partial file from an earlier
+     * connection are kept.
+     *
+     * @throws IOException if the connection fails before the file is complete. The partial file
+     *                     is kept, so that the transfer resumes on the next connection.
+     */
+    public File receiveFile(
+            Socket socket, File directory, ProgressListener listener
+    ) throws IOException {
+        socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+        return receiveFile(openInput(socket), openOutput(socket), directory, listener);
+    }
+
+    /**
+     * Receives one file over streams of an open connection, which are left open, see
+     * {@link #sendFile(File, DataInputStream, DataOutputStream, ProgressListener)}.
+     */
+    public File receiveFile(
+            DataInputStream in, DataOutputStream out, File directory,
+            ProgressListener listener
+    ) throws IOException {
+        Manifest manifest = Manifest.read(in);
+        File target = new File(directory, new File(manifest.name).getName());
+        File partial = new File(directory, target.getName() + PARTIAL_SUFFIX);
+        byte[] chunk = new byte[manifest.chunkSize];
+
+        try (RandomAccessFile data = new RandomAccessFile(partial, "rw")) {
+            boolean[] verified = verifyChunks(data, manifest, chunk);
+            int missingCount = 0;
+            long transferred = 0;
+            for (int i = 0; i < verified.length; i++) {
+                if (verified[i]) {
+                    transferred += manifest.chunkLength(i);
+                } else {
+                    missingCount++;
+                }
+            }
+            out.writeInt(missingCount);
+            for (int i = 0; i < verified.length; i++) {
+                if (!verified[i]) {
+                    out.writeInt(i);
+                }
+            }
+            out.flush();
+
+            while (missingCount > 0) {
+                int index = in.readInt();
+                int length = in.readInt();
+                checkIndex(index, manifest);
+                if (length != manifest.chunkLength(index)) {
+                    throw new IOException("Malformed length " + length + " of chunk " + index);
+                }
+                in.readFully(chunk, 0, length);
+                boolean valid = Crc32c.compute(chunk, 0, length) == manifest.crcs[index];
+                if (valid && !verified[index]) {
+                    data.seek(manifest.chunkOffset(index));
+                    data.write(chunk, 0, length);
+                    verified[index] = true;
+                    missingCount--;
+                    transferred += length;
+                    listener.onProgress(manifest.details(), transferred);
+                }
+                out.writeInt(index);
+                out.writeByte(valid ? ACK_OK : ACK_BAD);
+                // The sender keeps sending until its window is full, flushing once it waits.
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+            data.setLength(manifest.size);
+        }
+        if (target.exists() && !target.delete() || !partial.renameTo(target)) {
+            throw new IOException("Could not move " + partial + " to " + target);
+        }
+        out.writeInt(DONE);
+        out.flush();
+        Log.d(TAG, "Received " + target.getName() + ", " + manifest.size + " bytes");
+        return target;
+    }
+
+    /** Chunks of a partial file that already match the manifest. */
+    private static boolean[] verifyChunks(RandomAccessFile data, Manifest manifest, byte[] chunk)
+            throws IOException {
+        boolean[] verified = new boolean[manifest.chunkCount()];
+        long available = data.length();
+        for (int i = 0; i < verified.length; i++) {
+            int length = manifest.chunkLength(i);
+            if (manifest.chunkOffset(i) + length > available) {
+                break;
+            }
+            data.seek(manifest.chunkOffset(i));
+            data.readFully(chunk, 0, length);
+            verified[i] = Crc32c.compute(chunk, 0, length) == manifest.crcs[i];
+        }
+        return verified;
+    }
+
+    private static void transferFully(
+            FileChannel source, long position, int length, SocketChannel target
+    ) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            long sent = source.transferTo(position, end - position, target);
+            if (sent <= 0) {
+                throw new IOException("File ended at " + position + " while sending it");
+            }
+            position += sent;
+        }
+    }
+
+    private static void checkIndex(int index, Manifest manifest) throws IOException {
+        if (index < 0 || index >= manifest.chunkCount()) {
+            throw new IOException("Malformed chunk index " + index);
+        }
+    }
+
+    /** Buffered output of the socket through the stream wrapper of this transfer. */
+    public DataOutputStream openOutput(Socket socket) throws IOException {
+        return openOutput(socket.getOutputStream());
+    }
+
+    /** Buffered input of the socket through the stream wrapper of this transfer. */
+    public DataInputStream openInput(Socket socket) throws IOException {
+        return openInput(socket.getInputStream());
+    }
+
+    public DataOutputStream openOutput(OutputStream out) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(mWrapper.wrapOutput(out), 1 << 16));
+    }
+
+    public DataInputStream openInput(InputStream in) throws IOException {
+        return new DataInputStream(new BufferedInputStream(mWrapper.wrapInput(in), 1 << 16));
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to reconnect");
+        }
+    }
+
+    /** Name, size and per-chunk checksums of a file. */
+    private static final class Manifest {
+        final String name;
+        final long size;
+        final int chunkSize;
+        final int[] crcs;
+
+        Manifest(String name, long size, int chunkSize, int[] crcs) {
+            this.name = name;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.crcs = crcs;
+        }
+
+        static Manifest of(File file, int chunkSize) throws IOException {
+            try (RandomAccessFile data = new RandomAccessFile(file, "r")) {
+                long size = data.length();
+                long chunkCount = (size + chunkSize - 1) / chunkSize;
+                if (chunkCount > Integer.MAX_VALUE) {
+                    throw new IOException("File " + file + " has too many chunks");
+                }
+                Manifest manifest =
+                        new Manifest(file.getName(), size, chunkSize, new int[(int) chunkCount]);
+                byte[] chunk = new byte[chunkSize];
+                for (int i = 0; i < manifest.crcs.length; i++) {
+                    int length = manifest.chunkLength(i);
+                    data.readFully(chunk, 0, length);
+                    manifest.crcs[i] = Crc32c.compute(chunk, 0, length);
+                }
+                return manifest;
+            }
+        }
+
+        int chunkCount() {
+            return crcs.length;
+        }
+
+        long chunkOffset(int index) {
+            return (long) index * chunkSize;
+        }
+
+        int chunkLength(int index) {
+            return (int) Math.min(chunkSize, size - chunkOffset(index));
+        }
+
+        FileDetails details() {
+            FileDetails details = new FileDetails();
+            details.setDetails(name, size);
+            return details;
+        }
+
+        void write(DataOutputStream stream) throws IOException {
+            Crc32c checksum = new Crc32c();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(stream, checksum));
+            byte[] nameBytes = name.getBytes(NAME_CHARSET);
+            if (nameBytes.length > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("File name is too long: " + name);
+            }
+            out.writeInt(MAGIC);
+            out.writeShort(nameBytes.length);
+            out.write(nameBytes);
+            out.writeLong(size);
+            out.writeInt(chunkSize);
+            out.writeInt(crcs.length);
+            for (int crc : crcs) {
+                out.writeInt(crc);
+            }
+            stream.writeInt((int) checksum.getValue());
+        }
+
+        static Manifest read(DataInputStream stream) throws IOException {
+            Crc32c checksum = new Crc32c();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(stream, checksum));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a chunked file transfer");
+            }
+            byte[] nameBytes = new byte[in.readUnsignedShort()];
+            in.readFully(nameBytes);
+            long size = in.readLong();
+            int chunkSize = in.readInt();
+            int chunkCount = in.readInt();
+            if (size < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE
+                    || chunkCount != (size + chunkSize - 1) / chunkSize) {
+                throw new IOException("Malformed manifest: size " + size + ", chunk size "
+                        + chunkSize + ", " + chunkCount + " chunks");
+            }
+            int[] crcs = new int[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                crcs[i] = in.readInt();
+            }
+            if (stream.readInt() != (int) checksum.getValue()) {
+                throw new IOException("Manifest failed its checksum");
+            }
+            return new Manifest(new String(nameBytes, NAME_CHARSET), size, chunkSize, crcs);
+        }
+    }
+}
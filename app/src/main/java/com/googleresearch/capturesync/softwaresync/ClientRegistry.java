@@ -0,0 +1,203 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Clients known to the leader, updated without a global lock.
+ *
+ * <p>Each client lives in its own {@link AtomicReference} and is replaced by compare-and-set, so
+ * heartbeats of different clients never contend and a heartbeat racing an offset update of the
+ * same client just retries. After every change an immutable {@link Snapshot} of all clients is
+ * published with the next version number. Readers, including the UI, only ever read the current
+ * snapshot and never hold up updates.
+ */
+public final class ClientRegistry {
+    private final Map<InetAddress, AtomicReference<ClientInfo>> mEntries =
+            new ConcurrentHashMap<>();
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<>(Snapshot.EMPTY);
+
+    ClientRegistry() {}
+
+    /** Current clients, a consistent view that does not change. */
+    public Snapshot snapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * Adds the client or updates its name and last heartbeat, keeping its sync results.
+     *
+     * @return true if the client was not registered before.
+     */
+    boolean onHeartbeat(String name, InetAddress address, long heartbeatNs) {
+        while (true) {
+            AtomicReference<ClientInfo> entry = mEntries.get(address);
+            if (entry == null) {
+                AtomicReference<ClientInfo> added = new AtomicReference<>(
+                        ClientInfo.create(name, address, 0, 0, heartbeatNs));
+                if (mEntries.putIfAbsent(address, added) == null) {
+                    publish();
+                    return true;
+                }
+                continue;
+            }
+            ClientInfo client = entry.get();
+            if (client == null) {
+                // Removed as stale in the meantime, register it anew.
+                mEntries.remove(address, entry);
+                continue;
+            }
+            ClientInfo updated = ClientInfo.create(
+                    name, address, client.offset(), client.syncAccuracy(), heartbeatNs);
+            if (entry.compareAndSet(client, updated)) {
+                publish();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Stores the result of a time sync of the client.
+     *
+     * @return false if the client is not registered.
+     */
+    boolean onOffsetUpdate(InetAddress address, long offsetNs, long syncAccuracyNs) {
+        AtomicReference<ClientInfo> entry = mEntries.get(address);
+        if (entry == null) {
+            return false;
+        }
+        while (true) {
+            ClientInfo client = entry.get();
+            if (client == null) {
+                return false;
+            }
+            ClientInfo updated = ClientInfo.create(
+                    client.name(), address, offsetNs, syncAccuracyNs, client.lastHeartbeat());
+            if (entry.compareAndSet(client, updated)) {
+                publish();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the clients whose last heartbeat is older than staleNs. A client whose heartbeat
+     * arrives while it is being removed stays registered.
+     *
+     * @return the removed clients.
+     */
+    List<ClientInfo> removeStale(long nowNs, long staleNs) {
+        List<ClientInfo> removed = new ArrayList<>();
+        for (Map.Entry<InetAddress, AtomicReference<ClientInfo>> mapEntry : mEntries.entrySet()) {
+            AtomicReference<ClientInfo> entry = mapEntry.getValue();
+            ClientInfo client = entry.get();
+            if (client != null
+                    && nowNs - client.lastHeartbeat() > staleNs
+                    && entry.compareAndSet(client, null)) {
+                mEntries.remove(mapEntry.getKey(), entry);
+                removed.add(client);
+            }
+        }
+        if (!removed.isEmpty()) {
+            publish();
+        }
+        return removed;
+    }
+
+    /**
+     * Publishes a snapshot of the entries. A publish that loses the race against another one
+     * rebuilds, so the last snapshot published includes every change made before it.
+     */
+    private void publish() {
+        while (true) {
+            Snapshot current = mSnapshot.get();
+            List<ClientInfo> clients = new ArrayList<>(mEntries.size());
+            for (AtomicReference<ClientInfo> entry : mEntries.values()) {
+                ClientInfo client = entry.get();
+                if (client != null) {
+                    clients.add(client);
+                }
+            }
+            Snapshot next = new Snapshot(
+                    current.mVersion + 1, clients.toArray(new ClientInfo[clients.size()]));
+            if (mSnapshot.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /** Immutable clients of one version of the registry. */
+    public static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(0, new ClientInfo[0]);
+
+        private final long mVersion;
+        private final ClientInfo[] mClients;
+        /** Built on first use, most snapshots are replaced by the next heartbeat unread. */
+        private volatile Map<InetAddress, ClientInfo> mByAddress;
+
+        private Snapshot(long version, ClientInfo[] clients) {
+            mVersion = version;
+            mClients = clients;
+        }
+
+        /** Increases with every change of the registry. */
+        public long version() {
+            return mVersion;
+        }
+
+        public int size() {
+            return mClients.length;
+        }
+
+        public ClientInfo get(int index) {
+            return mClients[index];
+        }
+
+        public boolean contains(InetAddress address) {
+            for (ClientInfo client : mClients) {
+                if (client.address().equals(address)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** The clients by address, unmodifiable. */
+        public Map<InetAddress, ClientInfo> asMap() {
+            Map<InetAddress, ClientInfo> byAddress = mByAddress;
+            if (byAddress == null) {
+                // Racing readers may both build it, the maps are equal.
+                Map<InetAddress, ClientInfo> map = new LinkedHashMap<>();
+                for (ClientInfo client : mClients) {
+                    map.put(client.address(), client);
+                }
+                byAddress = Collections.unmodifiableMap(map);
+                mByAddress = byAddress;
+            }
+            return byAddress;
+        }
+    }
+}
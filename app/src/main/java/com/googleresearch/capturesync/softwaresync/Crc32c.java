@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, java.util.zip.CRC32C is only available from API 26.
+ * Table driven, slicing-by-8: eight bytes per step through eight tables.
+ */
+public final class Crc32c implements Checksum {
+    /** Reversed Castagnoli polynomial. */
+    private static final int POLYNOMIAL = 0x82F63B78;
+    private static final int[] TABLE = new int[256];
+    /** TABLE_K[b] is the CRC of byte b followed by k zero bytes. */
+    private static final int[] TABLE_1 = new int[256];
+    private static final int[] TABLE_2 = new int[256];
+    private static final int[] TABLE_3 = new int[256];
+    private static final int[] TABLE_4 = new int[256];
+    private static final int[] TABLE_5 = new int[256];
+    private static final int[] TABLE_6 = new int[256];
+    private static final int[] TABLE_7 = new int[256];
+
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int crc = i;
+            for (int bit = 0; bit < Byte.SIZE; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+        int[][] tables = {TABLE, TABLE_1, TABLE_2, TABLE_3, TABLE_4, TABLE_5, TABLE_6, TABLE_7};
+        for (int k = 1; k < tables.length; k++) {
+            for (int i = 0; i < TABLE.length; i++) {
+                int previous = tables[k - 1][i];
+                tables[k][i] = (previous >>> 8) ^ TABLE[previous & 0xFF];
+            }
+        }
+    }
+
+    private int mCrc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        mCrc = (mCrc >>> 8) ^ TABLE[(mCrc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] bytes, int offset, int length) {
+        int crc = mCrc;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 8 <= end; i += 8) {
+            int low = crc ^ ((bytes[i] & 0xFF) | (bytes[i + 1] & 0xFF) << 8
+                    | (bytes[i + 2] & 0xFF) << 16 | (bytes[i + 3] & 0xFF) << 24);
+            crc = TABLE_7[low & 0xFF] ^ TABLE_6[(low >>> 8) & 0xFF]
+                    ^ TABLE_5[(low >>> 16) & 0xFF] ^ TABLE_4[low >>> 24]
+                    ^ TABLE_3[bytes[i + 4] & 0xFF] ^ TABLE_2[bytes[i + 5] & 0xFF]
+                    ^ TABLE_1[bytes[i + 6] & 0xFF] ^ TABLE[bytes[i + 7] & 0xFF];
+        }
+        for (; i < end; i++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ bytes[i]) & 0xFF];
+        }
+        mCrc = crc;
+    }
+
+    @Override
+    public long getValue() {
+        return ~mCrc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        mCrc = 0xFFFFFFFF;
+    }
+
+    /** Checksum of a byte range. */
+    public static int compute(byte[] bytes, int offset, int length) {
+        Crc32c crc = new Crc32c();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
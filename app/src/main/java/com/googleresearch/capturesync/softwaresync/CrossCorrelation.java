@@ -0,0 +1,211 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * FFT-based cross-correlation of real signals, equivalent to
+ * {@code scipy.signal.correlate(a, b, "full")} and to tsutil::eigenCrossCor of the native library.
+ *
+ * <p>Both real signals are packed into one complex transform, so a correlation costs one forward
+ * and one inverse radix-2 FFT. Work buffers and twiddle tables are kept between calls and only
+ * grow, which makes the instance not thread-safe.
+ */
+final class CrossCorrelation {
+    /**
+     * Rough cost of an FFT correlation per point and per log2 of the transform size, in units of
+     * one multiply-add of the direct correlation. Two complex transforms plus the spectrum split,
+     * measured on the JVM.
+     */
+    private static final long FFT_COST_PER_POINT = 8;
+
+    private double[] mRe = new double[0];
+    private double[] mIm = new double[0];
+    private double[] mCos = new double[0];
+    private double[] mSin = new double[0];
+    private int mTwiddleSize;
+
+    /** Length of the full cross-correlation of signals of the given lengths. */
+    static int fullLength(int lengthA, int lengthB) {
+        return lengthA + lengthB - 1;
+    }
+
+    /** Smallest power of two not less than n. */
+    static int nextPowerOfTwo(int n) {
+        int power = 1;
+        while (power < n) {
+            power <<= 1;
+        }
+        return power;
+    }
+
+    /**
+     * Writes {@code out[m] = sum_n a[n + m - (lengthB - 1)] * b[n]} for m in
+     * [0, lengthA + lengthB - 1), i.e. lag m - (lengthB - 1) of a relative to b.
+     */
+    void correlate(double[] a, int lengthA, double[] b, int lengthB, double[] out) {
+        correlate(a, lengthA, b, lengthB, -(lengthB - 1), lengthA - 1, out);
+    }
+
+    /**
+     * Writes {@code out[i] = sum_n a[n + lag] * b[n]} for lag = minLag + i in [minLag, maxLag].
+     *
+     * <p>Computed directly when the window is narrow, otherwise with an FFT just large enough for
+     * the circular correlation not to wrap into the window, which is smaller than the full-length
+     * transform when the window is.
+     */
+    void correlate(
+            double[] a, int lengthA, double[] b, int lengthB, int minLag, int maxLag, double[] out) {
+        int lags = maxLag - minLag + 1;
+        int size = nextPowerOfTwo(Math.max(
+                Math.max(lengthA, lengthB), Math.max(lengthB + maxLag, lengthA - minLag)
+        ));
+        long directCost = (long) lags * Math.min(lengthA, lengthB);
+        long fftCost = FFT_COST_PER_POINT * size * Integer.numberOfTrailingZeros(size);
+        if (directCost <= fftCost) {
+            correlateDirect(a, lengthA, b, lengthB, minLag, maxLag, out);
+        } else {
+            correlateFft(a, lengthA, b, lengthB, minLag, maxLag, size, out);
+        }
+    }
+
+    private static void correlateDirect(
+            double[] a, int lengthA, double[] b, int lengthB, int minLag, int maxLag, double[] out) {
+        for (int lag = minLag; lag <= maxLag; lag++) {
+            int from = Math.max(0, -lag);
+            int to = Math.min(lengthB, lengthA - lag);
+            double sum = 0.0;
+            for (int n = from; n < to; n++) {
+                sum += a[n + lag] * b[n];
+            }
+            out[lag - minLag] = sum;
+        }
+    }
+
+    private void correlateFft(double[] a, int lengthA, double[] b, int lengthB,
+                              int minLag, int maxLag, int size, double[] out) {
+        prepare(size);
+        double[] re = mRe;
+        double[] im = mIm;
+        for (int i = 0; i < size; i++) {
+            re[i] = i < lengthA ? a[i] : 0.0;
+            im[i] = i < lengthB ? b[i] : 0.0;
+        }
+        transform(re, im, size, false);
+
+        // Split the spectra of a and b out of the packed transform and multiply A * conj(B):
+        // A_k = (Z_k + conj(Z_-k)) / 2, B_k = (Z_k - conj(Z_-k)) / 2i.
+        for (int k = 0; k <= size / 2; k++) {
+            int j = (size - k) & (size - 1);
+            double zkRe = re[k];
+            double zkIm = im[k];
+            double zjRe = re[j];
+            double zjIm = im[j];
+            double aRe = 0.5 * (zkRe + zjRe);
+            double aIm = 0.5 * (zkIm - zjIm);
+            double bRe = 0.5 * (zkIm + zjIm);
+            double bIm = -0.5 * (zkRe - zjRe);
+            double pRe = aRe * bRe + aIm * bIm;
+            double pIm = aIm * bRe - aRe * bIm;
+            re[k] = pRe;
+            im[k] = pIm;
+            // The product spectrum of real signals is Hermitian.
+            re[j] = pRe;
+            im[j] = -pIm;
+        }
+        transform(re, im, size, true);
+
+        // Negative lags wrap around to the end of the circular correlation.
+        for (int lag = minLag; lag <= maxLag; lag++) {
+            out[lag - minLag] = re[lag < 0 ? lag + size : lag] / size;
+        }
+    }
+
+    /**
+     * Writes the power spectrum |X_k|^2 of signal[0, size) into out[k] for k in [0, size / 2],
+     * size must be a power of two.
+     */
+    void powerSpectrum(double[] signal, int size, double[] out) {
+        prepare(size);
+        double[] re = mRe;
+        double[] im = mIm;
+        System.arraycopy(signal, 0, re, 0, size);
+        for (int i = 0; i < size; i++) {
+            im[i] = 0.0;
+        }
+        transform(re, im, size, false);
+        for (int k = 0; k <= size / 2; k++) {
+            out[k] = re[k] * re[k] + im[k] * im[k];
+        }
+    }
+
+    private void prepare(int size) {
+        if (mRe.length < size) {
+            mRe = new double[size];
+            mIm = new double[size];
+        }
+        if (mTwiddleSize != size) {
+            if (mCos.length < size / 2) {
+                mCos = new double[size / 2];
+                mSin = new double[size / 2];
+            }
+            for (int i = 0; i < size / 2; i++) {
+                double angle = -2 * Math.PI * i / size;
+                mCos[i] = Math.cos(angle);
+                mSin[i] = Math.sin(angle);
+            }
+            mTwiddleSize = size;
+        }
+    }
+
+    /** In-place iterative radix-2 FFT, the inverse is not scaled. */
+    private void transform(double[] re, double[] im, int size, boolean inverse) {
+        for (int i = 1, j = 0; i < size; i++) {
+            int bit = size >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        double sign = inverse ? -1.0 : 1.0;
+        for (int length = 2; length <= size; length <<= 1) {
+            int half = length >> 1;
+            int step = size / length;
+            for (int start = 0; start < size; start += length) {
+                for (int k = 0; k < half; k++) {
+                    double wRe = mCos[k * step];
+                    double wIm = sign * mSin[k * step];
+                    int even = start + k;
+                    int odd = even + half;
+                    double oRe = re[odd] * wRe - im[odd] * wIm;
+                    double oIm = re[odd] * wIm + im[odd] * wRe;
+                    re[odd] = re[even] - oRe;
+                    im[odd] = im[even] - oIm;
+                    re[even] += oRe;
+                    im[even] += oIm;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Long-lived TCP connection between the leader and one client, multiplexing independent byte
+ * streams such as gyro uploads, capture transfers and RPC payloads too large for a datagram.
+ *
+ * <p>Every frame is
+ * <pre>
+ *   int streamId, byte frameType, int length, byte[length] payload
+ * </pre>
+ * where frameType is OPEN (payload: int streamType), DATA, CREDIT (payload: int bytes) or CLOSE,
+ * which ends the stream in the direction of its sender. Stream ids are odd for streams opened by
+ * the side that connected and even for the other side, so both can open streams without
+ * coordination.
+ *
+ * <p>Flow control is per stream: a sender may have at most
+ * {@link SyncConstants#DATA_STREAM_WINDOW_BYTES} unread bytes in flight and waits for CREDIT
+ * frames, which the receiver sends as the application reads. A slow stream therefore never stalls
+ * the others nor the reader thread of the channel.
+ */
+public class DataChannel implements Closeable {
+    private static final String TAG = "DataChannel";
+    private static final byte FRAME_OPEN = 1;
+    private static final byte FRAME_DATA = 2;
+    private static final byte FRAME_CREDIT = 3;
+    private static final byte FRAME_CLOSE = 4;
+
+    /** Handles a stream opened by the peer, the handler owns the stream and must close it. */
+    public interface StreamHandler {
+        void onStream(Stream stream) throws IOException;
+    }
+
+    /** Told once when the channel closes, after a failure or by {@link #close}. */
+    interface Listener {
+        void onClosed(DataChannel channel);
+    }
+
+    private final Socket mSocket;
+    private final DataInputStream mIn;
+    private final DataOutputStream mOut;
+    private final Object mWriteLock = new Object();
+    private final Map<Integer, Stream> mStreams = new ConcurrentHashMap<>();
+    private final Map<Integer, StreamHandler> mHandlers;
+    private final Executor mHandlerExecutor;
+    private final Listener mListener;
+    private final int mWindowBytes;
+    private final int mMaxFrameBytes;
+    private final Thread mReaderThread;
+    private int mNextStreamId;
+    private volatile boolean mClosed;
+
+    /**
+     * @param initiator whether this side opened the connection, selects the stream id parity.
+     * @param handlers  handlers of streams opened by the peer by stream type, read when a stream
+     *                  opens. Streams of other types are closed right away.
+     */
+    DataChannel(
+            Socket socket, boolean initiator, Map<Integer, StreamHandler> handlers,
+            Executor handlerExecutor, Listener listener) throws IOException {
+        mSocket = socket;
+        mSocket.setTcpNoDelay(true);
+        mSocket.setKeepAlive(true);
+        mIn = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        mOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        mHandlers = handlers;
+        mHandlerExecutor = handlerExecutor;
+        mListener = listener;
+        mWindowBytes = SyncConstants.DATA_STREAM_WINDOW_BYTES;
+        mMaxFrameBytes = SyncConstants.DATA_FRAME_MAX_BYTES;
+        mNextStreamId = initiator ? 1 : 2;
+        mReaderThread = new Thread(this::readFrames, "DataChannelReader");
+    }
+
+    void start() {
+        mReaderThread.start();
+    }
+
+    public InetAddress getRemoteAddress() {
+        return mSocket.getInetAddress();
+    }
+
+    public boolean isOpen() {
+        return !mClosed;
+    }
+
+    /** Opens a new stream of the given type, handled on the peer by its handler of the type. */
+    public Stream openStream(int streamType) throws IOException {
+        Stream stream;
+        synchronized (mWriteLock) {
+            if (mClosed) {
+                throw new IOException("Data channel to " + getRemoteAddress() + " is closed");
+            }
+            stream = new Stream(mNextStreamId, streamType);
+            mNextStreamId += 2;
+            mStreams.put(stream.mId, stream);
+            mOut.writeInt(stream.mId);
+            mOut.writeByte(FRAME_OPEN);
+            mOut.writeInt(Integer.SIZE / Byte.SIZE);
+            mOut.writeInt(streamType);
+            mOut.flush();
+        }
+        return stream;
+    }
+
+    private void writeFrame(int streamId, byte frameType, byte[] payload, int offset, int length)
+            throws IOException {
+        IOException failure;
+        synchronized (mWriteLock) {
+            if (mClosed) {
+                throw new IOException("Data channel to " + getRemoteAddress() + " is closed");
+            }
+            try {
+                mOut.writeInt(streamId);
+                mOut.writeByte(frameType);
+                mOut.writeInt(length);
+                mOut.write(payload, offset, length);
+                mOut.flush();
+                return;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        // Closed outside of the write lock, closing takes the stream locks.
+        fail(failure);
+        throw failure;
+    }
+
+    private void writeCredit(int streamId, int bytes) throws IOException {
+        byte[] payload = {
+                (byte) (bytes >>> 24), (byte) (bytes >>> 16), (byte) (bytes >>> 8), (byte) bytes
+        };
+        writeFrame(streamId, FRAME_CREDIT, payload, 0, payload.length);
+    }
+
+    private void readFrames() {
+        byte[] payload = new byte[mMaxFrameBytes];
+        try {
+            while (!mClosed) {
+                int streamId = mIn.readInt();
+                byte frameType = mIn.readByte();
+                int length = mIn.readInt();
+                if (length < 0 || length > mMaxFrameBytes) {
+                    throw new IOException("Malformed frame length " + length);
+                }
+                mIn.readFully(payload, 0, length);
+                onFrame(streamId, frameType, payload, length);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void onFrame(int streamId, byte frameType, byte[] payload, int length)
+            throws IOException {
+        Stream stream = mStreams.get(streamId);
+        switch (frameType) {
+            case FRAME_OPEN:
+                if (stream != null || length != Integer.SIZE / Byte.SIZE) {
+                    throw new IOException("Malformed open of stream " + streamId);
+                }
+                int streamType = readInt(payload);
+                Stream opened = new Stream(streamId, streamType);
+                mStreams.put(streamId, opened);
+                StreamHandler handler = mHandlers.get(streamType);
+                if (handler == null) {
+                    Log.w(TAG, "No handler of streams of type " + streamType + ", closing");
+                    opened.close();
+                    return;
+                }
+                mHandlerExecutor.execute(() -> {
+                    try {
+                        handler.onStream(opened);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Stream " + streamId + " of type " + streamType
+                                + " from " + getRemoteAddress() + " failed: " + e);
+                        opened.close();
+                    }
+                });
+                return;
+            case FRAME_DATA:
+                if (stream == null) {
+                    // Closed on this side, keep the peer writing until it sees the close.
+                    writeCredit(streamId, length);
+                    return;
+                }
+                stream.onData(payload, length);
+                return;
+            case FRAME_CREDIT:
+                if (stream != null && length == Integer.SIZE / Byte.SIZE) {
+                    stream.onCredit(readInt(payload));
+                }
+                return;
+            case FRAME_CLOSE:
+                if (stream != null) {
+                    stream.onRemoteClose();
+                }
+                return;
+            default:
+                throw new IOException("Unknown frame type " + frameType);
+        }
+    }
+
+    private static int readInt(byte[] bytes) {
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16
+                | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+    }
+
+    private void fail(IOException cause) {
+        if (!mClosed) {
+            Log.w(TAG, "Data channel to " + getRemoteAddress() + " failed: " + cause);
+        }
+        close();
+    }
+
+    /** Closes the connection, pending reads and writes of all streams fail. Idempotent. */
+    @Override
+    public void close() {
+        synchronized (mWriteLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing data channel socket: " + e);
+        }
+        for (Stream stream : mStreams.values()) {
+            stream.onChannelClosed();
+        }
+        mStreams.clear();
+        mListener.onClosed(this);
+    }
+
+    /**
+     * One direction-independent stream of the channel. Reads return end of stream once the peer
+     * has closed its side, {@link #close} ends the output and discards further input. Since a
+     * closed side reads no more, writes fail once the peer has closed.
+     */
+    public final class Stream implements Closeable {
+        private final int mId;
+        private final int mType;
+        /** Received bytes not read yet, a ring of the window size. */
+        private final byte[] mReceived = new byte[mWindowBytes];
+        private int mReceivedStart;
+        private int mReceivedSize;
+        private int mUncreditedBytes;
+        private int mSendCredit = mWindowBytes;
+        private boolean mRemoteClosed;
+        private boolean mLocalClosed;
+        private boolean mChannelClosed;
+        private final InputStream mInput = new StreamInput();
+        private final OutputStream mOutput = new StreamOutput();
+
+        private Stream(int id, int type) {
+            mId = id;
+            mType = type;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public InetAddress getRemoteAddress() {
+            return DataChannel.this.getRemoteAddress();
+        }
+
+        public InputStream getInputStream() {
+            return mInput;
+        }
+
+        public OutputStream getOutputStream() {
+            return mOutput;
+        }
+
+        @Override
+        public void close() {
+            int credit;
+            synchronized (this) {
+                if (mLocalClosed) {
+                    return;
+                }
+                mLocalClosed = true;
+                // Unread bytes are discarded, the peer gets their credit back along with the
+                // credit not returned yet, so a writer waiting for it sees the close.
+                credit = mRemoteClosed ? 0 : mReceivedSize + mUncreditedBytes;
+                mReceivedSize = 0;
+                mUncreditedBytes = 0;
+                notifyAll();
+                if (mRemoteClosed) {
+                    mStreams.remove(mId);
+                }
+                if (mChannelClosed) {
+                    return;
+                }
+            }
+            try {
+                if (credit > 0) {
+                    writeCredit(mId, credit);
+                }
+                writeFrame(mId, FRAME_CLOSE, new byte[0], 0, 0);
+            } catch (IOException e) {
+                // The channel is gone, so is the stream.
+            }
+        }
+
+        private synchronized void onData(byte[] payload, int length) throws IOException {
+            if (mLocalClosed) {
+                writeCredit(mId, length);
+                return;
+            }
+            if (mReceivedSize + length > mReceived.length) {
+                throw new IOException("Peer overran the window of stream " + mId);
+            }
+            int end = (mReceivedStart + mReceivedSize) % mReceived.length;
+            int first = Math.min(length, mReceived.length - end);
+            System.arraycopy(payload, 0, mReceived, end, first);
+            System.arraycopy(payload, first, mReceived, 0, length - first);
+            mReceivedSize += length;
+            notifyAll();
+        }
+
+        private synchronized void onCredit(int bytes) {
+            mSendCredit += bytes;
+            notifyAll();
+        }
+
+        private synchronized void onRemoteClose() {
+            mRemoteClosed = true;
+            if (mLocalClosed) {
+                mStreams.remove(mId);
+            }
+            notifyAll();
+        }
+
+        private synchronized void onChannelClosed() {
+            mChannelClosed = true;
+            notifyAll();
+        }
+
+        private final class StreamInput extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                int read;
+                int credit = 0;
+                synchronized (Stream.this) {
+                    while (mReceivedSize == 0) {
+                        if (mLocalClosed) {
+                            throw new IOException("Stream " + mId + " is closed");
+                        }
+                        if (mRemoteClosed) {
+                            return -1;
+                        }
+                        if (mChannelClosed) {
+                            throw new IOException("Data channel closed while reading");
+                        }
+                        await();
+                    }
+                    read = Math.min(length, mReceivedSize);
+                    int first = Math.min(read, mReceived.length - mReceivedStart);
+                    System.arraycopy(mReceived, mReceivedStart, bytes, offset, first);
+                    System.arraycopy(mReceived, 0, bytes, offset + first, read - first);
+                    mReceivedStart = (mReceivedStart + read) % mReceived.length;
+                    mReceivedSize -= read;
+                    mUncreditedBytes += read;
+                    // Return credit in batches, each CREDIT frame costs a write on the socket.
+                    if (mUncreditedBytes >= mReceived.length / 4 && !mRemoteClosed) {
+                        credit = mUncreditedBytes;
+                        mUncreditedBytes = 0;
+                    }
+                }
+                if (credit > 0) {
+                    writeCredit(mId, credit);
+                }
+                return read;
+            }
+
+            @Override
+            public int available() {
+                synchronized (Stream.this) {
+                    return mReceivedSize;
+                }
+            }
+
+            @Override
+            public void close() {
+                Stream.this.close();
+            }
+        }
+
+        private final class StreamOutput extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                while (length > 0) {
+                    int frame;
+                    synchronized (Stream.this) {
+                        while (mSendCredit == 0
+                                && !mLocalClosed && !mRemoteClosed && !mChannelClosed) {
+                            await();
+                        }
+                        if (mLocalClosed || mChannelClosed) {
+                            throw new IOException("Stream " + mId + " is closed");
+                        }
+                        if (mRemoteClosed) {
+                            throw new IOException("Stream " + mId + " was closed by the peer");
+                        }
+                        frame = Math.min(length, Math.min(mSendCredit, mMaxFrameBytes));
+                        mSendCredit -= frame;
+                    }
+                    writeFrame(mId, FRAME_DATA, bytes, offset, frame);
+                    offset += frame;
+                    length -= frame;
+                }
+            }
+
+            @Override
+            public void close() {
+                Stream.this.close();
+            }
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting on stream " + mId);
+            }
+        }
+    }
+}
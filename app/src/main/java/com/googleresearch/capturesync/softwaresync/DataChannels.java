@@ -0,0 +1,151 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The {@link DataChannel}s of a device by peer address, at most one per peer. The leader accepts
+ * channels, clients connect theirs once registered. Stream handlers are shared by all channels.
+ */
+public class DataChannels implements Closeable {
+    private static final String TAG = "DataChannels";
+
+    private final Map<InetAddress, DataChannel> mChannels = new ConcurrentHashMap<>();
+    private final Map<Integer, DataChannel.StreamHandler> mHandlers = new ConcurrentHashMap<>();
+    private final ExecutorService mHandlerExecutor = Executors.newCachedThreadPool();
+    private final DataChannel.Listener mRemover = channel -> {
+        // Only forget the channel if it has not been replaced yet.
+        synchronized (mChannels) {
+            if (mChannels.get(channel.getRemoteAddress()) == channel) {
+                mChannels.remove(channel.getRemoteAddress());
+            }
+        }
+    };
+    private ServerSocket mServerSocket;
+    private volatile boolean mClosed;
+
+    /** Handles the streams of the type opened by peers, replaces an earlier handler. */
+    public void setHandler(int streamType, DataChannel.StreamHandler handler) {
+        mHandlers.put(streamType, handler);
+    }
+
+    /** Open channel to the peer, null if there is none. */
+    public DataChannel get(InetAddress address) {
+        DataChannel channel = mChannels.get(address);
+        return channel != null && channel.isOpen() ? channel : null;
+    }
+
+    /** Connects a channel to the peer unless one is open already. */
+    public DataChannel connect(InetAddress address, int port) throws IOException {
+        DataChannel channel = get(address);
+        if (channel != null) {
+            return channel;
+        }
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port),
+                    SyncConstants.DATA_CHANNEL_CONNECT_TIMEOUT_MILLIS);
+            channel = new DataChannel(socket, true, mHandlers, mHandlerExecutor, mRemover);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        register(address, channel);
+        Log.d(TAG, "Connected data channel to " + address);
+        return channel;
+    }
+
+    /** Accepts channels from peers on the port, on a thread of its own. */
+    public void listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        mServerSocket = serverSocket;
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    register(socket.getInetAddress(), new DataChannel(
+                            socket, false, mHandlers, mHandlerExecutor, mRemover
+                    ));
+                    Log.d(TAG, "Accepted data channel from " + socket.getInetAddress());
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        Log.e(TAG, "Error accepting data channel: " + e);
+                    }
+                }
+            }
+        }, "DataChannelAcceptor");
+        acceptor.start();
+    }
+
+    /** Replaces the channel of the peer, a peer that reconnects has lost its old channel. */
+    private void register(InetAddress address, DataChannel channel) {
+        DataChannel previous;
+        synchronized (mChannels) {
+            if (mClosed) {
+                channel.close();
+                return;
+            }
+            previous = mChannels.put(address, channel);
+        }
+        if (previous != null) {
+            previous.close();
+        }
+        channel.start();
+    }
+
+    /** Closes the channel of the peer, if any. */
+    public void close(InetAddress address) {
+        DataChannel channel = mChannels.remove(address);
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (mChannels) {
+            mClosed = true;
+        }
+        if (mServerSocket != null) {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing data channel server socket: " + e);
+            }
+        }
+        for (InetAddress address : new ArrayList<>(mChannels.keySet())) {
+            close(address);
+        }
+        mHandlerExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking UDP sockets served by one selector thread.
+ *
+ * <p>Datagrams are read into a single direct buffer owned by the selector thread and either handed
+ * to the {@link PacketHandler} of the socket in place, or copied into a pooled buffer and queued
+ * for {@link Endpoint#receive}, which blocks like {@link java.net.DatagramSocket#receive} for the
+ * threads that wait for replies. Sends go through pooled direct buffers as well, so steady traffic
+ * does not allocate buffers or packets.
+ */
+public final class DatagramTransport implements Closeable {
+    private static final String TAG = "DatagramTransport";
+    private static final int SEND_ATTEMPTS = 3;
+
+    /** Handles the datagrams of a socket on the selector thread. */
+    public interface PacketHandler {
+        /**
+         * Called for each datagram with its payload between position and limit of the buffer. The
+         * buffer is reused once the call returns, so anything kept must be copied, and the call
+         * must not block.
+         */
+        void onPacket(InetSocketAddress source, ByteBuffer packet);
+    }
+
+    private final Selector mSelector;
+    private final Thread mLoop;
+    private final ByteBuffer mReceiveBuffer =
+            ByteBuffer.allocateDirect(SyncConstants.DATAGRAM_BUFFER_SIZE);
+    private final BlockingQueue<ByteBuffer> mBuffers =
+            new ArrayBlockingQueue<>(SyncConstants.DATAGRAM_POOL_SIZE);
+    private final Queue<Endpoint> mPendingEndpoints = new ConcurrentLinkedQueue<>();
+    private volatile boolean mClosed;
+
+    public DatagramTransport() throws IOException {
+        mSelector = Selector.open();
+        mLoop = new Thread(this::runLoop, TAG);
+        mLoop.setDaemon(true);
+        mLoop.start();
+    }
+
+    /**
+     * Binds a socket to the port. Datagrams go to the handler, or are queued for
+     * {@link Endpoint#receive} if the handler is null.
+     */
+    public Endpoint open(int port, PacketHandler handler) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        Endpoint endpoint = new Endpoint(channel, handler);
+        // Registration has to happen on the selector thread, select() would block it otherwise.
+        mPendingEndpoints.add(endpoint);
+        mSelector.wakeup();
+        return endpoint;
+    }
+
+    /** Buffer of DATAGRAM_BUFFER_SIZE bytes from the pool, cleared. */
+    public ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = mBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(SyncConstants.DATAGRAM_BUFFER_SIZE);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Returns a buffer from {@link #acquireBuffer} to the pool. */
+    public void releaseBuffer(ByteBuffer buffer) {
+        mBuffers.offer(buffer);
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /** Stops the selector thread, endpoints have to be closed separately. */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mSelector.wakeup();
+        try {
+            mLoop.join(SyncConstants.SOCKET_WAIT_TIME_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing selector: " + e);
+        }
+    }
+
+    private void runLoop() {
+        try {
+            while (!mClosed) {
+                mSelector.select();
+                registerPendingEndpoints();
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        ((Endpoint) key.attachment()).readAvailable();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!mClosed) {
+                Log.e(TAG, "Selector loop failed: " + e);
+            }
+        }
+    }
+
+    private void registerPendingEndpoints() {
+        Endpoint endpoint;
+        while ((endpoint = mPendingEndpoints.poll()) != null) {
+            try {
+                endpoint.mChannel.register(mSelector, SelectionKey.OP_READ, endpoint);
+            } catch (IOException e) {
+                Log.w(TAG, "Endpoint closed before registration: " + e);
+            }
+        }
+    }
+
+    /** UDP socket of the transport. Sends and receives are thread-safe. */
+    public final class Endpoint implements Closeable {
+        private final DatagramChannel mChannel;
+        private final PacketHandler mHandler;
+        /** Datagrams waiting for {@link #receive}, and spare ones to copy new datagrams into. */
+        private final BlockingQueue<Datagram> mReceived =
+                new ArrayBlockingQueue<>(SyncConstants.DATAGRAM_POOL_SIZE);
+        private final BlockingQueue<Datagram> mSpare =
+                new ArrayBlockingQueue<>(SyncConstants.DATAGRAM_POOL_SIZE);
+        private volatile InetAddress mIgnoredSource;
+
+        private Endpoint(DatagramChannel channel, PacketHandler handler) {
+            mChannel = channel;
+            mHandler = handler;
+        }
+
+        /** Sends the bytes between position and limit of the buffer. */
+        public void send(ByteBuffer payload, InetAddress address, int port) throws IOException {
+            InetSocketAddress target = new InetSocketAddress(address, port);
+            for (int attempt = 0; attempt < SEND_ATTEMPTS; attempt++) {
+                if (mChannel.send(payload, target) > 0) {
+                    return;
+                }
+                // Send buffer of the socket is full, give the network stack a moment.
+                Thread.yield();
+            }
+            throw new IOException("Send buffer full, dropped datagram to " + target);
+        }
+
+        /** Sends length bytes of data from offset through a pooled buffer. */
+        public void send(byte[] data, int offset, int length, InetAddress address, int port)
+                throws IOException {
+            ByteBuffer buffer = acquireBuffer();
+            try {
+                buffer.put(data, offset, length).flip();
+                send(buffer, address, port);
+            } finally {
+                releaseBuffer(buffer);
+            }
+        }
+
+        /** Sends the packet like {@link java.net.DatagramSocket#send}. */
+        public void send(DatagramPacket packet) throws IOException {
+            send(packet.getData(), packet.getOffset(), packet.getLength(),
+                    packet.getAddress(), packet.getPort());
+        }
+
+        /**
+         * Waits up to SOCKET_WAIT_TIME_MS for a queued datagram and copies it into the packet, like
+         * {@link java.net.DatagramSocket#receive} with that timeout. Only for endpoints opened
+         * without a handler.
+         *
+         * @throws SocketTimeoutException if no datagram arrived in time.
+         */
+        public void receive(DatagramPacket packet) throws IOException {
+            if (isClosed()) {
+                throw new SocketException("Socket is closed");
+            }
+            Datagram datagram;
+            try {
+                datagram = mReceived.poll(SyncConstants.SOCKET_WAIT_TIME_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Interrupted while waiting for a datagram");
+            }
+            if (datagram == null) {
+                throw new SocketTimeoutException("No datagram received");
+            }
+            ByteBuffer buffer = datagram.mBuffer;
+            int length = Math.min(buffer.remaining(), packet.getData().length - packet.getOffset());
+            buffer.get(packet.getData(), packet.getOffset(), length);
+            packet.setLength(length);
+            packet.setSocketAddress(datagram.mSource);
+            datagram.mSource = null;
+            mSpare.offer(datagram);
+        }
+
+        /**
+         * Allows sending to broadcast addresses, see {@link java.net.DatagramSocket#setBroadcast}.
+         */
+        public void setBroadcast(boolean on) throws IOException {
+            mChannel.socket().setBroadcast(on);
+        }
+
+        /**
+         * Drops datagrams received from the address, so that broadcasts sent from this device are
+         * not delivered back to it. Null delivers all datagrams.
+         */
+        public void setIgnoredSource(InetAddress address) {
+            mIgnoredSource = address;
+        }
+
+        public boolean isClosed() {
+            return !mChannel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+
+        /** Reads datagrams on the selector thread until none is left or the batch is full. */
+        private void readAvailable() {
+            for (int i = 0; i < SyncConstants.DATAGRAM_READS_PER_WAKEUP; i++) {
+                mReceiveBuffer.clear();
+                SocketAddress source;
+                try {
+                    source = mChannel.receive(mReceiveBuffer);
+                } catch (IOException e) {
+                    Log.w(TAG, "Error receiving datagram: " + e);
+                    return;
+                }
+                if (source == null) {
+                    return;
+                }
+                mReceiveBuffer.flip();
+                deliver((InetSocketAddress) source, mReceiveBuffer);
+            }
+        }
+
+        private void deliver(InetSocketAddress source, ByteBuffer packet) {
+            if (source.getAddress().equals(mIgnoredSource)) {
+                return;
+            }
+            if (mHandler != null) {
+                try {
+                    mHandler.onPacket(source, packet);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Packet handler failed for datagram from " + source, e);
+                }
+                return;
+            }
+            Datagram datagram = mSpare.poll();
+            if (datagram == null) {
+                datagram = new Datagram();
+            }
+            datagram.mBuffer.clear();
+            datagram.mBuffer.put(packet).flip();
+            datagram.mSource = source;
+            if (!mReceived.offer(datagram)) {
+                Log.w(TAG, "Receive queue full, dropped datagram from " + source);
+                datagram.mSource = null;
+                mSpare.offer(datagram);
+            }
+        }
+    }
+
+    /** Copy of a received datagram queued for {@link Endpoint#receive}. */
+    private static final class Datagram {
+        final ByteBuffer mBuffer = ByteBuffer.allocateDirect(SyncConstants.DATAGRAM_BUFFER_SIZE);
+        InetSocketAddress mSource;
+    }
+}
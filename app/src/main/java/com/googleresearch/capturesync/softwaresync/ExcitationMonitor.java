@@ -0,0 +1,157 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import com.googleresearch.capturesync.GyroView;
+
+/**
+ * Judges whether a gyro recording holds enough informative motion for time sync.
+ *
+ * <p>The last {@code windowSize} angular velocity norms are checked after every batch: their mean
+ * energy must reach a threshold, so that sensor noise of a phone at rest does not count, and the
+ * spectral flatness of the norms within the hand motion band must reach another one, since
+ * periodic shaking gives a cross-correlation with several peaks of similar height. The time
+ * covered by batches that pass both checks is accumulated as excited time.
+ *
+ * <p>Instances are not thread-safe.
+ */
+final class ExcitationMonitor {
+    /** Band of the spectral flatness check, hand motion hardly reaches above it. */
+    private static final double MIN_MOTION_HZ = 1.0;
+    private static final double MAX_MOTION_HZ = 20.0;
+
+    private final int mWindowSize;
+    private final double mMinEnergy;
+    private final double mMinFlatness;
+    private final CrossCorrelation mSpectrum = new CrossCorrelation();
+
+    /** Norms of the last mWindowSize samples, circular. */
+    private final double[] mNorms;
+    private final double[] mWindowed;
+    private final double[] mPower;
+    private long mCount;
+    private long mFirstTimestampNs;
+    private long mLastTimestampNs;
+
+    private double mEnergy;
+    private double mFlatness;
+    private long mExcitedNs;
+
+    /**
+     * @param windowSize samples checked after every batch, a power of two.
+     * @param minEnergy mean squared angular velocity norm of an excited window, (rad/s)^2.
+     * @param minFlatness spectral flatness of an excited window within the motion band, in [0, 1].
+     */
+    ExcitationMonitor(int windowSize, double minEnergy, double minFlatness) {
+        if (windowSize < 2 || Integer.bitCount(windowSize) != 1) {
+            throw new IllegalArgumentException("Window size must be a power of two: " + windowSize);
+        }
+        mWindowSize = windowSize;
+        mMinEnergy = minEnergy;
+        mMinFlatness = minFlatness;
+        mNorms = new double[windowSize];
+        mWindowed = new double[windowSize];
+        mPower = new double[windowSize / 2 + 1];
+    }
+
+    /** Appends a batch of samples and checks the window ending with it. */
+    void add(GyroView batch) {
+        if (batch.size() == 0) {
+            return;
+        }
+        long batchStartNs = mCount == 0 ? batch.timestampNs(0) : mLastTimestampNs;
+        for (int i = 0; i < batch.size(); i++) {
+            double x = batch.x(i);
+            double y = batch.y(i);
+            double z = batch.z(i);
+            mNorms[(int) (mCount % mWindowSize)] = Math.sqrt(x * x + y * y + z * z);
+            if (mCount == 0) {
+                mFirstTimestampNs = batch.timestampNs(i);
+            }
+            mCount++;
+        }
+        mLastTimestampNs = batch.timestampNs(batch.size() - 1);
+        if (mCount < mWindowSize) {
+            return;
+        }
+        checkWindow();
+        if (isWindowExcited()) {
+            mExcitedNs += mLastTimestampNs - batchStartNs;
+        }
+    }
+
+    /** Time covered by excited batches so far. */
+    long excitedNs() {
+        return mExcitedNs;
+    }
+
+    /** Mean squared norm of the last checked window. */
+    double energy() {
+        return mEnergy;
+    }
+
+    /** Spectral flatness of the last checked window. */
+    double flatness() {
+        return mFlatness;
+    }
+
+    boolean isWindowExcited() {
+        return mEnergy >= mMinEnergy && mFlatness >= mMinFlatness;
+    }
+
+    private void checkWindow() {
+        int start = (int) (mCount % mWindowSize);
+        double sum = 0.0;
+        double squares = 0.0;
+        for (int i = 0; i < mWindowSize; i++) {
+            double norm = mNorms[(start + i) % mWindowSize];
+            mWindowed[i] = norm;
+            sum += norm;
+            squares += norm * norm;
+        }
+        mEnergy = squares / mWindowSize;
+
+        // Hann window of the mean-removed norms, so that leakage does not fill the band.
+        double mean = sum / mWindowSize;
+        for (int i = 0; i < mWindowSize; i++) {
+            double hann = 0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / (mWindowSize - 1));
+            mWindowed[i] = (mWindowed[i] - mean) * hann;
+        }
+        mSpectrum.powerSpectrum(mWindowed, mWindowSize, mPower);
+
+        // Bin k is k / (size * dt) Hz, dt from the mean sample period so far.
+        double dt = (mLastTimestampNs - mFirstTimestampNs) / 1e9 / (mCount - 1);
+        double binHz = 1.0 / (mWindowSize * dt);
+        int fromBin = Math.max(1, (int) Math.ceil(MIN_MOTION_HZ / binHz));
+        int toBin = Math.min(mWindowSize / 2, (int) Math.floor(MAX_MOTION_HZ / binHz));
+        if (toBin <= fromBin) {
+            mFlatness = 0.0;
+            return;
+        }
+        // Geometric over arithmetic mean of the band power, 1 for white noise.
+        double logSum = 0.0;
+        double powerSum = 0.0;
+        for (int k = fromBin; k <= toBin; k++) {
+            double power = Math.max(mPower[k], Double.MIN_NORMAL);
+            logSum += Math.log(power);
+            powerSum += power;
+        }
+        int bins = toBin - fromBin + 1;
+        mFlatness = Math.exp(logSum / bins) / (powerSum / bins);
+    }
+}
@@ -16,44 +16,96 @@
 
 package com.googleresearch.capturesync.softwaresync;
 
-import android.annotation.TargetApi;
 import android.media.AudioManager;
 import android.media.ToneGenerator;
-import android.os.Build;
 import android.util.Log;
-import android.util.Pair;
 import android.widget.Toast;
 
 import com.googleresearch.capturesync.Constants;
+import com.googleresearch.capturesync.GyroBinaryFormat;
+import com.googleresearch.capturesync.GyroCodec;
+import com.googleresearch.capturesync.GyroRingBuffer;
+import com.googleresearch.capturesync.GyroSeries;
+import com.googleresearch.capturesync.GyroView;
 import com.googleresearch.capturesync.MainActivity;
 import com.googleresearch.capturesync.RawSensorInfo;
-import com.googleresearch.capturesync.ReadFromFile;
 
-import java.io.File;
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 /**
  * IMU time sync class, is used to synchronize device local clocks.
  * The synchronization algorithm itself should be running on server,
  * the class only exchanges information with it and handles offset receiving
  *
- * <p>Provides a doTimeSync function allowing the leader to initiate synchronization with a client
- * address. The ImuTimeSyncListener executes the client side.
+ * <p>Provides a doTimeSync function allowing the leader to initiate synchronization with clients.
+ * The ImuTimeSyncListener executes the client side.
+ *
+ * <p>Both leader and clients keep the last {@link Constants#GYRO_HISTORY_MILLIS} of gyro samples
+ * in memory, so the leader only has to tell the clients which window it wants. A retroactive sync
+ * request uses the window that has just passed and does not wait for a new recording.
+ *
+ * <p>Clients synced together share one window: they all record at once and stream their samples
+ * concurrently while recording, over their {@link DataChannel} (or a connection to the sync port
+ * for clients without one), so their delays are estimated in parallel
+ * right after the recording stops and a sync of the whole rig takes about one recording period.
+ * While recording, an {@link OnlineDelayEstimator} per client follows the streamed samples and an
+ * {@link ExcitationMonitor} follows the leader motion, the recording stops early once all
+ * estimates have settled or enough motion has been recorded and is extended while motion is weak.
  */
 public class ImuTimeSync extends TimeSyncProtocol {
     private static final String TAG = "ImuTimeSync";
     private final ExecutorService mTimeSyncExecutor = Executors.newSingleThreadExecutor();
+    /** Accepts connections of clients without a data channel while a sync is running. */
+    private final ExecutorService mAcceptExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mEstimationExecutor = Executors.newFixedThreadPool(Math.max(
+            1, Math.min(SyncConstants.GYRO_SYNC_MAX_ESTIMATORS,
+                    Runtime.getRuntime().availableProcessors())
+    ));
     private final MainActivity mContext;
-    private final FileTransferUtils mFileUtils;
+    private final RawSensorInfo mRecorder;
+    private final DataChannels mDataChannels;
+    /** Gyro uploads opened by clients, over their data channel or their own connection. */
+    private final BlockingQueue<Upload> mIncomingUploads = new LinkedBlockingQueue<>();
+
+    private volatile boolean mUseNativeEngine;
+    private final NativeTimeSyncEngine mNativeEngine = new NativeTimeSyncEngine(false);
+    /** The Java engine keeps work buffers, so each estimation thread gets its own. */
+    private final ThreadLocal<JavaTimeSyncEngine> mJavaEngines = new ThreadLocal<JavaTimeSyncEngine>() {
+        @Override
+        protected JavaTimeSyncEngine initialValue() {
+            JavaTimeSyncEngine engine = new JavaTimeSyncEngine(false);
+            engine.setMaxLag(SyncConstants.MAX_GYRO_SYNC_LAG_MILLIS / 1e3);
+            engine.setPyramid(
+                    SyncConstants.GYRO_SYNC_PYRAMID_LEVELS, SyncConstants.GYRO_SYNC_PYRAMID_FACTOR
+            );
+            return engine;
+        }
+    };
 
     @Override
     protected ExecutorService getTimeSyncExecutor() {
@@ -61,103 +113,524 @@ public class ImuTimeSync extends TimeSyncProtocol {
     }
 
     public ImuTimeSync(
-            Ticker localClock, DatagramSocket timeSyncSocket, int timeSyncPort, SoftwareSyncLeader leader, MainActivity context) {
+            Ticker localClock, DatagramTransport.Endpoint timeSyncSocket, int timeSyncPort,
+            SoftwareSyncLeader leader, MainActivity context) {
         super(localClock, timeSyncSocket, timeSyncPort, leader);
         mContext = context;
-        mFileUtils = new FileTransferUtils(context);
+        mDataChannels = leader.getDataChannels();
+        mDataChannels.setHandler(
+                SyncConstants.DATA_STREAM_GYRO_UPLOAD,
+                stream -> mIncomingUploads.add(new Upload(
+                        stream.getRemoteAddress(), stream.getInputStream(), stream
+                ))
+        );
+        mRecorder = new RawSensorInfo(context, leader.getName(), GyroRingBuffer.capacityFor(
+                Constants.GYRO_PERIOD_US, Constants.GYRO_HISTORY_MILLIS
+        ));
+        mRecorder.enableSensors(Constants.GYRO_PERIOD_US);
+        mRecorder.startCapture();
+        mNativeEngine.setMaxLag(SyncConstants.MAX_GYRO_SYNC_LAG_MILLIS / 1e3);
+        setUseNativeEngine(Constants.PREFER_NATIVE_TIME_SYNC);
+    }
+
+    /**
+     * Selects the native or the Java time sync engine for the following syncs. The native engine
+     * is only used if its library is available and no pyramid search is configured
+     * ({@link SyncConstants#GYRO_SYNC_PYRAMID_LEVELS}), since only the Java engine has one.
+     *
+     * @return whether the native engine is used.
+     */
+    public boolean setUseNativeEngine(boolean useNative) {
+        boolean pyramid = SyncConstants.GYRO_SYNC_PYRAMID_LEVELS > 1;
+        if (useNative && pyramid) {
+            Log.i(TAG, "Native time sync has no pyramid search, "
+                    + SyncConstants.GYRO_SYNC_PYRAMID_LEVELS + " levels are configured");
+        }
+        mUseNativeEngine = useNative && !pyramid && NativeTimeSyncEngine.isAvailable();
+        Log.d(TAG, "Using " + (mUseNativeEngine ? "native" : "Java") + " time sync engine");
+        return mUseNativeEngine;
+    }
+
+    /**
+     * Same as {@link #submitNewSyncRequest(InetAddress)}, a retroactive request syncs on the
+     * samples recorded during the last {@link SyncConstants#SENSOR_REC_PERIOD_MILLIS} instead of
+     * recording a new window.
+     */
+    void submitNewSyncRequest(final InetAddress clientAddress, boolean retroactive) {
+        submitNewSyncRequest(Collections.singletonList(clientAddress), retroactive);
     }
 
     /**
-     *  Is executed on leader smartphone,
-     *  exchanges information with gyro sync algorithm
-     *  which is executed on PC. Returns calculated offset.
+     * Syncs the clients on one shared gyro window. Clients that already have a sync queued are
+     * skipped.
      */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    void submitNewSyncRequest(Collection<InetAddress> clientAddresses, boolean retroactive) {
+        final List<InetAddress> clients = new ArrayList<>();
+        synchronized (mClientSyncTasksLock) {
+            for (InetAddress clientAddress : clientAddresses) {
+                if (mClientSyncTasks.add(clientAddress)) {
+                    clients.add(clientAddress);
+                } else {
+                    Log.w(TAG, "Already queued sync with " + clientAddress + ", skipping.");
+                }
+            }
+        }
+        if (clients.isEmpty()) {
+            return;
+        }
+        mTimeSyncExecutor.submit(() -> {
+            List<InetAddress> present = new ArrayList<>();
+            for (InetAddress clientAddress : clients) {
+                // If the client no longer exists, no need to synchronize.
+                if (mLeader.getClients().containsKey(clientAddress)) {
+                    present.add(clientAddress);
+                } else {
+                    Log.w(TAG, "Client " + clientAddress + " was removed, skipping its sync.");
+                    applyTimeSyncResponse(clientAddress, TimeSyncOffsetResponse.create(0, 0, false));
+                }
+            }
+            Map<InetAddress, TimeSyncOffsetResponse> responses = doTimeSync(present, retroactive);
+            for (Map.Entry<InetAddress, TimeSyncOffsetResponse> entry : responses.entrySet()) {
+                applyTimeSyncResponse(entry.getKey(), entry.getValue());
+            }
+        });
+    }
+
     @Override
     protected TimeSyncOffsetResponse doTimeSync(InetAddress clientAddress) {
+        return doTimeSync(Collections.singletonList(clientAddress), false).get(clientAddress);
+    }
+
+    /**
+     *  Is executed on leader smartphone, collects the client gyro samples
+     *  of the sync window and runs gyro sync algorithm. Returns calculated offsets,
+     *  in the order of clients.
+     */
+    private Map<InetAddress, TimeSyncOffsetResponse> doTimeSync(
+            List<InetAddress> clientAddresses, boolean retroactive) {
+        Map<InetAddress, TimeSyncOffsetResponse> responses = new LinkedHashMap<>();
+        for (InetAddress clientAddress : clientAddresses) {
+            responses.put(clientAddress, TimeSyncOffsetResponse.create(0, 0, false));
+        }
+        if (clientAddresses.isEmpty()) {
+            return responses;
+        }
+
+        final long windowLengthNs = TimeUtils.millisToNanos(SyncConstants.SENSOR_REC_PERIOD_MILLIS);
+        long windowEndNs = mLocalClock.read();
+        long windowStartNs = windowEndNs - windowLengthNs;
+        if (retroactive && mRecorder.getOldestCapturedTimestampNs() > windowStartNs) {
+            Log.w(TAG, "Not enough gyro history for a retroactive sync, recording a new window");
+            retroactive = false;
+        }
+
+        // Uploads left over from an earlier sync that timed out.
+        for (Upload stale = mIncomingUploads.poll(); stale != null;
+                stale = mIncomingUploads.poll()) {
+            stale.close();
+        }
+        boolean allOnDataChannels = true;
+        for (InetAddress clientAddress : clientAddresses) {
+            allOnDataChannels &= mDataChannels.get(clientAddress) != null;
+        }
+
+        // Every upload is read while recording, so each client being synced gets a reader.
+        ExecutorService readers = Executors.newFixedThreadPool(clientAddresses.size());
         // TODO: move sound of start and stop recording to VIEW somehow?
         ToneGenerator beep = new ToneGenerator(AudioManager.STREAM_ALARM, 100);
-        byte[] bufferStart = ByteBuffer.allocate(SyncConstants.RPC_BUFFER_SIZE).putInt(
-                SyncConstants.METHOD_MSG_START_RECORDING
-        ).array();
-        byte[] bufferStop = ByteBuffer.allocate(SyncConstants.RPC_BUFFER_SIZE).putInt(
-                SyncConstants.METHOD_MSG_STOP_RECORDING
-        ).array();
-        File gyroFileClient;
-        RawSensorInfo recorder = new RawSensorInfo(mContext);
-        DatagramPacket packetStart = new DatagramPacket(bufferStart, bufferStart.length, clientAddress, mTimeSyncPort);
-        try (
-                ServerSocket recServerSocket = new ServerSocket(mTimeSyncPort)
-        ) {
-            mTimeSyncSocket.send(packetStart);
-            Log.d(TAG, "Sent packet start recording to client, recording...");
-
-            recorder.enableSensors(Constants.GYRO_PERIOD_US);
-            String timeStamp = new SimpleDateFormat("dd.MM.HH.mm.ss").format(new Date());
-            recorder.startRecording(mContext, Constants.LOCAL_SENSOR_DIR, timeStamp);
-            // Recording process
-            Log.d(TAG, "Started recording");
-            beep.startTone(ToneGenerator.TONE_CDMA_PIP,150);
-
-            Thread.sleep(SyncConstants.SENSOR_REC_PERIOD_MILLIS);
-            recorder.stopRecording();
-            recorder.disableSensors();
-            Log.d(TAG, "Stopped recording");
-            beep.startTone(ToneGenerator.TONE_CDMA_PIP,150);
-
-            Log.d(TAG, "Sent stop recording packet to client");
-
-            // Accept file
-            Log.d(TAG, "Connecting to Client...");
-            Socket receiveSocket = recServerSocket.accept();
-            Log.d(TAG, "Connected to Client...");
-            gyroFileClient = mFileUtils.receiveFile("gyro_client.csv", receiveSocket);
-
-            // Send files to PC
-            File gyroFileLeader = new File(recorder.getLastGyroPath());
-            return doGyroSyncInLibrary(
-                    gyroFileClient, gyroFileLeader
-            );
+        // Clients without a data channel connect to the sync port instead.
+        ServerSocket recServerSocket = null;
+        try {
+            if (!allOnDataChannels) {
+                recServerSocket = openUploadServerSocket();
+            }
+            Map<InetAddress, Upload> uploads;
+            ByteBuffer stopMessage = null;
+            if (!retroactive) {
+                sendToAll(
+                        ByteBuffer.allocate(SyncConstants.RPC_BUFFER_SIZE)
+                                .putInt(SyncConstants.METHOD_MSG_START_RECORDING)
+                                .putInt(GyroCodec.SUPPORTED_CODECS),
+                        clientAddresses
+                );
+                Log.d(TAG, "Sent packet start recording to "
+                        + clientAddresses.size() + " clients, recording...");
+
+                // Recording process
+                windowStartNs = mLocalClock.read();
+                Log.d(TAG, "Started recording");
+                beep.startTone(ToneGenerator.TONE_CDMA_PIP,150);
+
+                // Clients connect right away and stream their samples while recording.
+                Map<InetAddress, OnlineDelayEstimator> estimators = new HashMap<>();
+                for (InetAddress clientAddress : clientAddresses) {
+                    estimators.put(clientAddress, newOnlineEstimator());
+                }
+                uploads = acceptUploads(clientAddresses, estimators, readers);
+                estimators.keySet().retainAll(uploads.keySet());
+                recordAdaptively(windowStartNs, estimators);
+                windowEndNs = mLocalClock.read();
+                stopMessage = ByteBuffer.allocate(SyncConstants.RPC_BUFFER_SIZE)
+                        .putInt(SyncConstants.METHOD_MSG_STOP_RECORDING);
+                sendToAll(stopMessage, clientAddresses);
+                Log.d(TAG, "Stopped recording");
+                beep.startTone(ToneGenerator.TONE_CDMA_PIP,150);
+            } else {
+                Log.d(TAG, "Using retroactive sync window");
+                // Ask the clients for their samples of the window.
+                sendToAll(
+                        ByteBuffer.allocate(SyncConstants.RPC_BUFFER_SIZE)
+                                .putInt(SyncConstants.METHOD_MSG_REQUEST_GYRO_WINDOW)
+                                .putLong(windowStartNs)
+                                .putLong(windowEndNs)
+                                .putLong(mLocalClock.read())
+                                .putInt(GyroCodec.SUPPORTED_CODECS),
+                        clientAddresses
+                );
+                Log.d(TAG, "Sent gyro window request to clients");
+                uploads = acceptUploads(
+                        clientAddresses,
+                        Collections.<InetAddress, OnlineDelayEstimator>emptyMap(),
+                        readers
+                );
+            }
+
+            GyroSeries gyroLeader = mRecorder.getCapturedSeries(windowStartNs, windowEndNs);
+            if (Constants.SAVE_GYRO_CSV) {
+                String timeStamp = new SimpleDateFormat("dd.MM.HH.mm.ss").format(new Date());
+                mRecorder.exportSeries(mContext, Constants.LOCAL_SENSOR_DIR, timeStamp, gyroLeader);
+            }
+
+            // Each estimation starts as soon as its client stream is closed.
+            Map<InetAddress, Future<TimeSyncOffsetResponse>> estimations = new HashMap<>();
+            for (Upload upload : uploads.values()) {
+                estimations.put(upload.mClientAddress, mEstimationExecutor.submit(
+                        estimateOffset(upload.mClientAddress, upload.mSeries, gyroLeader)
+                ));
+            }
+            drainUploads(uploads.values(), stopMessage);
+            long deadlineNs = System.nanoTime()
+                    + TimeUtils.millisToNanos(SyncConstants.GYRO_SYNC_ESTIMATION_TIMEOUT_MILLIS);
+            for (Map.Entry<InetAddress, Future<TimeSyncOffsetResponse>> estimation
+                    : estimations.entrySet()) {
+                try {
+                    responses.put(estimation.getKey(), estimation.getValue().get(
+                            Math.max(0, deadlineNs - System.nanoTime()), TimeUnit.NANOSECONDS
+                    ));
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Sync with " + estimation.getKey() + " failed: " + e.getCause());
+                } catch (TimeoutException e) {
+                    Log.e(TAG, "Sync with " + estimation.getKey() + " timed out");
+                    estimation.getValue().cancel(true);
+                }
+            }
         } catch (IOException | InterruptedException e) {
-            showMessageOnUi("Sync failed: couldn't collect sensor files");
+            showMessageOnUi("Sync failed: couldn't collect sensor data");
             e.printStackTrace();
-            return TimeSyncOffsetResponse.create(0, 0, false);
         } finally {
+            if (recServerSocket != null) {
+                try {
+                    recServerSocket.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing gyro upload server socket: " + e);
+                }
+            }
+            readers.shutdownNow();
             beep.release();
-            if (recorder.isRecording()) {
-                recorder.stopRecording();
-                recorder.disableSensors();
+        }
+        return responses;
+    }
+
+    private static OnlineDelayEstimator newOnlineEstimator() {
+        return new OnlineDelayEstimator(
+                (int) (SyncConstants.MAX_GYRO_SYNC_LAG_MILLIS * 1000 / Constants.GYRO_PERIOD_US),
+                SyncConstants.ONLINE_SYNC_TOLERANCE_NS / 1e9,
+                SyncConstants.ONLINE_SYNC_MIN_CONFIDENCE,
+                SyncConstants.ONLINE_SYNC_STABLE_BATCHES
+        );
+    }
+
+    /**
+     * Feeds the leader samples to the excitation monitor and the online estimators after every
+     * stream batch and decides when to stop recording. After
+     * {@link SyncConstants#MIN_SENSOR_REC_PERIOD_MILLIS} the recording stops once the estimates of
+     * all streaming clients have converged or once {@link SyncConstants#TARGET_EXCITED_MILLIS} of
+     * informative motion have been recorded. Otherwise it is extended up to
+     * {@link SyncConstants#MAX_SENSOR_REC_PERIOD_MILLIS}.
+     */
+    private void recordAdaptively(
+            long windowStartNs, Map<InetAddress, OnlineDelayEstimator> estimators)
+            throws InterruptedException {
+        ExcitationMonitor excitation = new ExcitationMonitor(
+                SyncConstants.EXCITATION_WINDOW_SAMPLES,
+                SyncConstants.MIN_EXCITATION_ENERGY,
+                SyncConstants.MIN_EXCITATION_FLATNESS
+        );
+        long fedUntilNs = windowStartNs;
+        while (!estimators.isEmpty()) {
+            long elapsedMillis = (mLocalClock.read() - windowStartNs) / 1_000_000;
+            if (elapsedMillis >= SyncConstants.MAX_SENSOR_REC_PERIOD_MILLIS) {
+                Log.w(TAG, "Weak motion, stopping recording at the maximum length");
+                return;
+            }
+            Thread.sleep(Math.min(SyncConstants.GYRO_STREAM_BATCH_MILLIS,
+                    SyncConstants.MAX_SENSOR_REC_PERIOD_MILLIS - elapsedMillis));
+
+            GyroSeries batch = mRecorder.getCapturedSeries(fedUntilNs, Long.MAX_VALUE);
+            if (batch.size() > 0) {
+                fedUntilNs = batch.lastTimestampNs() + 1;
+            }
+            excitation.add(batch);
+            boolean converged = true;
+            for (Map.Entry<InetAddress, OnlineDelayEstimator> entry : estimators.entrySet()) {
+                entry.getValue().addSecond(batch, 0);
+                OnlineDelayEstimator.Estimate estimate = entry.getValue().estimate();
+                Log.d(TAG, "Online estimate for " + entry.getKey() + ": " + estimate);
+                converged &= estimate.isConverged();
+            }
+            if (mLocalClock.read() - windowStartNs
+                    < TimeUtils.millisToNanos(SyncConstants.MIN_SENSOR_REC_PERIOD_MILLIS)) {
+                continue;
+            }
+            if (converged) {
+                Log.d(TAG, "Online estimates converged, stopping recording early");
+                return;
+            }
+            if (excitation.excitedNs()
+                    >= TimeUtils.millisToNanos(SyncConstants.TARGET_EXCITED_MILLIS)) {
+                Log.d(TAG, "Enough motion recorded, stopping recording");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for the clients to close their uploads. Stop recording is resent every
+     * {@link SyncConstants#GYRO_STOP_RESEND_MILLIS} to the clients still streaming, since they
+     * keep streaming if the datagram is lost. Uploads still open
+     * {@link SyncConstants#GYRO_UPLOAD_DRAIN_MILLIS} later are closed, which fails their reads.
+     *
+     * @param stopMessage stop recording message, null if the uploads end by themselves.
+     */
+    private void drainUploads(Collection<Upload> uploads, ByteBuffer stopMessage)
+            throws IOException, InterruptedException {
+        long deadlineNs = System.nanoTime()
+                + TimeUtils.millisToNanos(SyncConstants.GYRO_UPLOAD_DRAIN_MILLIS);
+        while (true) {
+            List<Upload> open = new ArrayList<>();
+            for (Upload upload : uploads) {
+                if (!upload.mSeries.isDone()) {
+                    open.add(upload);
+                }
+            }
+            if (open.isEmpty()) {
+                return;
+            }
+            long remainingNs = deadlineNs - System.nanoTime();
+            if (remainingNs <= 0) {
+                for (Upload upload : open) {
+                    Log.w(TAG, "Gyro upload of " + upload.mClientAddress + " did not end, closing");
+                    upload.close();
+                }
+                return;
+            }
+            Thread.sleep(Math.min(SyncConstants.GYRO_STOP_RESEND_MILLIS,
+                    TimeUnit.NANOSECONDS.toMillis(remainingNs) + 1));
+            if (stopMessage == null) {
+                continue;
+            }
+            for (Upload upload : open) {
+                if (!upload.mSeries.isDone()) {
+                    Log.d(TAG, "Resending stop recording to " + upload.mClientAddress);
+                    sendMessage(stopMessage, upload.mClientAddress);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the server socket of clients without a data channel and queues their connections
+     * as uploads until it is closed.
+     */
+    private ServerSocket openUploadServerSocket() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket(mTimeSyncPort);
+        mAcceptExecutor.execute(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setSoTimeout(SyncConstants.GYRO_UPLOAD_READ_TIMEOUT_MILLIS);
+                    mIncomingUploads.add(
+                            new Upload(socket.getInetAddress(), socket.getInputStream(), socket)
+                    );
+                } catch (IOException e) {
+                    // Closed at the end of the sync.
+                }
+            }
+        });
+        return serverSocket;
+    }
+
+    /**
+     * Takes one gyro upload per client until all clients have connected or the upload timeout
+     * expires. Uploads are read concurrently on readers, each into an in-memory series, until the
+     * client closes its stream. Samples of clients with an online estimator are fed to it as they
+     * arrive.
+     */
+    private Map<InetAddress, Upload> acceptUploads(
+            List<InetAddress> clientAddresses, Map<InetAddress, OnlineDelayEstimator> estimators,
+            ExecutorService readers) throws InterruptedException {
+        Map<InetAddress, Upload> uploads = new HashMap<>();
+        long deadlineNs = System.nanoTime()
+                + TimeUtils.millisToNanos(SyncConstants.GYRO_UPLOAD_TIMEOUT_MILLIS);
+        while (uploads.size() < clientAddresses.size()) {
+            long remainingNs = deadlineNs - System.nanoTime();
+            final Upload upload = remainingNs > 0
+                    ? mIncomingUploads.poll(remainingNs, TimeUnit.NANOSECONDS) : null;
+            if (upload == null) {
+                break;
+            }
+            InetAddress clientAddress = upload.mClientAddress;
+            if (!clientAddresses.contains(clientAddress) || uploads.containsKey(clientAddress)) {
+                Log.w(TAG, "Unexpected gyro upload from " + clientAddress + ", closing.");
+                upload.close();
+                continue;
+            }
+            Log.d(TAG, "Connected to client " + clientAddress);
+            final OnlineDelayEstimator estimator = estimators.get(clientAddress);
+            uploads.put(clientAddress, upload);
+            upload.mSeries = readers.submit(() -> {
+                try (Upload received = upload) {
+                    GyroBinaryFormat.Reader reader = new GyroBinaryFormat.Reader(
+                            Channels.newChannel(received.mInput)
+                    );
+                    reader.readHeader();
+                    GyroSeries.Builder series = new GyroSeries.Builder();
+                    int fed = 0;
+                    while (reader.read(series) >= 0) {
+                        if (estimator != null) {
+                            estimator.addFirst(series, fed);
+                            fed = series.size();
+                        }
+                    }
+                    return series.build();
+                }
+            });
+        }
+        if (uploads.size() < clientAddresses.size()) {
+            Log.w(TAG, "Only " + uploads.size() + " of " + clientAddresses.size()
+                    + " clients uploaded gyro samples in time");
+        }
+        return uploads;
+    }
+
+    /** Gyro samples a client is sending, read until the client closes the stream. */
+    private static final class Upload implements Closeable {
+        final InetAddress mClientAddress;
+        final InputStream mInput;
+        private final Closeable mResource;
+        /** Samples read from the upload, set once it is accepted. */
+        Future<GyroSeries> mSeries;
+
+        Upload(InetAddress clientAddress, InputStream input, Closeable resource) {
+            mClientAddress = clientAddress;
+            mInput = input;
+            mResource = resource;
+        }
+
+        @Override
+        public void close() {
+            try {
+                mResource.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing gyro upload of " + mClientAddress + ": " + e);
             }
         }
     }
 
+    private Callable<TimeSyncOffsetResponse> estimateOffset(
+            InetAddress clientAddress, Future<GyroSeries> upload, GyroSeries gyroLeader) {
+        return () -> {
+            GyroSeries gyroClient;
+            try {
+                gyroClient = upload.get();
+            } catch (ExecutionException e) {
+                showMessageOnUi("Sync failed: couldn't collect sensor data of " + clientAddress);
+                Log.e(TAG, "Gyro upload from " + clientAddress + " failed: " + e.getCause());
+                return TimeSyncOffsetResponse.create(0, 0, false);
+            }
+            return doGyroSyncInLibrary(gyroClient, gyroLeader);
+        };
+    }
+
     /**
-     * Computes offset in library
+     * Sends the message to the clients. When no other client is connected and the leader
+     * interface has a broadcast address, a single broadcast datagram reaches all of them at once.
+     * Otherwise, or if the broadcast fails, each client is sent its own datagram.
+     */
+    private void sendToAll(ByteBuffer message, List<InetAddress> clientAddresses)
+            throws IOException {
+        InetAddress broadcast = mLeader.getBroadcastAddress();
+        if (broadcast != null && clientAddresses.size() > 1
+                && includesAllClients(clientAddresses)) {
+            try {
+                sendMessage(message, broadcast);
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "Broadcast to " + broadcast + " failed, sending to each client: " + e);
+            }
+        }
+        for (InetAddress clientAddress : clientAddresses) {
+            sendMessage(message, clientAddress);
+        }
+    }
+
+    /** Whether every connected client is among the addresses, so a broadcast reaches no other. */
+    private boolean includesAllClients(List<InetAddress> clientAddresses) {
+        ClientRegistry.Snapshot clients = mLeader.getClientSnapshot();
+        for (int i = 0; i < clients.size(); i++) {
+            if (!clientAddresses.contains(clients.get(i).address())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void sendMessage(ByteBuffer message, InetAddress clientAddress) throws IOException {
+        mTimeSyncSocket.send(
+                message.array(), 0, message.position(), clientAddress, mTimeSyncPort
+        );
+    }
+
+    /**
+     * Computes offset with the selected time sync engine. Accepts any gyro view, e.g. in-memory series or
+     * a {@link com.googleresearch.capturesync.MappedGyroLog} of a recording.
      * @return
      */
     private TimeSyncOffsetResponse doGyroSyncInLibrary(
-            File gyroFileClient,
-            File gyroFileLeader
+            GyroView gyroClient,
+            GyroView gyroLeader
     ) {
-        Pair<double[][], double[]> clientPair;
-        Pair<double[][], double[]> leaderPair;
-        try {
-            clientPair = ReadFromFile.readFromCSV(gyroFileClient);
-            leaderPair = ReadFromFile.readFromCSV(gyroFileLeader);
-        } catch (IOException exception) {
-            exception.printStackTrace();
-            showMessageOnUi("Sync failed: couldn't read files");
-            Log.e(TAG, "Failed to read files");
+        if (gyroClient.size() < 2 || gyroLeader.size() < 2) {
+            showMessageOnUi("Sync failed: not enough gyro samples");
+            Log.e(TAG, "Not enough gyro samples: client " + gyroClient.size()
+                    + ", leader " + gyroLeader.size());
             return TimeSyncOffsetResponse.create(0, 0, false);
         }
-
-        TimeSync timeSync = new TimeSync(clientPair.first, leaderPair.first, clientPair.second, leaderPair.second, false);
-        timeSync.resample(1.0);
-        timeSync.obtainDelay();
-        double offsetS = timeSync.getTimeDelay();
+        TimeSyncEngine engine = mUseNativeEngine ? mNativeEngine : mJavaEngines.get();
+        long startNs = System.nanoTime();
+        double offsetS = engine.getTimeDelay(gyroClient, gyroLeader, 1.0);
+        Log.d(TAG, String.format("Gyro sync of %d and %d samples took %.1f ms",
+                gyroClient.size(), gyroLeader.size(), (System.nanoTime() - startNs) / 1e6));
+        if (engine instanceof JavaTimeSyncEngine) {
+            for (JavaTimeSyncEngine.Stage stage : ((JavaTimeSyncEngine) engine).getStages()) {
+                Log.d(TAG, "Gyro sync stage " + stage);
+            }
+        }
 
         showMessageOnUi("Sync successful: Received offset from library: " + offsetS + " seconds");
         Log.d(TAG, "Success! Received offset from server: " + offsetS + " seconds");
-        return TimeSyncOffsetResponse.create(Double.valueOf(offsetS * 10e9).longValue(), 0, true);
+        return TimeSyncOffsetResponse.create(TimeUtils.secondsToNanos(offsetS), 0, true);
     }
 
     private void showMessageOnUi(String message) {
@@ -165,4 +638,13 @@ public class ImuTimeSync extends TimeSyncProtocol {
                 () -> Toast.makeText(mContext, message, Toast.LENGTH_LONG).show()
         );
     }
+
+    @Override
+    public void close() {
+        super.close();
+        mAcceptExecutor.shutdownNow();
+        mEstimationExecutor.shutdownNow();
+        mRecorder.stopCapture();
+        mRecorder.disableSensors();
+    }
 }
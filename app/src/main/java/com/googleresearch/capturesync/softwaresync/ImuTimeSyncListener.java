@@ -20,39 +20,52 @@ import android.content.Context;
 import android.util.Log;
 
 import com.googleresearch.capturesync.Constants;
+import com.googleresearch.capturesync.GyroBinaryFormat;
+import com.googleresearch.capturesync.GyroCodec;
+import com.googleresearch.capturesync.GyroRingBuffer;
+import com.googleresearch.capturesync.GyroSeries;
 import com.googleresearch.capturesync.RawSensorInfo;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * IMU time sync listener thread, executes client side
- * of the synchronization procedure (waits for the message
- * to start recording from the leader, then records gyroscope
- * events and sends the result to the leader).
+ * of the synchronization procedure (keeps recording gyroscope
+ * events in memory, streams them to the leader while the leader records
+ * or sends a past window of them on request).
  */
 public class ImuTimeSyncListener extends Thread {
     private static final String TAG = "ImuTimeSyncListener";
     private boolean running;
-    private final DatagramSocket imuTimeSyncSocket;
+    private final DatagramTransport.Endpoint imuTimeSyncSocket;
     private final int imuTimeSyncPort;
     private final Ticker localClock;
     private final Context mContext;
-    private final FileTransferUtils mFileUtils;
+    private final String mDeviceId;
+    private final DataChannels mDataChannels;
+    private RawSensorInfo mRecorder;
+    private GyroStreamer mStreamer;
 
-    public ImuTimeSyncListener(Ticker localClock, DatagramSocket imuTimeSyncSocket, int imuTimeSyncPort, Context context) {
+    public ImuTimeSyncListener(
+            Ticker localClock, DatagramTransport.Endpoint imuTimeSyncSocket, int imuTimeSyncPort,
+            Context context, String deviceId, DataChannels dataChannels) {
         this.localClock = localClock;
         this.imuTimeSyncSocket = imuTimeSyncSocket;
         this.imuTimeSyncPort = imuTimeSyncPort;
         this.mContext = context;
-        mFileUtils = new FileTransferUtils(context);
+        this.mDeviceId = deviceId;
+        this.mDataChannels = dataChannels;
     }
 
     public void stopRunning() {
@@ -66,19 +79,41 @@ public class ImuTimeSyncListener extends Thread {
         Log.w(TAG, "Starting IMU Time Sync Listener thread.");
         final int longSize = Long.SIZE / Byte.SIZE;
 
-        byte[] buf = new byte[longSize * 3];
+        byte[] buf = new byte[SyncConstants.SNTP_BUFFER_SIZE];
 
-        RawSensorInfo recorder = new RawSensorInfo(mContext);
+        mRecorder = new RawSensorInfo(mContext, mDeviceId, GyroRingBuffer.capacityFor(
+                Constants.GYRO_PERIOD_US, Constants.GYRO_HISTORY_MILLIS
+        ));
+        mRecorder.enableSensors(Constants.GYRO_PERIOD_US);
+        mRecorder.startCapture();
 
         while (running && !imuTimeSyncSocket.isClosed()) {
             DatagramPacket packet = new DatagramPacket(buf, buf.length);
             try {
-                // Listen for recording start messages
+                // Listen for leader messages
                 imuTimeSyncSocket.receive(packet);
+                final long receiveTimeNs = localClock.read();
 
-                ByteBuffer packetByteBuffer = ByteBuffer.wrap(packet.getData());
+                ByteBuffer packetByteBuffer =
+                        ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
                 int method = packetByteBuffer.getInt();
-                if (method != SyncConstants.METHOD_MSG_START_RECORDING) {
+                if (method == SyncConstants.METHOD_MSG_START_RECORDING) {
+                    // Samples are always being recorded, stream them while the leader records.
+                    Log.d(TAG, "Leader started recording, streaming gyro samples");
+                    stopStreaming(receiveTimeNs);
+                    mStreamer = new GyroStreamer(
+                            packet.getAddress(), receiveTimeNs, chooseCodec(packetByteBuffer)
+                    );
+                    mStreamer.start();
+                    continue;
+                }
+                if (method == SyncConstants.METHOD_MSG_STOP_RECORDING) {
+                    Log.d(TAG, "Leader stopped recording");
+                    stopStreaming(receiveTimeNs);
+                    continue;
+                }
+                if (method != SyncConstants.METHOD_MSG_REQUEST_GYRO_WINDOW
+                        || packetByteBuffer.remaining() < 3 * longSize) {
                     Log.e(
                             TAG,
                             "Received UDP message with incorrect method "
@@ -86,38 +121,154 @@ public class ImuTimeSyncListener extends Thread {
                                     + ", skipping.");
                     continue;
                 }
+                long windowStartLeaderNs = packetByteBuffer.getLong();
+                long windowEndLeaderNs = packetByteBuffer.getLong();
+                long sendTimeLeaderNs = packetByteBuffer.getLong();
 
-                recorder.enableSensors(Constants.GYRO_PERIOD_US);
-                String timeStamp = new SimpleDateFormat("dd.MM.HH.mm.ss").format(new Date());
-                recorder.startRecording(mContext, Constants.LOCAL_SENSOR_DIR, timeStamp);
-                // Recording process
-                Log.d(TAG, "Started recording");
-                Thread.sleep(SyncConstants.SENSOR_REC_PERIOD_MILLIS);
-                recorder.stopRecording();
-                recorder.disableSensors();
-                Log.d(TAG, "Stopped recording");
-
-                // File transfer to leader
-                File file = new File(recorder.getLastGyroPath());
-                Log.d(TAG, "Sensor file opened");
-                Socket sendSocket = new Socket(packet.getAddress(), imuTimeSyncPort);
-                Log.d(TAG, "Connected to leader");
-                mFileUtils.sendFile(file, sendSocket);
-            } catch (SocketTimeoutException | InterruptedException e) {
-                // TODO: autogenerated
+                // Clocks are not synchronized yet, so the window is mapped relative to the
+                // request time. The error is the network latency, which gyro sync resolves.
+                long windowStartNs = receiveTimeNs - (sendTimeLeaderNs - windowStartLeaderNs);
+                long windowEndNs = receiveTimeNs - (sendTimeLeaderNs - windowEndLeaderNs);
+                GyroSeries window = mRecorder.getCapturedSeries(windowStartNs, windowEndNs);
+                Log.d(TAG, "Sending " + window.size() + " gyro samples of the requested window");
+
+                sendWindow(window, packet.getAddress(), chooseCodec(packetByteBuffer));
+                if (Constants.SAVE_GYRO_CSV) {
+                    String timeStamp = new SimpleDateFormat("dd.MM.HH.mm.ss").format(new Date());
+                    mRecorder.exportSeries(mContext, Constants.LOCAL_SENSOR_DIR, timeStamp, window);
+                }
+            } catch (SocketTimeoutException e) {
+                // It is normal to time out most of the time, continue.
             } catch (IOException e) {
                 if (running || imuTimeSyncSocket.isClosed()) {
                     Log.w(TAG, "Shutdown arrived in middle of a socket receive, ignoring error.");
                 } else {
                     throw new IllegalStateException("Socket Receive/Send error: " + e);
                 }
-            } finally {
-                if (recorder.isRecording()) {
-                    recorder.stopRecording();
-                    recorder.disableSensors();
-                }
             }
         }
+        stopStreaming(localClock.read());
+        mRecorder.stopCapture();
+        mRecorder.disableSensors();
         Log.w(TAG, "Time Sync Listener thread finished.");
     }
+
+    /**
+     * Best codec among those the leader advertises at the end of the message, leaders that do
+     * not advertise any get raw records.
+     */
+    private static int chooseCodec(ByteBuffer message) {
+        int leaderCodecs = message.remaining() >= Integer.SIZE / Byte.SIZE
+                ? message.getInt() : 1 << GyroCodec.RAW;
+        return GyroCodec.choose(leaderCodecs);
+    }
+
+    /**
+     * Opens a gyro upload to the leader: a stream of the data channel if there is one, a
+     * connection to the sync port of the leader otherwise. Closing the stream ends the upload.
+     */
+    private OutputStream openUpload(InetAddress leaderAddress) throws IOException {
+        DataChannel channel = mDataChannels.get(leaderAddress);
+        if (channel != null) {
+            return channel.openStream(SyncConstants.DATA_STREAM_GYRO_UPLOAD).getOutputStream();
+        }
+        Socket sendSocket = new Socket(leaderAddress, imuTimeSyncPort);
+        sendSocket.setTcpNoDelay(true);
+        return sendSocket.getOutputStream();
+    }
+
+    private void sendWindow(GyroSeries window, InetAddress leaderAddress, int codec)
+            throws IOException {
+        try (
+                GyroBinaryFormat.Writer writer = new GyroBinaryFormat.Writer(
+                        Channels.newChannel(openUpload(leaderAddress))
+                )
+        ) {
+            Log.d(TAG, "Connected to leader");
+            writer.writeHeader(Constants.GYRO_PERIOD_US, mDeviceId, codec, GyroCodec.DEFAULT_SCALE);
+            writer.write(window);
+        }
+    }
+
+    private void stopStreaming(long stopNs) {
+        if (mStreamer != null) {
+            mStreamer.stopAt(stopNs);
+            mStreamer = null;
+        }
+    }
+
+    /**
+     * Streams captured samples to the leader in batches of {@link
+     * SyncConstants#GYRO_STREAM_BATCH_MILLIS}, from the start recording message until
+     * {@link #stopAt} is called. The leader reads the stream until it is closed. In case every
+     * stop message is lost, streaming stops on its own once the longest recording plus
+     * {@link SyncConstants#GYRO_STREAM_STOP_MARGIN_MILLIS} has passed.
+     */
+    private final class GyroStreamer extends Thread {
+        private final InetAddress mLeaderAddress;
+        private final long mStartNs;
+        private final int mCodec;
+        private final CountDownLatch mStopped = new CountDownLatch(1);
+        private volatile long mStopNs = Long.MAX_VALUE;
+
+        GyroStreamer(InetAddress leaderAddress, long startNs, int codec) {
+            super("GyroStreamer");
+            mLeaderAddress = leaderAddress;
+            mStartNs = startNs;
+            mCodec = codec;
+        }
+
+        /** Sends the samples up to stopNs and closes the stream. */
+        void stopAt(long stopNs) {
+            mStopNs = stopNs;
+            mStopped.countDown();
+        }
+
+        @Override
+        public void run() {
+            long sentUntilNs = mStartNs;
+            long deadlineNs = mStartNs + TimeUtils.millisToNanos(
+                    SyncConstants.MAX_SENSOR_REC_PERIOD_MILLIS
+                            + SyncConstants.GYRO_STREAM_STOP_MARGIN_MILLIS);
+            try (
+                    GyroBinaryFormat.Writer writer = new GyroBinaryFormat.Writer(
+                            Channels.newChannel(openUpload(mLeaderAddress))
+                    )
+            ) {
+                writer.writeHeader(
+                        Constants.GYRO_PERIOD_US, mDeviceId, mCodec, GyroCodec.DEFAULT_SCALE
+                );
+                boolean stopped = false;
+                while (!stopped) {
+                    stopped = mStopped.await(
+                            SyncConstants.GYRO_STREAM_BATCH_MILLIS, TimeUnit.MILLISECONDS
+                    );
+                    if (!stopped && localClock.read() >= deadlineNs) {
+                        Log.w(TAG, "No stop recording from leader, stopping the gyro stream");
+                        mStopNs = deadlineNs;
+                        stopped = true;
+                    }
+                    GyroSeries batch = mRecorder.getCapturedSeries(sentUntilNs, mStopNs);
+                    writer.write(batch);
+                    writer.flush();
+                    if (batch.size() > 0) {
+                        sentUntilNs = batch.lastTimestampNs() + 1;
+                    }
+                }
+                Log.d(TAG, "Finished streaming gyro samples to leader");
+            } catch (IOException | InterruptedException e) {
+                Log.e(TAG, "Gyro streaming to leader failed: " + e);
+                return;
+            }
+            if (Constants.SAVE_GYRO_CSV) {
+                String timeStamp = new SimpleDateFormat("dd.MM.HH.mm.ss").format(new Date());
+                try {
+                    mRecorder.exportSeries(mContext, Constants.LOCAL_SENSOR_DIR, timeStamp,
+                            mRecorder.getCapturedSeries(mStartNs, mStopNs));
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to export gyro samples: " + e);
+                }
+            }
+        }
+    }
 }
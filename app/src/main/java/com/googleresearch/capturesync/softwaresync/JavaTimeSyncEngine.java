@@ -0,0 +1,565 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import com.googleresearch.capturesync.GyroView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pure Java port of the native twist-n-sync TimeSync algorithm, runs on any JVM without the
+ * native library.
+ *
+ * <p>Steps follow TimeSync.cpp: norms of angular velocities, FFT cross-correlation of the norms,
+ * 3x3 calibration of the first gyro to the second one on the overlapping samples, cross-correlation
+ * of the calibrated norms and sub-sample refinement of its peak with a natural cubic spline.
+ *
+ * <p>Optionally the peak of the first correlation is searched coarse-to-fine on decimated norms
+ * ({@link #setPyramid}), {@link #getStages()} reports the estimate and duration of each step.
+ *
+ * <p>Work buffers are kept between calls and only grow, so repeated syncs do not allocate once
+ * the buffers fit. Instances are not thread-safe.
+ */
+public class JavaTimeSyncEngine implements TimeSyncEngine {
+    /** Determinants below this are treated as singular and calibration is skipped. */
+    private static final double SINGULAR_DETERMINANT = 1e-12;
+    /** Pyramid levels are not decimated below this many samples. */
+    private static final int MIN_PYRAMID_SAMPLES = 64;
+    /**
+     * Lags around the pyramid peak correlated again after calibration, also the knots available
+     * to the spline on each side of the peak.
+     */
+    private static final int REFINE_RADIUS = 16;
+
+    private final boolean mDoResample;
+    private double mMaxLagSeconds;
+    private int mPyramidLevels = 1;
+    private int mPyramidFactor = 4;
+    private final CrossCorrelation mCrossCorrelation = new CrossCorrelation();
+
+    private final double[][] mFirst = new double[3][0];
+    private final double[][] mSecond = new double[3][0];
+    private double[] mTimesFirst = new double[0];
+    private double[] mTimesSecond = new double[0];
+    private int mSizeFirst;
+    private int mSizeSecond;
+
+    private double[] mNormFirst = new double[0];
+    private double[] mNormSecond = new double[0];
+    /** Decimated norms, level 0 is not used since it is the norms themselves. */
+    private double[][] mPyramidFirst = new double[1][0];
+    private double[][] mPyramidSecond = new double[1][0];
+
+    /** Lags searched, in samples. */
+    private int mMinLag;
+    private int mMaxLag;
+    /** Correlation of norms at lags [mCrossCorMinLag, mCrossCorMinLag + mCrossCorLength). */
+    private double[] mCrossCor = new double[0];
+    private int mCrossCorLength;
+    private int mCrossCorMinLag;
+    private double[] mSplineSecondDerivatives = new double[0];
+    private double[] mSplineScratch = new double[0];
+    private double[] mResampled = new double[0];
+
+    /** Row-major 3x3 matrices of the calibration step. */
+    private final double[] mCross = new double[9];
+    private final double[] mGram = new double[9];
+    private final double[] mGramInverse = new double[9];
+    private final double[] mCalibration = new double[9];
+
+    private final List<Stage> mStages = new ArrayList<>();
+
+    /** Timing and result of one step of the last {@link #getTimeDelay} call. */
+    public static final class Stage {
+        private final String mName;
+        private final double mStepSeconds;
+        private final double mDelaySeconds;
+        private final long mElapsedNs;
+
+        Stage(String name, double stepSeconds, double delaySeconds, long elapsedNs) {
+            mName = name;
+            mStepSeconds = stepSeconds;
+            mDelaySeconds = delaySeconds;
+            mElapsedNs = elapsedNs;
+        }
+
+        public String name() {
+            return mName;
+        }
+
+        /** Lag resolution of the delay estimated by the stage, 0 for sub-sample estimates. */
+        public double stepSeconds() {
+            return mStepSeconds;
+        }
+
+        /** Delay estimated by the stage. */
+        public double delaySeconds() {
+            return mDelaySeconds;
+        }
+
+        public long elapsedNs() {
+            return mElapsedNs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: delay %.6f s, step %.6f s, %.3f ms",
+                    mName, mDelaySeconds, mStepSeconds, mElapsedNs / 1e6);
+        }
+    }
+
+    public JavaTimeSyncEngine(boolean doResample) {
+        mDoResample = doResample;
+    }
+
+    /**
+     * Enables coarse-to-fine peak search: norms are decimated by factor up to levels - 1 times,
+     * the lag window is searched on the coarsest level and the peak is refined level by level.
+     * Levels are dropped when they would get too short. One level (default) searches all lags at
+     * full rate.
+     */
+    public void setPyramid(int levels, int factor) {
+        if (levels < 1 || factor < 2) {
+            throw new IllegalArgumentException(
+                    "Invalid pyramid of " + levels + " levels, factor " + factor);
+        }
+        mPyramidLevels = levels;
+        mPyramidFactor = factor;
+        mPyramidFirst = new double[levels][0];
+        mPyramidSecond = new double[levels][0];
+    }
+
+    /** Stages of the last {@link #getTimeDelay} call in execution order. */
+    public List<Stage> getStages() {
+        return new ArrayList<>(mStages);
+    }
+
+    @Override
+    public void setMaxLag(double maxLagSeconds) {
+        mMaxLagSeconds = maxLagSeconds;
+    }
+
+    @Override
+    public double getTimeDelay(GyroView gyroFirst, GyroView gyroSecond, double accuracy) {
+        if (gyroFirst.size() < 2 || gyroSecond.size() < 2) {
+            throw new IllegalArgumentException("Time sync needs at least 2 samples per recording");
+        }
+        mSizeFirst = load(gyroFirst, mFirst, true);
+        mSizeSecond = load(gyroSecond, mSecond, false);
+
+        double dt = Math.min(accuracy, Math.min(
+                meanStep(mTimesFirst, mSizeFirst), meanStep(mTimesSecond, mSizeSecond)
+        ));
+        if (mDoResample) {
+            mSizeFirst = resample(mFirst, mTimesFirst, mSizeFirst, dt);
+            mSizeSecond = resample(mSecond, mTimesSecond, mSizeSecond, dt);
+        }
+        return obtainDelay(dt);
+    }
+
+    private double obtainDelay(double dt) {
+        mStages.clear();
+        long stageStartNs = System.nanoTime();
+
+        // Lags of the full correlation, narrowed to the max lag. At least lags -1..1 remain.
+        mMinLag = -(mSizeFirst - 1);
+        mMaxLag = mSizeSecond - 1;
+        if (mMaxLagSeconds > 0) {
+            int bound = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(mMaxLagSeconds / dt)));
+            mMinLag = Math.max(mMinLag, -bound);
+            mMaxLag = Math.min(mMaxLag, bound);
+        }
+
+        computeNorms();
+        int lag;
+        boolean pyramid = pyramidLevels() > 1;
+        if (pyramid) {
+            lag = findPeakCoarseToFine(dt, stageStartNs);
+            stageStartNs = System.nanoTime();
+        } else {
+            lag = correlateNorms(mNormSecond, mSizeSecond, mNormFirst, mSizeFirst, mMinLag, mMaxLag)
+                    + mCrossCorMinLag;
+            stageStartNs = addStage("correlation", dt, lag * dt, stageStartNs);
+        }
+
+        calibrate(lag);
+        computeNorms();
+        // Calibration hardly moves the peak, so the pyramid only re-correlates around it.
+        int minLag = pyramid ? Math.max(mMinLag, lag - REFINE_RADIUS) : mMinLag;
+        int maxLag = pyramid ? Math.min(mMaxLag, lag + REFINE_RADIUS) : mMaxLag;
+        int initialIndex = correlateNorms(
+                mNormSecond, mSizeSecond, mNormFirst, mSizeFirst, minLag, maxLag
+        );
+        stageStartNs = addStage(
+                "calibrated correlation", dt, (initialIndex + mCrossCorMinLag) * dt, stageStartNs
+        );
+
+        int segments = mCrossCorLength - 1;
+        double[] y = mCrossCor;
+        splineSecondDerivatives(null, y, segments + 1);
+
+        int segment = Math.min(initialIndex, segments - 1);
+        // Step back if the spline already descends at the peak knot.
+        if (segment > 0 && knotDerivative(y, segment) < 0) {
+            segment--;
+        }
+        double b = knotDerivative(y, segment);
+        double c = -(2.0 * b + knotDerivative(y, segment + 1)) + 3.0 * (y[segment + 1] - y[segment]);
+        double d = -2.0 * c / 3.0 + (knotDerivative(y, segment + 1) - b) / 3.0;
+
+        // Extremum of d * x^3 + c * x^2 + b * x + a within the segment.
+        double qa = 3.0 * d;
+        double qb = 2.0 * c;
+        double root1;
+        double root2;
+        double discriminant = qb * qb - 4.0 * qa * b;
+        if (qa == 0.0) {
+            root1 = root2 = -b / qb;
+        } else if (discriminant < 0.0) {
+            // Real parts of complex roots, as the native polynomial solver returns.
+            root1 = root2 = -qb / (2.0 * qa);
+        } else {
+            double sqrt = Math.sqrt(discriminant);
+            root1 = (-qb - sqrt) / (2.0 * qa);
+            root2 = (-qb + sqrt) / (2.0 * qa);
+        }
+        double result = Math.max(root1, root2);
+        double middle = (root1 + root2) / 2;
+        if (qa * middle * middle + qb * middle + b < 0.0) {
+            result = Math.min(root1, root2);
+        }
+        double delay = (segment + mCrossCorMinLag + result) * dt;
+        addStage("spline", 0.0, delay, stageStartNs);
+        return delay;
+    }
+
+    /**
+     * Finds the correlation peak of the norms on a pyramid of box-decimated norms: the whole lag
+     * window is searched at the coarsest level only, each finer level searches a few of its lags
+     * around the peak found on the previous level.
+     *
+     * @return lag of the peak at full rate, in samples.
+     */
+    private int findPeakCoarseToFine(double dt, long stageStartNs) {
+        int levels = pyramidLevels();
+        for (int level = 1; level < levels; level++) {
+            int decimation = power(mPyramidFactor, level);
+            mPyramidFirst[level] = ensureCapacity(mPyramidFirst[level], mSizeFirst / decimation);
+            mPyramidSecond[level] = ensureCapacity(mPyramidSecond[level], mSizeSecond / decimation);
+            decimate(level == 1 ? mNormFirst : mPyramidFirst[level - 1],
+                    mSizeFirst / decimation, mPyramidFirst[level]);
+            decimate(level == 1 ? mNormSecond : mPyramidSecond[level - 1],
+                    mSizeSecond / decimation, mPyramidSecond[level]);
+        }
+
+        int lag = 0;
+        for (int level = levels - 1; level >= 0; level--) {
+            int decimation = power(mPyramidFactor, level);
+            int sizeFirst = mSizeFirst / decimation;
+            int sizeSecond = mSizeSecond / decimation;
+            int minLag = Math.max(-(sizeFirst - 1), floorDivide(mMinLag, decimation));
+            int maxLag = Math.min(sizeSecond - 1, -floorDivide(-mMaxLag, decimation));
+            if (level < levels - 1) {
+                // Box averages shift the peak by less than a coarse sample either way.
+                int center = lag * mPyramidFactor;
+                minLag = Math.max(minLag, center - 2 * mPyramidFactor);
+                maxLag = Math.min(maxLag, center + 2 * mPyramidFactor);
+            }
+            lag = correlateNorms(
+                    level == 0 ? mNormSecond : mPyramidSecond[level], sizeSecond,
+                    level == 0 ? mNormFirst : mPyramidFirst[level], sizeFirst, minLag, maxLag
+            ) + mCrossCorMinLag;
+            stageStartNs = addStage("correlation 1/" + decimation,
+                    dt * decimation, lag * decimation * dt, stageStartNs);
+        }
+        return lag;
+    }
+
+    /** Averages blocks of mPyramidFactor source samples into size target samples. */
+    private void decimate(double[] source, int size, double[] target) {
+        for (int i = 0; i < size; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < mPyramidFactor; j++) {
+                sum += source[i * mPyramidFactor + j];
+            }
+            target[i] = sum / mPyramidFactor;
+        }
+    }
+
+    /** Number of pyramid levels that keep enough samples at the coarsest level. */
+    private int pyramidLevels() {
+        int levels = 1;
+        int size = Math.min(mSizeFirst, mSizeSecond);
+        while (levels < mPyramidLevels && size / mPyramidFactor >= MIN_PYRAMID_SAMPLES) {
+            size /= mPyramidFactor;
+            levels++;
+        }
+        return levels;
+    }
+
+    private void computeNorms() {
+        mNormFirst = ensureCapacity(mNormFirst, mSizeFirst);
+        mNormSecond = ensureCapacity(mNormSecond, mSizeSecond);
+        normOfRows(mFirst, mSizeFirst, mNormFirst);
+        normOfRows(mSecond, mSizeSecond, mNormSecond);
+    }
+
+    /**
+     * Cross-correlates the norms of the second and the first recordings into mCrossCor over the
+     * lags [minLag, maxLag].
+     *
+     * @return index of the (first) maximum.
+     */
+    private int correlateNorms(double[] normSecond, int sizeSecond,
+                               double[] normFirst, int sizeFirst, int minLag, int maxLag) {
+        int length = maxLag - minLag + 1;
+        mCrossCor = ensureCapacity(mCrossCor, length);
+        mCrossCorLength = length;
+        mCrossCorMinLag = minLag;
+        mCrossCorrelation.correlate(
+                normSecond, sizeSecond, normFirst, sizeFirst, minLag, maxLag, mCrossCor
+        );
+
+        int maxIndex = 0;
+        for (int i = 1; i < length; i++) {
+            if (mCrossCor[i] > mCrossCor[maxIndex]) {
+                maxIndex = i;
+            }
+        }
+        return maxIndex;
+    }
+
+    private long addStage(String name, double stepSeconds, double delaySeconds, long startNs) {
+        long endNs = System.nanoTime();
+        mStages.add(new Stage(name, stepSeconds, delaySeconds, endNs - startNs));
+        return endNs;
+    }
+
+    /**
+     * Rotates the first gyro by M = (X2^T X1) (X1^T X1)^-1, where X1 and X2 are the samples of
+     * the first and the second gyro that overlap at the given lag.
+     *
+     * <p>The overlap is sliced as in TimeSync.cpp: both recordings are shortened by |lag| and
+     * the shorter of the two sets the size, so when the recordings differ in length the tail of
+     * the longer one is left out even if it overlaps.
+     */
+    private void calibrate(int lag) {
+        int startFirst = lag < 0 ? -lag : 0;
+        int startSecond = lag > 0 ? lag : 0;
+        int size = Math.max(0, Math.min(mSizeFirst, mSizeSecond) - Math.abs(lag));
+
+        double[] cross = mCross;
+        double[] gram = mGram;
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                double crossSum = 0.0;
+                double gramSum = 0.0;
+                double[] first = mFirst[col];
+                double[] secondRow = mSecond[row];
+                double[] firstRow = mFirst[row];
+                for (int i = 0; i < size; i++) {
+                    crossSum += secondRow[startSecond + i] * first[startFirst + i];
+                    gramSum += firstRow[startFirst + i] * first[startFirst + i];
+                }
+                cross[3 * row + col] = crossSum;
+                gram[3 * row + col] = gramSum;
+            }
+        }
+        double[] gramInverse = mGramInverse;
+        if (!invert3x3(gram, gramInverse)) {
+            // Not enough rotation in the overlap to calibrate, keep the gyro as is.
+            return;
+        }
+        double[] m = mCalibration;
+        multiply3x3(cross, gramInverse, m);
+
+        double[] x = mFirst[0];
+        double[] y = mFirst[1];
+        double[] z = mFirst[2];
+        for (int i = 0; i < mSizeFirst; i++) {
+            double xi = x[i];
+            double yi = y[i];
+            double zi = z[i];
+            x[i] = m[0] * xi + m[1] * yi + m[2] * zi;
+            y[i] = m[3] * xi + m[4] * yi + m[5] * zi;
+            z[i] = m[6] * xi + m[7] * yi + m[8] * zi;
+        }
+    }
+
+    /**
+     * Copies the view into column buffers and its timestamps in seconds into the matching
+     * times buffer.
+     */
+    private int load(GyroView view, double[][] columns, boolean first) {
+        int size = view.size();
+        for (int axis = 0; axis < 3; axis++) {
+            columns[axis] = ensureCapacity(columns[axis], size);
+        }
+        double[] times;
+        if (first) {
+            times = mTimesFirst = ensureCapacity(mTimesFirst, size);
+        } else {
+            times = mTimesSecond = ensureCapacity(mTimesSecond, size);
+        }
+        for (int i = 0; i < size; i++) {
+            columns[0][i] = view.x(i);
+            columns[1][i] = view.y(i);
+            columns[2][i] = view.z(i);
+            times[i] = view.timestampNs(i) / 1e9;
+        }
+        return size;
+    }
+
+    /**
+     * Interpolates each axis with a natural cubic spline onto a uniform grid with the given step,
+     * starting at the first timestamp.
+     *
+     * @return number of samples on the grid.
+     */
+    private int resample(double[][] columns, double[] times, int size, double dt) {
+        double start = times[0];
+        int newSize = (int) Math.floor((times[size - 1] - start) / dt) + 1;
+        for (int axis = 0; axis < 3; axis++) {
+            splineSecondDerivatives(times, columns[axis], size);
+            mResampled = ensureCapacity(mResampled, newSize);
+            int segment = 0;
+            for (int i = 0; i < newSize; i++) {
+                double t = start + i * dt;
+                while (segment < size - 2 && times[segment + 1] < t) {
+                    segment++;
+                }
+                mResampled[i] = splineValue(times, columns[axis], segment, t);
+            }
+            // The old column becomes the scratch buffer of the next axis.
+            double[] old = columns[axis];
+            columns[axis] = mResampled;
+            mResampled = old;
+        }
+        return newSize;
+    }
+
+    /**
+     * Solves for second derivatives of the natural cubic spline through (x, y) into
+     * mSplineSecondDerivatives. Null x means knots at 0, 1, 2...
+     */
+    private void splineSecondDerivatives(double[] x, double[] y, int size) {
+        mSplineSecondDerivatives = ensureCapacity(mSplineSecondDerivatives, size);
+        mSplineScratch = ensureCapacity(mSplineScratch, size);
+        double[] m = mSplineSecondDerivatives;
+        double[] upper = mSplineScratch;
+        m[0] = 0.0;
+        m[size - 1] = 0.0;
+        upper[0] = 0.0;
+        // Thomas algorithm on the tridiagonal system of interior knots.
+        for (int i = 1; i < size - 1; i++) {
+            double hLeft = x == null ? 1.0 : x[i] - x[i - 1];
+            double hRight = x == null ? 1.0 : x[i + 1] - x[i];
+            double rhs = 6.0 * ((y[i + 1] - y[i]) / hRight - (y[i] - y[i - 1]) / hLeft);
+            double diagonal = 2.0 * (hLeft + hRight) - hLeft * upper[i - 1];
+            upper[i] = hRight / diagonal;
+            m[i] = (rhs - hLeft * m[i - 1]) / diagonal;
+        }
+        for (int i = size - 2; i > 0; i--) {
+            m[i] -= upper[i] * m[i + 1];
+        }
+    }
+
+    /**
+     * First derivative of the unit-spaced spline at the knot, zero at both ends as in the
+     * native CubicSpline::getCoefficients.
+     */
+    private double knotDerivative(double[] y, int knot) {
+        if (knot == 0 || knot >= mCrossCorLength - 1) {
+            return 0.0;
+        }
+        double[] m = mSplineSecondDerivatives;
+        return (y[knot + 1] - y[knot]) - (2.0 * m[knot] + m[knot + 1]) / 6.0;
+    }
+
+    private double splineValue(double[] x, double[] y, int segment, double t) {
+        double[] m = mSplineSecondDerivatives;
+        double h = x[segment + 1] - x[segment];
+        double d = t - x[segment];
+        double slope = (y[segment + 1] - y[segment]) / h - h * (2.0 * m[segment] + m[segment + 1]) / 6.0;
+        return y[segment] + d * (slope + d * (m[segment] / 2.0
+                + d * (m[segment + 1] - m[segment]) / (6.0 * h)));
+    }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    /** Division rounding toward negative infinity, Math.floorDiv is not available on API 23. */
+    private static int floorDivide(int dividend, int divisor) {
+        int quotient = dividend / divisor;
+        return (dividend % divisor != 0 && (dividend < 0) != (divisor < 0)) ? quotient - 1 : quotient;
+    }
+
+    private static double meanStep(double[] times, int size) {
+        return (times[size - 1] - times[0]) / (size - 1);
+    }
+
+    private static void normOfRows(double[][] columns, int size, double[] norms) {
+        double[] x = columns[0];
+        double[] y = columns[1];
+        double[] z = columns[2];
+        for (int i = 0; i < size; i++) {
+            norms[i] = Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i] * z[i]);
+        }
+    }
+
+    /** Row-major 3x3 inverse through the adjugate, false if the matrix is singular. */
+    private static boolean invert3x3(double[] a, double[] inverse) {
+        double c00 = a[4] * a[8] - a[5] * a[7];
+        double c01 = a[5] * a[6] - a[3] * a[8];
+        double c02 = a[3] * a[7] - a[4] * a[6];
+        double determinant = a[0] * c00 + a[1] * c01 + a[2] * c02;
+        if (Math.abs(determinant) < SINGULAR_DETERMINANT) {
+            return false;
+        }
+        double scale = 1.0 / determinant;
+        inverse[0] = c00 * scale;
+        inverse[1] = (a[2] * a[7] - a[1] * a[8]) * scale;
+        inverse[2] = (a[1] * a[5] - a[2] * a[4]) * scale;
+        inverse[3] = c01 * scale;
+        inverse[4] = (a[0] * a[8] - a[2] * a[6]) * scale;
+        inverse[5] = (a[2] * a[3] - a[0] * a[5]) * scale;
+        inverse[6] = c02 * scale;
+        inverse[7] = (a[1] * a[6] - a[0] * a[7]) * scale;
+        inverse[8] = (a[0] * a[4] - a[1] * a[3]) * scale;
+        return true;
+    }
+
+    private static void multiply3x3(double[] a, double[] b, double[] result) {
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                result[3 * row + col] = a[3 * row] * b[col]
+                        + a[3 * row + 1] * b[3 + col]
+                        + a[3 * row + 2] * b[6 + col];
+            }
+        }
+    }
+
+    private static double[] ensureCapacity(double[] buffer, int size) {
+        return buffer.length >= size ? buffer : new double[size];
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import com.googleresearch.capturesync.GyroSeries;
+import com.googleresearch.capturesync.GyroView;
+
+/**
+ * Runs the time sync algorithm in the native twist-n-sync library through the {@link TimeSync}
+ * bridge.
+ */
+public class NativeTimeSyncEngine implements TimeSyncEngine {
+    private static final String TAG = "NativeTimeSyncEngine";
+    private static final String LIBRARY_NAME = "bridge";
+
+    private static Boolean sAvailable;
+
+    private final boolean mDoResample;
+    private double mMaxLagSeconds;
+
+    public NativeTimeSyncEngine(boolean doResample) {
+        mDoResample = doResample;
+    }
+
+    /** Checks whether the native library can be loaded on this device. */
+    public static synchronized boolean isAvailable() {
+        if (sAvailable == null) {
+            try {
+                System.loadLibrary(LIBRARY_NAME);
+                sAvailable = true;
+            } catch (UnsatisfiedLinkError | SecurityException e) {
+                Log.w(TAG, "Native time sync library is not available: " + e);
+                sAvailable = false;
+            }
+        }
+        return sAvailable;
+    }
+
+    @Override
+    public void setMaxLag(double maxLagSeconds) {
+        mMaxLagSeconds = maxLagSeconds;
+    }
+
+    @Override
+    public double getTimeDelay(GyroView gyroFirst, GyroView gyroSecond, double accuracy) {
+        // Flat column-major arrays cross the bridge in one copy each.
+        TimeSync timeSync = new TimeSync(
+                GyroSeries.toColumns(gyroFirst), GyroSeries.toColumns(gyroSecond),
+                GyroSeries.timesSeconds(gyroFirst), GyroSeries.timesSeconds(gyroSecond),
+                mDoResample
+        );
+        timeSync.setMaxLag(mMaxLagSeconds);
+        timeSync.resample(accuracy);
+        timeSync.obtainDelay();
+        return timeSync.getTimeDelay();
+    }
+}
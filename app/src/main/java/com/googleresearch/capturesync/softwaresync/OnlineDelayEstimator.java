@@ -0,0 +1,315 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import com.googleresearch.capturesync.GyroView;
+
+import java.util.Arrays;
+
+/**
+ * Estimates the gyro sync delay while samples are still being streamed, so a recording can be
+ * stopped as soon as the estimate has settled.
+ *
+ * <p>Only the products of angular velocity norms are accumulated per lag: every new sample of
+ * either gyro adds its products with the samples of the other gyro already received, one
+ * multiply-add per lag. Sums of the norms and of their squares over the overlap of each lag come
+ * from prefix sums, which gives the Pearson correlation of the norms at every lag in the bounded
+ * window. The peak correlation is the confidence of the estimate. Its lag is refined like in the
+ * engines: the delay is the maximum of a natural cubic spline through the correlation at the
+ * lags around the peak.
+ *
+ * <p>The lag convention matches {@link TimeSyncEngine#getTimeDelay}: a positive delay means the
+ * second gyro lags behind the first one. Methods are synchronized, since the two gyros are usually
+ * fed from different threads.
+ */
+final class OnlineDelayEstimator {
+    private static final int INITIAL_CAPACITY = 1024;
+    /** Lags on each side of the peak that the refining spline goes through. */
+    private static final int SPLINE_RADIUS = 8;
+
+    private final int mMaxLag;
+    private final double mToleranceSeconds;
+    private final double mMinConfidence;
+    private final int mStableEstimates;
+
+    /** Sum of norm products per lag in [-mMaxLag, mMaxLag]. */
+    private final double[] mProducts;
+    private final double[] mCorrelation;
+    private final double[] mSplineSecondDerivatives = new double[2 * SPLINE_RADIUS + 1];
+    private final double[] mSplineScratch = new double[2 * SPLINE_RADIUS + 1];
+
+    private double[] mNormFirst = new double[INITIAL_CAPACITY];
+    private double[] mNormSecond = new double[INITIAL_CAPACITY];
+    /** Prefix sums of the norms and of their squares, element i covers norms [0, i). */
+    private double[] mSumFirst = new double[INITIAL_CAPACITY + 1];
+    private double[] mSquaresFirst = new double[INITIAL_CAPACITY + 1];
+    private double[] mSumSecond = new double[INITIAL_CAPACITY + 1];
+    private double[] mSquaresSecond = new double[INITIAL_CAPACITY + 1];
+    private int mSizeFirst;
+    private int mSizeSecond;
+    private long mFirstTimestampNs;
+    private long mLastTimestampNs;
+
+    /** Delays of the last estimates, oldest first, used to detect convergence. */
+    private final double[] mRecentDelays;
+    private int mEstimateCount;
+
+    /** Result of one {@link #estimate()} call. */
+    static final class Estimate {
+        private final double mDelaySeconds;
+        private final double mConfidence;
+        private final boolean mConverged;
+
+        Estimate(double delaySeconds, double confidence, boolean converged) {
+            mDelaySeconds = delaySeconds;
+            mConfidence = confidence;
+            mConverged = converged;
+        }
+
+        double delaySeconds() {
+            return mDelaySeconds;
+        }
+
+        /** Correlation of the norms at the estimated lag, in [0, 1]. */
+        double confidence() {
+            return mConfidence;
+        }
+
+        /**
+         * Whether the last estimates agree within the tolerance and all have enough confidence.
+         */
+        boolean isConverged() {
+            return mConverged;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("delay %.6f s, confidence %.3f%s",
+                    mDelaySeconds, mConfidence, mConverged ? ", converged" : "");
+        }
+    }
+
+    /**
+     * @param maxLag bound of the lags searched, in samples.
+     * @param toleranceSeconds spread of the last stableEstimates delays below which the estimate
+     *                         is considered converged.
+     */
+    OnlineDelayEstimator(
+            int maxLag, double toleranceSeconds, double minConfidence, int stableEstimates) {
+        if (maxLag < 1 || stableEstimates < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid max lag " + maxLag + " or stable estimates " + stableEstimates);
+        }
+        mMaxLag = maxLag;
+        mToleranceSeconds = toleranceSeconds;
+        mMinConfidence = minConfidence;
+        mStableEstimates = stableEstimates;
+        mProducts = new double[2 * maxLag + 1];
+        mCorrelation = new double[2 * maxLag + 1];
+        mRecentDelays = new double[stableEstimates];
+    }
+
+    /** Appends samples [from, size) of the view to the first gyro. */
+    synchronized void addFirst(GyroView samples, int from) {
+        for (int i = from; i < samples.size(); i++) {
+            double norm = norm(samples, i);
+            int n = mSizeFirst;
+            // Pairs with second gyro samples received so far, at lag k - n.
+            int fromK = Math.max(0, n - mMaxLag);
+            int toK = Math.min(mSizeSecond, n + mMaxLag + 1);
+            for (int k = fromK; k < toK; k++) {
+                mProducts[k - n + mMaxLag] += norm * mNormSecond[k];
+            }
+            mNormFirst = ensureCapacity(mNormFirst, n + 1);
+            mNormFirst[n] = norm;
+            mSumFirst = ensureCapacity(mSumFirst, n + 2);
+            mSquaresFirst = ensureCapacity(mSquaresFirst, n + 2);
+            mSumFirst[n + 1] = mSumFirst[n] + norm;
+            mSquaresFirst[n + 1] = mSquaresFirst[n] + norm * norm;
+            mSizeFirst = n + 1;
+        }
+    }
+
+    /**
+     * Appends samples [from, size) of the view to the second gyro, whose timestamps also give the
+     * sample period.
+     */
+    synchronized void addSecond(GyroView samples, int from) {
+        for (int i = from; i < samples.size(); i++) {
+            double norm = norm(samples, i);
+            int k = mSizeSecond;
+            int fromN = Math.max(0, k - mMaxLag);
+            int toN = Math.min(mSizeFirst, k + mMaxLag + 1);
+            for (int n = fromN; n < toN; n++) {
+                mProducts[k - n + mMaxLag] += mNormFirst[n] * norm;
+            }
+            mNormSecond = ensureCapacity(mNormSecond, k + 1);
+            mNormSecond[k] = norm;
+            mSumSecond = ensureCapacity(mSumSecond, k + 2);
+            mSquaresSecond = ensureCapacity(mSquaresSecond, k + 2);
+            mSumSecond[k + 1] = mSumSecond[k] + norm;
+            mSquaresSecond[k + 1] = mSquaresSecond[k] + norm * norm;
+            if (k == 0) {
+                mFirstTimestampNs = samples.timestampNs(i);
+            }
+            mLastTimestampNs = samples.timestampNs(i);
+            mSizeSecond = k + 1;
+        }
+    }
+
+    /**
+     * Estimates the delay from the samples received so far. Each call counts towards the
+     * convergence check, so it should be called once per received batch.
+     */
+    synchronized Estimate estimate() {
+        if (mSizeFirst < 2 || mSizeSecond < 2) {
+            return new Estimate(0.0, 0.0, false);
+        }
+        int peak = -1;
+        for (int lag = -mMaxLag; lag <= mMaxLag; lag++) {
+            int index = lag + mMaxLag;
+            mCorrelation[index] = pearson(lag);
+            if (peak < 0 || mCorrelation[index] > mCorrelation[peak]) {
+                peak = index;
+            }
+        }
+        double dt = (mLastTimestampNs - mFirstTimestampNs) / 1e9 / (mSizeSecond - 1);
+        double delay = (refinePeak(peak) - mMaxLag) * dt;
+        double confidence = Math.max(0.0, mCorrelation[peak]);
+
+        if (confidence < mMinConfidence) {
+            // Only consecutive confident estimates count towards convergence.
+            mEstimateCount = 0;
+        } else {
+            mRecentDelays[mEstimateCount % mStableEstimates] = delay;
+            mEstimateCount++;
+        }
+        boolean converged = false;
+        if (mEstimateCount >= mStableEstimates) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (double recent : mRecentDelays) {
+                min = Math.min(min, recent);
+                max = Math.max(max, recent);
+            }
+            converged = max - min <= mToleranceSeconds;
+        }
+        return new Estimate(delay, confidence, converged);
+    }
+
+    /**
+     * Index of the correlation maximum between lags, from a natural cubic spline through the
+     * correlation within {@link #SPLINE_RADIUS} lags of the peak. The peak itself if it is at the
+     * border of the lag window or the spline has no maximum next to it.
+     */
+    private double refinePeak(int peak) {
+        int from = Math.max(0, peak - SPLINE_RADIUS);
+        int to = Math.min(mCorrelation.length - 1, peak + SPLINE_RADIUS);
+        if (peak == from || peak == to) {
+            return peak;
+        }
+        double[] y = mCorrelation;
+        double[] m = mSplineSecondDerivatives;
+        double[] upper = mSplineScratch;
+        int size = to - from + 1;
+        // Thomas algorithm on the tridiagonal system of interior knots, unit spacing.
+        m[0] = 0.0;
+        m[size - 1] = 0.0;
+        upper[0] = 0.0;
+        for (int i = 1; i < size - 1; i++) {
+            double rhs = 6.0 * (y[from + i + 1] - 2.0 * y[from + i] + y[from + i - 1]);
+            double diagonal = 4.0 - upper[i - 1];
+            upper[i] = 1.0 / diagonal;
+            m[i] = (rhs - m[i - 1]) / diagonal;
+        }
+        for (int i = size - 2; i > 0; i--) {
+            m[i] -= upper[i] * m[i + 1];
+        }
+        // The maximum is in the segment after the peak knot if the spline still rises there.
+        int knot = peak - from;
+        int segment = startSlope(y[peak + 1] - y[peak], m[knot], m[knot + 1]) > 0.0
+                ? knot : knot - 1;
+        double rise = y[from + segment + 1] - y[from + segment];
+        double left = m[segment];
+        double right = m[segment + 1];
+        // Root in [0, 1] of the slope a * t^2 + b * t + c of the segment.
+        double a = (right - left) / 2.0;
+        double b = left;
+        double c = startSlope(rise, left, right);
+        double t;
+        if (Math.abs(a) <= 1e-12 * Math.abs(b)) {
+            if (b >= 0.0) {
+                return peak;
+            }
+            t = -c / b;
+        } else {
+            double discriminant = b * b - 4.0 * a * c;
+            if (discriminant < 0.0) {
+                return peak;
+            }
+            // The root where the slope turns from positive to negative, 2 * a * t + b < 0.
+            t = (-b - Math.sqrt(discriminant)) / (2.0 * a);
+        }
+        if (!(t >= 0.0 && t <= 1.0)) {
+            return peak;
+        }
+        return from + segment + t;
+    }
+
+    /**
+     * Slope at the start of a unit-spaced cubic spline segment, given its rise and the second
+     * derivatives at its knots.
+     */
+    private static double startSlope(double rise, double left, double right) {
+        return rise - (2.0 * left + right) / 6.0;
+    }
+
+    /**
+     * Pearson correlation of first norms n and second norms n + lag over their overlap, 0 if the
+     * overlap is shorter than half of the shorter recording and too short to be meaningful.
+     */
+    private double pearson(int lag) {
+        int from = Math.max(0, -lag);
+        int to = Math.min(mSizeFirst, mSizeSecond - lag);
+        int count = to - from;
+        if (count < 2 || 2 * count < Math.min(mSizeFirst, mSizeSecond)) {
+            return 0.0;
+        }
+        double sumFirst = mSumFirst[to] - mSumFirst[from];
+        double sumSecond = mSumSecond[to + lag] - mSumSecond[from + lag];
+        double covariance = mProducts[lag + mMaxLag] - sumFirst * sumSecond / count;
+        double varianceFirst = mSquaresFirst[to] - mSquaresFirst[from] - sumFirst * sumFirst / count;
+        double varianceSecond = mSquaresSecond[to + lag] - mSquaresSecond[from + lag]
+                - sumSecond * sumSecond / count;
+        if (varianceFirst <= 0.0 || varianceSecond <= 0.0) {
+            return 0.0;
+        }
+        return covariance / Math.sqrt(varianceFirst * varianceSecond);
+    }
+
+    private static double norm(GyroView samples, int i) {
+        double x = samples.x(i);
+        double y = samples.y(i);
+        double z = samples.z(i);
+        return Math.sqrt(x * x + y * y + z * z);
+    }
+
+    private static double[] ensureCapacity(double[] buffer, int size) {
+        return buffer.length >= size ? buffer : Arrays.copyOf(buffer, Math.max(size, 2 * buffer.length));
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransmission and duplicate suppression of RPCs flagged {@link RpcFrame#FLAG_RELIABLE}.
+ *
+ * <p>The sender keeps each frame until the peer acks its sequence number and retransmits it with
+ * exponential backoff from RELIABLE_RPC_INITIAL_TIMEOUT_MS up to RELIABLE_RPC_MAX_TIMEOUT_MS,
+ * failing the {@link RpcDelivery} after RELIABLE_RPC_MAX_ATTEMPTS sends. The receiver acks every
+ * copy but remembers the last RELIABLE_RPC_DEDUP_WINDOW sequence numbers of each peer, so
+ * retransmissions of a frame that arrived are not dispatched again. Its acks report when the frame
+ * first arrived.
+ *
+ * <p>A frame sent to several peers at once, e.g. as a subnet broadcast, is {@link #track tracked}
+ * instead: acks are expected from each peer and only retransmissions go to the peer alone.
+ */
+final class ReliableRpc implements Closeable {
+    private static final String TAG = "ReliableRpc";
+
+    /** Sends an encoded frame to a peer. */
+    interface FrameSender {
+        void send(byte[] frame, int length, InetAddress address) throws IOException;
+    }
+
+    private final Ticker mClock;
+    private final FrameSender mSender;
+    private final ScheduledExecutorService mRetransmitter =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Map<PendingKey, Pending> mPending = new ConcurrentHashMap<>();
+    /** Recently received sequence numbers by peer, only used on the transport thread. */
+    private final Map<InetAddress, SeenWindow> mSeen = new HashMap<>();
+
+    ReliableRpc(Ticker clock, FrameSender sender) {
+        mClock = clock;
+        mSender = sender;
+    }
+
+    /**
+     * Sends the frame, which must be flagged FLAG_RELIABLE, and retransmits it until acked. All
+     * sends happen on the retransmission thread. The frame array is kept, so it must not be
+     * modified afterwards.
+     */
+    RpcDelivery send(byte[] frame, int length, int method, int sequence, InetAddress address) {
+        RpcDelivery delivery = new RpcDelivery(address, method);
+        Pending pending = new Pending(
+                new PendingKey(address, sequence), frame, length, delivery, mClock.read());
+        mPending.put(pending.mKey, pending);
+        try {
+            // Sent from the retransmission thread too, callers may be on the main thread.
+            mRetransmitter.execute(() -> transmit(pending));
+        } catch (RejectedExecutionException e) {
+            mPending.remove(pending.mKey);
+            delivery.complete(false, 0, false);
+        }
+        return delivery;
+    }
+
+    /**
+     * Expects an ack from the address for a frame that was already sent to it, retransmitting it
+     * to the address alone from the first timeout on. The frame array is kept.
+     */
+    RpcDelivery track(byte[] frame, int length, int method, int sequence, InetAddress address) {
+        RpcDelivery delivery = new RpcDelivery(address, method);
+        Pending pending = new Pending(
+                new PendingKey(address, sequence), frame, length, delivery, mClock.read());
+        mPending.put(pending.mKey, pending);
+        delivery.onSent();
+        schedule(pending, SyncConstants.RELIABLE_RPC_INITIAL_TIMEOUT_MS);
+        return delivery;
+    }
+
+    /**
+     * Completes the delivery acked by the peer, called on the transport thread.
+     *
+     * @param receiveTimeNs when the peer received the frame, or {@link RpcDelivery#UNKNOWN_TIME}.
+     */
+    void onAck(InetAddress peer, int sequence, long receiveTimeNs) {
+        Pending pending = mPending.remove(new PendingKey(peer, sequence));
+        if (pending != null) {
+            pending.mDelivery.setPeerReceiveTimeNs(receiveTimeNs);
+            pending.mDelivery.complete(true, mClock.read() - pending.mFirstSentNs, false);
+        }
+    }
+
+    /**
+     * Time at which the frame was first received from the peer, called on the transport thread.
+     *
+     * @return {@link RpcDelivery#UNKNOWN_TIME} if it was not received before.
+     */
+    long getReceiveTimeNs(InetAddress peer, int sequence) {
+        SeenWindow window = mSeen.get(peer);
+        return window == null ? RpcDelivery.UNKNOWN_TIME : window.find(sequence);
+    }
+
+    /** Remembers a dispatched frame of the peer, called on the transport thread. */
+    void markReceived(InetAddress peer, int sequence, long receiveTimeNs) {
+        SeenWindow window = mSeen.get(peer);
+        if (window == null) {
+            window = new SeenWindow();
+            mSeen.put(peer, window);
+        }
+        window.add(sequence, receiveTimeNs);
+    }
+
+    /** Stops retransmitting and fails the pending deliveries. */
+    @Override
+    public void close() {
+        mRetransmitter.shutdownNow();
+        for (Pending pending : new ArrayList<>(mPending.values())) {
+            mPending.remove(pending.mKey);
+            pending.mDelivery.complete(false, 0, false);
+        }
+    }
+
+    private void transmit(final Pending pending) {
+        if (pending.mDelivery.isDone()) {
+            // Acked or cancelled since the retransmission was scheduled.
+            mPending.remove(pending.mKey);
+            return;
+        }
+        if (pending.mDelivery.getAttempts() >= SyncConstants.RELIABLE_RPC_MAX_ATTEMPTS) {
+            mPending.remove(pending.mKey);
+            if (pending.mDelivery.complete(false, 0, false)) {
+                Log.w(TAG, "No ack: " + pending.mDelivery);
+            }
+            return;
+        }
+        try {
+            mSender.send(pending.mFrame, pending.mLength, pending.mKey.mAddress);
+        } catch (IOException | RuntimeException e) {
+            // Counts as a lost attempt, the next one may get through.
+            Log.w(TAG, "Error sending reliable RPC to " + pending.mKey.mAddress + ": " + e);
+        }
+        long timeoutMillis = Math.min(
+                SyncConstants.RELIABLE_RPC_INITIAL_TIMEOUT_MS << pending.mDelivery.getAttempts(),
+                SyncConstants.RELIABLE_RPC_MAX_TIMEOUT_MS);
+        pending.mDelivery.onSent();
+        schedule(pending, timeoutMillis);
+    }
+
+    private void schedule(final Pending pending, long timeoutMillis) {
+        try {
+            mRetransmitter.schedule(() -> transmit(pending), timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed, close() fails the delivery.
+        }
+    }
+
+    private static final class Pending {
+        final PendingKey mKey;
+        final byte[] mFrame;
+        final int mLength;
+        final RpcDelivery mDelivery;
+        final long mFirstSentNs;
+
+        Pending(PendingKey key, byte[] frame, int length, RpcDelivery delivery, long firstSentNs) {
+            mKey = key;
+            mFrame = frame;
+            mLength = length;
+            mDelivery = delivery;
+            mFirstSentNs = firstSentNs;
+        }
+    }
+
+    private static final class PendingKey {
+        final InetAddress mAddress;
+        final int mSequence;
+
+        PendingKey(InetAddress address, int sequence) {
+            mAddress = address;
+            mSequence = sequence;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey key = (PendingKey) other;
+            return mSequence == key.mSequence && mAddress.equals(key.mAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mAddress.hashCode() + mSequence;
+        }
+    }
+
+    /** Ring of the last sequence numbers received from a peer, with their receive times. */
+    private static final class SeenWindow {
+        private final int[] mSequences = new int[SyncConstants.RELIABLE_RPC_DEDUP_WINDOW];
+        private final long[] mReceiveTimesNs = new long[SyncConstants.RELIABLE_RPC_DEDUP_WINDOW];
+        private int mSize;
+        private int mNext;
+
+        long find(int sequence) {
+            for (int i = 0; i < mSize; i++) {
+                if (mSequences[i] == sequence) {
+                    return mReceiveTimesNs[i];
+                }
+            }
+            return RpcDelivery.UNKNOWN_TIME;
+        }
+
+        void add(int sequence, long receiveTimeNs) {
+            mSequences[mNext] = sequence;
+            mReceiveTimesNs[mNext] = receiveTimeNs;
+            mNext = (mNext + 1) % mSequences.length;
+            mSize = Math.min(mSize + 1, mSequences.length);
+        }
+    }
+}
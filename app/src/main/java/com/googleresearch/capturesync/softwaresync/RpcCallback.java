@@ -16,7 +16,11 @@
 
 package com.googleresearch.capturesync.softwaresync;
 
-/** Interface for RPC callbacks, the base methods used for communicating between devices. */
+/**
+ * Interface for RPC callbacks, the base methods used for communicating between devices. Messages
+ * with typed fields are passed in their text form, see {@link TypedRpcCallback} to read the
+ * fields directly.
+ */
 public interface RpcCallback {
 
   /**
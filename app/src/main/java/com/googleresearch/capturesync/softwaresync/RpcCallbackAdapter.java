@@ -0,0 +1,32 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+/** Serves a String based {@link RpcCallback} the text form of typed messages. */
+final class RpcCallbackAdapter implements TypedRpcCallback {
+    private final RpcCallback mCallback;
+
+    RpcCallbackAdapter(RpcCallback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void call(RpcMessage message) {
+        mCallback.call(message.asText());
+    }
+}
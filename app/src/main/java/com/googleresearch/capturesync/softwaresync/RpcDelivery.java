@@ -0,0 +1,178 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Delivery of a reliable RPC to one peer. Completes with the nanoseconds from the first send to
+ * the ack, or fails once the retransmissions are used up.
+ */
+public final class RpcDelivery implements Future<Long> {
+    /** Receive time of a peer that did not report one. */
+    public static final long UNKNOWN_TIME = Long.MIN_VALUE;
+
+    /** Called once the delivery is acknowledged, failed or cancelled. */
+    public interface Listener {
+        void onComplete(RpcDelivery delivery);
+    }
+
+    private final InetAddress mPeer;
+    private final int mMethod;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final List<Listener> mListeners = new ArrayList<>();
+    private boolean mCompleted;
+    private volatile boolean mAcknowledged;
+    private volatile boolean mCancelled;
+    private volatile long mLatencyNs;
+    private volatile int mAttempts;
+    private volatile long mPeerReceiveTimeNs = UNKNOWN_TIME;
+
+    RpcDelivery(InetAddress peer, int method) {
+        mPeer = peer;
+        mMethod = method;
+    }
+
+    public InetAddress getPeer() {
+        return mPeer;
+    }
+
+    public int getMethod() {
+        return mMethod;
+    }
+
+    /** Whether the peer acknowledged the RPC, false while pending. */
+    public boolean isAcknowledged() {
+        return mAcknowledged;
+    }
+
+    /** Times the RPC has been sent so far. */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /** Nanoseconds from the first send to the ack, 0 unless acknowledged. */
+    public long getLatencyNs() {
+        return mLatencyNs;
+    }
+
+    /**
+     * Leader synchronized time at which the peer received the RPC, as reported in its ack.
+     * UNKNOWN_TIME unless acknowledged by a peer reporting it.
+     */
+    public long getPeerReceiveTimeNs() {
+        return mPeerReceiveTimeNs;
+    }
+
+    /** Calls the listener on completion, right away if the delivery is already complete. */
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            if (!mCompleted) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    /** Stops retransmitting, an ack that arrives later is ignored. */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(false, 0, true);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public Long get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    @Override
+    public Long get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException("RPC " + mMethod + " to " + mPeer + " still pending");
+        }
+        return result();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RPC %d to %s: %s after %d attempts", mMethod, mPeer,
+                mAcknowledged ? "acknowledged" : isDone() ? "not acknowledged" : "pending",
+                mAttempts);
+    }
+
+    void setPeerReceiveTimeNs(long receiveTimeNs) {
+        mPeerReceiveTimeNs = receiveTimeNs;
+    }
+
+    void onSent() {
+        mAttempts++;
+    }
+
+    /** @return false if the delivery was already complete. */
+    boolean complete(boolean acknowledged, long latencyNs, boolean cancelled) {
+        List<Listener> listeners;
+        synchronized (mListeners) {
+            if (mCompleted) {
+                return false;
+            }
+            mCompleted = true;
+            mAcknowledged = acknowledged;
+            mLatencyNs = latencyNs;
+            mCancelled = cancelled;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+        mDone.countDown();
+        for (Listener listener : listeners) {
+            listener.onComplete(this);
+        }
+        return true;
+    }
+
+    private Long result() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException(toString());
+        }
+        if (!mAcknowledged) {
+            throw new ExecutionException(new IOException(toString()));
+        }
+        return mLatencyNs;
+    }
+}
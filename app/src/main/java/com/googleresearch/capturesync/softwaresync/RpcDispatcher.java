@@ -0,0 +1,328 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dispatch table of RPC callbacks, each bound to the {@link Lane} it runs on.
+ *
+ * <p>The table is built when callbacks are registered: methods in the reserved id ranges of
+ * {@link SyncConstants} are array slots, user methods are kept in a sorted array that is searched
+ * without boxing the id and replaced on registration. Datagrams are decoded into pooled tasks and
+ * lanes queue them in bounded arrays, so dispatch does not allocate. A lane that falls behind
+ * drops new RPCs instead of delaying the other lanes.
+ */
+public final class RpcDispatcher implements Closeable {
+    private static final String TAG = "RpcDispatcher";
+
+    /** Results of dispatching a datagram. */
+    static final int DISPATCHED = 0;
+    static final int MALFORMED = 1;
+    static final int REJECTED = 2;
+
+    /** Where the callback of a method runs. */
+    public enum Lane {
+        /**
+         * On the thread that received the RPC, the transport thread for datagrams. Only for short
+         * callbacks that never block, such as recording a timestamp.
+         */
+        INLINE,
+        /** On a small pool shared by the methods of this lane, calls may run concurrently. */
+        SHARED,
+        /** On a thread of the method's own, in arrival order. */
+        SERIAL,
+        /** On one thread shared by all callbacks registered without a lane, in arrival order. */
+        DEFAULT
+    }
+
+    /**
+     * Binds the callback to a lane, for callbacks registered through callback maps. Calling the
+     * returned callback directly calls the given one.
+     */
+    public static TypedRpcCallback onLane(Lane lane, TypedRpcCallback callback) {
+        return new LaneCallback(lane, callback);
+    }
+
+    private final AtomicReferenceArray<Binding> mSyncBindings = new AtomicReferenceArray<>(
+            SyncConstants.SYNC_METHOD_IDS_END - SyncConstants.SYNC_METHOD_IDS_START);
+    private final AtomicReferenceArray<Binding> mMessageBindings = new AtomicReferenceArray<>(
+            SyncConstants.MESSAGE_METHOD_IDS_END - SyncConstants.MESSAGE_METHOD_IDS_START);
+    /** User methods in ascending order and their bindings, replaced as a whole on registration. */
+    private volatile UserTable mUserTable = new UserTable(new int[0], new Binding[0]);
+
+    private final ThreadPoolExecutor mDefaultLane = newLane("RpcLane-default", 1);
+    private final ThreadPoolExecutor mSharedLane =
+            newLane("RpcLane-shared", SyncConstants.RPC_SHARED_LANE_THREADS);
+    /** Threads of the methods registered on the SERIAL lane. */
+    private final Map<Integer, ThreadPoolExecutor> mSerialLanes = new HashMap<>();
+
+    private final BlockingQueue<Task> mTasks =
+            new ArrayBlockingQueue<>(SyncConstants.DATAGRAM_POOL_SIZE);
+    /** Message of INLINE datagrams, only used on the transport thread. */
+    private final RpcMessage mInlineMessage = new RpcMessage(SyncConstants.DATAGRAM_BUFFER_SIZE);
+
+    /** Registers the callback on the lane given with {@link #onLane}, DEFAULT otherwise. */
+    public void register(int method, TypedRpcCallback callback) {
+        if (callback instanceof LaneCallback) {
+            LaneCallback bound = (LaneCallback) callback;
+            register(method, bound.mLane, bound.mCallback);
+        } else {
+            register(method, Lane.DEFAULT, callback);
+        }
+    }
+
+    /** Registers the callback of the method on the lane, replacing an earlier one. */
+    public synchronized void register(int method, Lane lane, TypedRpcCallback callback) {
+        ThreadPoolExecutor executor;
+        switch (lane) {
+            case INLINE:
+                executor = null;
+                break;
+            case SHARED:
+                executor = mSharedLane;
+                break;
+            case SERIAL:
+                // A method registered again keeps its thread, calls already queued stay in order.
+                executor = mSerialLanes.get(method);
+                if (executor == null) {
+                    executor = newLane("RpcLane-" + method, 1);
+                    mSerialLanes.put(method, executor);
+                }
+                break;
+            default:
+                executor = mDefaultLane;
+                break;
+        }
+        if (lane != Lane.SERIAL) {
+            ThreadPoolExecutor replaced = mSerialLanes.remove(method);
+            if (replaced != null) {
+                // Calls already queued still run, then the thread ends.
+                replaced.shutdown();
+            }
+        }
+        Binding binding = new Binding(callback, executor);
+        if (inRange(method,
+                SyncConstants.SYNC_METHOD_IDS_START, SyncConstants.SYNC_METHOD_IDS_END)) {
+            mSyncBindings.set(method - SyncConstants.SYNC_METHOD_IDS_START, binding);
+        } else if (inRange(method,
+                SyncConstants.MESSAGE_METHOD_IDS_START, SyncConstants.MESSAGE_METHOD_IDS_END)) {
+            mMessageBindings.set(method - SyncConstants.MESSAGE_METHOD_IDS_START, binding);
+        } else {
+            mUserTable = mUserTable.with(method, binding);
+        }
+    }
+
+    /**
+     * Dispatches an RPC datagram, called on the transport thread with the frame between position
+     * and limit of the buffer.
+     *
+     * @return DISPATCHED, also if no callback is registered for the method, MALFORMED if the
+     *     frame could not be decoded, or REJECTED if the lane of the method is full.
+     */
+    int dispatch(InetAddress source, ByteBuffer frame) {
+        if (!RpcFrame.hasHeader(frame)) {
+            return MALFORMED;
+        }
+        Binding binding = lookup(RpcFrame.peekMethod(frame));
+        if (binding == null) {
+            // Nobody listens, skip copying the frame.
+            return DISPATCHED;
+        }
+        if (binding.mExecutor == null) {
+            if (!mInlineMessage.decode(source, frame)) {
+                return MALFORMED;
+            }
+            call(binding, mInlineMessage);
+            return DISPATCHED;
+        }
+        Task task = mTasks.poll();
+        if (task == null) {
+            task = new Task();
+        }
+        if (!task.mMessage.decode(source, frame)) {
+            mTasks.offer(task);
+            return MALFORMED;
+        }
+        task.mBinding = binding;
+        try {
+            binding.mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "RPC lane full or closed, dropping " + task.mMessage);
+            task.recycle();
+            return REJECTED;
+        }
+        return DISPATCHED;
+    }
+
+    /**
+     * Dispatches a message on its lane, for RPCs that did not arrive as datagrams and local
+     * notifications. INLINE callbacks run on the calling thread.
+     */
+    void dispatch(final RpcMessage message) {
+        final Binding binding = lookup(message.getMethod());
+        if (binding == null) {
+            return;
+        }
+        if (binding.mExecutor == null) {
+            call(binding, message);
+            return;
+        }
+        try {
+            binding.mExecutor.execute(() -> call(binding, message));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "RPC lane full or closed, dropping " + message);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mDefaultLane.shutdown();
+        mSharedLane.shutdown();
+        for (ThreadPoolExecutor lane : mSerialLanes.values()) {
+            lane.shutdown();
+        }
+    }
+
+    private Binding lookup(int method) {
+        if (inRange(method,
+                SyncConstants.SYNC_METHOD_IDS_START, SyncConstants.SYNC_METHOD_IDS_END)) {
+            return mSyncBindings.get(method - SyncConstants.SYNC_METHOD_IDS_START);
+        }
+        if (inRange(method,
+                SyncConstants.MESSAGE_METHOD_IDS_START, SyncConstants.MESSAGE_METHOD_IDS_END)) {
+            return mMessageBindings.get(method - SyncConstants.MESSAGE_METHOD_IDS_START);
+        }
+        UserTable table = mUserTable;
+        int index = Arrays.binarySearch(table.mMethods, method);
+        return index >= 0 ? table.mBindings[index] : null;
+    }
+
+    private static void call(Binding binding, RpcMessage message) {
+        try {
+            binding.mCallback.call(message);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "RPC callback failed for " + message, e);
+        }
+    }
+
+    private static boolean inRange(int method, int start, int end) {
+        return method >= start && method < end;
+    }
+
+    private static ThreadPoolExecutor newLane(final String name, int threads) {
+        return new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(SyncConstants.RPC_LANE_QUEUE_SIZE),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private static final class Binding {
+        final TypedRpcCallback mCallback;
+        /** Null for INLINE. */
+        final ThreadPoolExecutor mExecutor;
+
+        Binding(TypedRpcCallback callback, ThreadPoolExecutor executor) {
+            mCallback = callback;
+            mExecutor = executor;
+        }
+    }
+
+    private static final class UserTable {
+        final int[] mMethods;
+        final Binding[] mBindings;
+
+        UserTable(int[] methods, Binding[] bindings) {
+            mMethods = methods;
+            mBindings = bindings;
+        }
+
+        UserTable with(int method, Binding binding) {
+            int index = Arrays.binarySearch(mMethods, method);
+            if (index >= 0) {
+                Binding[] bindings = mBindings.clone();
+                bindings[index] = binding;
+                return new UserTable(mMethods, bindings);
+            }
+            int insertion = -index - 1;
+            int[] methods = new int[mMethods.length + 1];
+            Binding[] bindings = new Binding[mBindings.length + 1];
+            System.arraycopy(mMethods, 0, methods, 0, insertion);
+            System.arraycopy(mBindings, 0, bindings, 0, insertion);
+            methods[insertion] = method;
+            bindings[insertion] = binding;
+            System.arraycopy(
+                    mMethods, insertion, methods, insertion + 1, mMethods.length - insertion);
+            System.arraycopy(
+                    mBindings, insertion, bindings, insertion + 1, mBindings.length - insertion);
+            return new UserTable(methods, bindings);
+        }
+    }
+
+    /** Pooled dispatch of a datagram to a lane. */
+    private final class Task implements Runnable {
+        final RpcMessage mMessage = new RpcMessage(SyncConstants.DATAGRAM_BUFFER_SIZE);
+        Binding mBinding;
+
+        @Override
+        public void run() {
+            try {
+                call(mBinding, mMessage);
+            } finally {
+                recycle();
+            }
+        }
+
+        void recycle() {
+            mBinding = null;
+            mTasks.offer(this);
+        }
+    }
+
+    private static final class LaneCallback implements TypedRpcCallback {
+        final Lane mLane;
+        final TypedRpcCallback mCallback;
+
+        LaneCallback(Lane lane, TypedRpcCallback callback) {
+            mLane = lane;
+            mCallback = callback;
+        }
+
+        @Override
+        public void call(RpcMessage message) {
+            mCallback.call(message);
+        }
+    }
+}
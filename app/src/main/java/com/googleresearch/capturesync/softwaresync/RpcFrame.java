@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Binary layout of RPCs, the same in datagrams and data channel streams:
+ *
+ * <pre>
+ * byte version | byte flags | int method | int sequence | field | field | ...
+ * </pre>
+ *
+ * <p>Frames flagged FLAG_RELIABLE are acknowledged by the receiver with a frame flagged FLAG_ACK,
+ * which carries the method and sequence number of the acknowledged frame and a long field: the
+ * leader synchronized time at which the receiver got the frame, see {@link #peekAckReceiveTimeNs}.
+ *
+ * <p>Each field is a type byte followed by the value: a big-endian long or int, or an unsigned
+ * short length and that many bytes for strings (UTF-8) and byte arrays. Fields carry their type so
+ * receivers can check what they read, and the String based {@link RpcCallback} can still be served
+ * a text form of any message, see {@link RpcMessage#asText()}.
+ */
+public final class RpcFrame {
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 2 + 2 * Integer.SIZE / Byte.SIZE;
+    /** Longest string or byte array field. */
+    public static final int MAX_FIELD_BYTES = 0xFFFF;
+
+    /** The sender expects an ack and retransmits until it gets one. */
+    public static final int FLAG_RELIABLE = 1;
+    /** Acknowledges the reliable frame with the same method and sequence number. */
+    public static final int FLAG_ACK = 1 << 1;
+
+    static final byte TYPE_LONG = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_STRING = 3;
+    static final byte TYPE_BYTES = 4;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private RpcFrame() {}
+
+    static void writeHeader(ByteBuffer buffer, int flags, int method, int sequence) {
+        buffer.put(VERSION).put((byte) flags).putInt(method).putInt(sequence);
+    }
+
+    /** Whether the buffer holds at least a header of this version at its position. */
+    static boolean hasHeader(ByteBuffer frame) {
+        return frame.remaining() >= HEADER_SIZE && peekVersion(frame) == VERSION;
+    }
+
+    /**
+     * Receive time reported by an ack frame at the position of the buffer, {@link
+     * RpcDelivery#UNKNOWN_TIME} if the ack has no time field.
+     */
+    static long peekAckReceiveTimeNs(ByteBuffer frame) {
+        int field = frame.position() + HEADER_SIZE;
+        if (frame.limit() - field < 1 + Long.SIZE / Byte.SIZE || frame.get(field) != TYPE_LONG) {
+            return RpcDelivery.UNKNOWN_TIME;
+        }
+        return frame.getLong(field + 1);
+    }
+
+    /** Version byte of a frame starting at the position of the buffer, -1 if empty. */
+    static int peekVersion(ByteBuffer frame) {
+        return frame.hasRemaining() ? frame.get(frame.position()) : -1;
+    }
+
+    static int peekFlags(ByteBuffer frame) {
+        return frame.get(frame.position() + 1) & 0xFF;
+    }
+
+    static int peekMethod(ByteBuffer frame) {
+        return frame.getInt(frame.position() + 2);
+    }
+
+    static int peekSequence(ByteBuffer frame) {
+        return frame.getInt(frame.position() + 6);
+    }
+
+    /** Appends typed fields to a frame. */
+    public static final class Writer {
+        private final ByteBuffer mBuffer;
+
+        Writer(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        public Writer putLong(long value) {
+            checkRemaining(1 + Long.SIZE / Byte.SIZE);
+            mBuffer.put(TYPE_LONG).putLong(value);
+            return this;
+        }
+
+        public Writer putInt(int value) {
+            checkRemaining(1 + Integer.SIZE / Byte.SIZE);
+            mBuffer.put(TYPE_INT).putInt(value);
+            return this;
+        }
+
+        /** Writes the string as UTF-8, ASCII strings are written without an intermediate array. */
+        public Writer putString(String value) {
+            int length = value.length();
+            boolean ascii = length <= MAX_FIELD_BYTES;
+            for (int i = 0; i < length && ascii; i++) {
+                ascii = value.charAt(i) < 0x80;
+            }
+            if (!ascii) {
+                return putField(TYPE_STRING, value.getBytes(UTF_8));
+            }
+            checkRemaining(1 + 2 + length);
+            mBuffer.put(TYPE_STRING).putShort((short) length);
+            for (int i = 0; i < length; i++) {
+                mBuffer.put((byte) value.charAt(i));
+            }
+            return this;
+        }
+
+        public Writer putBytes(byte[] value) {
+            return putField(TYPE_BYTES, value);
+        }
+
+        /** Writes a string field of already encoded UTF-8 bytes. */
+        Writer putUtf8(byte[] value) {
+            return putField(TYPE_STRING, value);
+        }
+
+        private Writer putField(byte type, byte[] value) {
+            if (value.length > MAX_FIELD_BYTES) {
+                throw new IllegalArgumentException(
+                        "RPC field of " + value.length + " bytes, at most " + MAX_FIELD_BYTES);
+            }
+            checkRemaining(1 + 2 + value.length);
+            mBuffer.put(type).putShort((short) value.length).put(value);
+            return this;
+        }
+
+        private void checkRemaining(int bytes) {
+            if (mBuffer.remaining() < bytes) {
+                throw new IllegalArgumentException(
+                        "RPC arguments too big for a " + mBuffer.capacity() + " byte frame",
+                        new BufferOverflowException());
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Received RPC in the {@link RpcFrame} layout. Fields are read in the order they were written,
+ * each read checks the field type. Messages decoded from datagrams are pooled, so they are only
+ * valid during {@link TypedRpcCallback#call}.
+ */
+public final class RpcMessage {
+    private final byte[] mData;
+    private int mLength;
+    private int mPosition;
+    private int mFlags;
+    private int mMethod;
+    private int mSequence;
+    private InetAddress mSource;
+
+    RpcMessage(int capacity) {
+        mData = new byte[capacity];
+    }
+
+    /**
+     * Message of a locally generated notification, with the text as its only string field or no
+     * fields if the text is null.
+     */
+    static RpcMessage local(int method, InetAddress source, String text) {
+        byte[] encoded = text != null ? text.getBytes(RpcFrame.UTF_8) : new byte[0];
+        ByteBuffer buffer = ByteBuffer.allocate(RpcFrame.HEADER_SIZE + 3 + encoded.length);
+        RpcFrame.writeHeader(buffer, 0, method, 0);
+        if (text != null) {
+            new RpcFrame.Writer(buffer).putUtf8(encoded);
+        }
+        RpcMessage message = new RpcMessage(buffer.position());
+        buffer.flip();
+        message.decode(source, buffer);
+        return message;
+    }
+
+    /**
+     * Copies the frame between position and limit of the buffer into this message.
+     *
+     * @return false if the frame is truncated, too long or of another version.
+     */
+    boolean decode(InetAddress source, ByteBuffer frame) {
+        int length = frame.remaining();
+        if (length < RpcFrame.HEADER_SIZE || length > mData.length
+                || frame.get(frame.position()) != RpcFrame.VERSION) {
+            return false;
+        }
+        frame.get(mData, 0, length);
+        mLength = length;
+        mFlags = mData[1] & 0xFF;
+        mMethod = getInt(2);
+        mSequence = getInt(6);
+        mPosition = RpcFrame.HEADER_SIZE;
+        mSource = source;
+        return true;
+    }
+
+    public int getMethod() {
+        return mMethod;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    /** Device the message came from, this device for local notifications. */
+    public InetAddress getSource() {
+        return mSource;
+    }
+
+    /** Whether there are fields left to read. */
+    public boolean hasNext() {
+        return mPosition < mLength;
+    }
+
+    public long readLong() {
+        expect(RpcFrame.TYPE_LONG, Long.SIZE / Byte.SIZE);
+        long value = ((long) getInt(mPosition) << 32) | (getInt(mPosition + 4) & 0xFFFFFFFFL);
+        mPosition += Long.SIZE / Byte.SIZE;
+        return value;
+    }
+
+    public int readInt() {
+        expect(RpcFrame.TYPE_INT, Integer.SIZE / Byte.SIZE);
+        int value = getInt(mPosition);
+        mPosition += Integer.SIZE / Byte.SIZE;
+        return value;
+    }
+
+    public String readString() {
+        int length = expectVariable(RpcFrame.TYPE_STRING);
+        String value = new String(mData, mPosition, length, RpcFrame.UTF_8);
+        mPosition += length;
+        return value;
+    }
+
+    public byte[] readBytes() {
+        int length = expectVariable(RpcFrame.TYPE_BYTES);
+        byte[] value = new byte[length];
+        System.arraycopy(mData, mPosition, value, 0, length);
+        mPosition += length;
+        return value;
+    }
+
+    /** Reads a byte array field holding a raw IPv4 or IPv6 address, no name lookup is done. */
+    public InetAddress readAddress() {
+        byte[] address = readBytes();
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("RPC field is not an address: " + address.length
+                    + " bytes");
+        }
+    }
+
+    /**
+     * Text form of the message as the String based {@link RpcCallback} received it: a single
+     * string field as is, otherwise all fields separated by commas, with byte arrays in hex.
+     * Null for messages without fields. Does not move the read position.
+     */
+    public String asText() {
+        int position = RpcFrame.HEADER_SIZE;
+        if (position == mLength) {
+            return null;
+        }
+        if (mData[position] == RpcFrame.TYPE_STRING
+                && position + 3 + getUnsignedShort(position + 1) == mLength) {
+            return new String(mData, position + 3, mLength - position - 3, RpcFrame.UTF_8);
+        }
+        StringBuilder text = new StringBuilder();
+        while (position < mLength) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+            byte type = mData[position++];
+            if (type == RpcFrame.TYPE_LONG) {
+                text.append(((long) getInt(position) << 32) | (getInt(position + 4) & 0xFFFFFFFFL));
+                position += Long.SIZE / Byte.SIZE;
+            } else if (type == RpcFrame.TYPE_INT) {
+                text.append(getInt(position));
+                position += Integer.SIZE / Byte.SIZE;
+            } else if (type == RpcFrame.TYPE_STRING || type == RpcFrame.TYPE_BYTES) {
+                int length = getUnsignedShort(position);
+                position += 2;
+                if (type == RpcFrame.TYPE_STRING) {
+                    text.append(new String(mData, position, length, RpcFrame.UTF_8));
+                } else {
+                    for (int i = position; i < position + length; i++) {
+                        text.append(String.format("%02x", mData[i] & 0xFF));
+                    }
+                }
+                position += length;
+            } else {
+                throw new IllegalArgumentException("Unknown RPC field type " + type);
+            }
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "RPC " + mMethod + " #" + mSequence + " from " + mSource;
+    }
+
+    private void expect(byte type, int size) {
+        if (mPosition >= mLength || mData[mPosition] != type) {
+            throw new IllegalArgumentException(
+                    "RPC " + mMethod + ": expected field of type " + type + " at " + mPosition);
+        }
+        if (mPosition + 1 + size > mLength) {
+            throw new IllegalArgumentException("RPC " + mMethod + ": truncated field");
+        }
+        mPosition++;
+    }
+
+    private int expectVariable(byte type) {
+        expect(type, 2);
+        int length = getUnsignedShort(mPosition);
+        mPosition += 2;
+        if (mPosition + length > mLength) {
+            throw new IllegalArgumentException("RPC " + mMethod + ": truncated field");
+        }
+        return length;
+    }
+
+    private int getInt(int position) {
+        return (mData[position] << 24)
+                | ((mData[position + 1] & 0xFF) << 16)
+                | ((mData[position + 2] & 0xFF) << 8)
+                | (mData[position + 3] & 0xFF);
+    }
+
+    private int getUnsignedShort(int position) {
+        return ((mData[position] & 0xFF) << 8) | (mData[position + 1] & 0xFF);
+    }
+}
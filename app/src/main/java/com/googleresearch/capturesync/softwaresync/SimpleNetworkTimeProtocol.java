@@ -19,7 +19,6 @@ package com.googleresearch.capturesync.softwaresync;
 import android.util.Log;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
@@ -45,7 +44,10 @@ public class SimpleNetworkTimeProtocol extends TimeSyncProtocol {
   }
 
   public SimpleNetworkTimeProtocol(
-      Ticker localClock, DatagramSocket nptpSocket, int nptpPort, SoftwareSyncLeader leader) {
+      Ticker localClock,
+      DatagramTransport.Endpoint nptpSocket,
+      int nptpPort,
+      SoftwareSyncLeader leader) {
     super(localClock, nptpSocket, nptpPort, leader);
   }
 
@@ -19,7 +19,6 @@ package com.googleresearch.capturesync.softwaresync;
 import android.util.Log;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 
@@ -32,11 +31,11 @@ public class SntpListener extends Thread {
 
   private static final String TAG = "SntpListener";
   private boolean running;
-  private final DatagramSocket nptpSocket;
+  private final DatagramTransport.Endpoint nptpSocket;
   private final int nptpPort;
   private final Ticker localClock;
 
-  public SntpListener(Ticker localClock, DatagramSocket nptpSocket, int nptpPort) {
+  public SntpListener(Ticker localClock, DatagramTransport.Endpoint nptpSocket, int nptpPort) {
     this.localClock = localClock;
     this.nptpSocket = nptpSocket;
     this.nptpPort = nptpPort;
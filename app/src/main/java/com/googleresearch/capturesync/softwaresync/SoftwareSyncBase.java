@@ -16,30 +16,27 @@
 
 package com.googleresearch.capturesync.softwaresync;
 
-import android.os.HandlerThread;
 import android.util.Log;
 
 import com.googleresearch.capturesync.MainActivity;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.BindException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * SoftwareSyncBase is the abstract base class to SoftwareSyncLeader and SoftwareSyncClient, holding
  * shared objects such as UDP ports and sockets, local client information and methods for starting
- * and stopping shared threads such as the rpc socket thread.
+ * and stopping shared threads such as the datagram transport thread serving the rpc and sntp
+ * sockets.
  *
  * <p>When the user is finished they should call the idempotent method close().
  */
@@ -56,17 +53,25 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
    */
   private long leaderFromLocalNs = 0;
 
+  /** One selector thread serving both the rpc and the sntp socket. */
+  private final DatagramTransport transport;
+
   /* SNTP Setup */
   final int sntpPort;
-  final DatagramSocket sntpSocket;
+  final DatagramTransport.Endpoint sntpSocket;
 
   /* RPC Setup. */
   private final int rpcPort;
-  private final DatagramSocket rpcSocket;
-  private final RpcThread rpcListenerThread;
-  final Map<Integer, RpcCallback> rpcMap = new HashMap<>();
-  /** Handle onRPC events on a separate thread. */
-  private final ExecutorService rpcExecutor = Executors.newSingleThreadExecutor();
+  private final DatagramTransport.Endpoint rpcSocket;
+  /** Callbacks by method, each running on its lane so slow callbacks do not delay the others. */
+  final RpcDispatcher rpcDispatcher = new RpcDispatcher();
+  /** Starts at a random value so the sequences of a restarted device are not taken as repeats. */
+  private final AtomicInteger rpcSequence = new AtomicInteger(new Random().nextInt());
+  /** Acks, retransmissions and duplicate suppression of RPCs sent with FLAG_RELIABLE. */
+  private final ReliableRpc reliableRpc;
+
+  /** Persistent TCP connections to peers, for data that does not fit in datagrams. */
+  final DataChannels dataChannels = new DataChannels();
 
   SoftwareSyncBase(String name, Ticker localClock, InetAddress address, InetAddress leaderAddress, MainActivity context) {
     this.rpcPort = SyncConstants.RPC_PORT;
@@ -80,28 +85,46 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     // Leader device ip address is provided by the user.
     this.leaderAddress = leaderAddress;
 
-    // Open sockets and start communication threads between leader and client devices.
+    // Open sockets on the transport thread shared between leader and client communication. RPC
+    // datagrams are dispatched to their lanes by the transport thread, sntp datagrams are queued
+    // for the time sync threads waiting on them.
     try {
-      rpcSocket = new DatagramSocket(null);
-      rpcSocket.setReuseAddress(true);
-      rpcSocket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
-      rpcSocket.bind(new InetSocketAddress(SyncConstants.RPC_PORT));
-
-      sntpSocket = new DatagramSocket(null);
-      sntpSocket.setReuseAddress(true);
-      sntpSocket.setSoTimeout(SyncConstants.SOCKET_WAIT_TIME_MS);
-      sntpSocket.bind(new InetSocketAddress(SyncConstants.SNTP_PORT));
-
+      transport = new DatagramTransport();
+      rpcSocket = transport.open(SyncConstants.RPC_PORT, this::onRpcPacket);
+      sntpSocket = transport.open(SyncConstants.SNTP_PORT, null);
+      // The leader may send one datagram to the subnet broadcast address instead of one per client.
+      rpcSocket.setBroadcast(true);
+      sntpSocket.setBroadcast(true);
+      sntpSocket.setIgnoredSource(address);
     } catch (BindException e) {
       throw new IllegalArgumentException("Socket already in use, close app and restart: " + e);
-    } catch (SocketException e) {
+    } catch (IOException e) {
       throw new IllegalArgumentException("Unable to open Sockets: " + e);
     }
 
-    // Start an RPC thread loop that listens for packets on the rpc socket, processes and calls
-    // onRpc with the processed method and payload.
-    rpcListenerThread = new RpcThread();
-    rpcListenerThread.start();
+    reliableRpc = new ReliableRpc(localClock, this::sendRpcFrame);
+
+    // RPCs too large for a datagram arrive as data channel streams of one frame.
+    dataChannels.setHandler(
+        SyncConstants.DATA_STREAM_RPC,
+        stream -> {
+          ByteArrayOutputStream frame = new ByteArrayOutputStream();
+          try (InputStream in = stream.getInputStream()) {
+            byte[] buffer = new byte[SyncConstants.RPC_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+              frame.write(buffer, 0, read);
+            }
+          } finally {
+            stream.close();
+          }
+          RpcMessage message = new RpcMessage(frame.size());
+          if (!message.decode(stream.getRemoteAddress(), ByteBuffer.wrap(frame.toByteArray()))) {
+            Log.w(TAG, "Dropping malformed RPC stream from " + stream.getRemoteAddress());
+            return;
+          }
+          rpcDispatcher.dispatch(message);
+        });
   }
 
   public MainActivity getContext() {
@@ -155,7 +178,26 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
     leaderFromLocalNs = value;
   }
 
+  /**
+   * Adds String based callbacks, served the text form of messages, see {@link RpcMessage}. They
+   * run on the DEFAULT lane in arrival order.
+   */
   void addPublicRpcCallbacks(Map<Integer, RpcCallback> callbacks) {
+    checkPublicMethodIds(callbacks);
+    for (Map.Entry<Integer, RpcCallback> entry : callbacks.entrySet()) {
+      rpcDispatcher.register(entry.getKey(), new RpcCallbackAdapter(entry.getValue()));
+    }
+  }
+
+  /** Adds typed callbacks, on the lanes given with {@link RpcDispatcher#onLane} or DEFAULT. */
+  void addPublicTypedRpcCallbacks(Map<Integer, TypedRpcCallback> callbacks) {
+    checkPublicMethodIds(callbacks);
+    for (Map.Entry<Integer, TypedRpcCallback> entry : callbacks.entrySet()) {
+      rpcDispatcher.register(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private static void checkPublicMethodIds(Map<Integer, ?> callbacks) {
     for (Integer key : callbacks.keySet()) {
       if (key < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
         throw new IllegalArgumentException(
@@ -164,96 +206,185 @@ public abstract class SoftwareSyncBase implements Closeable, TimeDomainConverter
                 key, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
       }
     }
-    rpcMap.putAll(callbacks);
   }
 
-  /** Sends a message with arguments to the specified address over the rpc socket. */
+  /** Data channels to peers. */
+  DataChannels getDataChannels() {
+    return dataChannels;
+  }
+
+  /**
+   * Sends a message with a string argument to the specified address over the rpc socket. Messages
+   * larger than RPC_BUFFER_SIZE are sent over the data channel to the address, if there is one.
+   */
   void sendRpc(int method, String arguments, InetAddress address) {
-    byte[] messagePayload = arguments.getBytes();
-    if (messagePayload.length + 4 > SyncConstants.RPC_BUFFER_SIZE) {
+    final byte[] messagePayload = arguments.getBytes(RpcFrame.UTF_8);
+    int frameSize = RpcFrame.HEADER_SIZE + 3 + messagePayload.length;
+    if (frameSize > SyncConstants.RPC_BUFFER_SIZE) {
+      DataChannel channel = dataChannels.get(address);
+      if (channel != null) {
+        ByteBuffer frame = ByteBuffer.allocate(frameSize);
+        encodeRpc(frame, 0, method, writer -> writer.putUtf8(messagePayload));
+        try (DataChannel.Stream stream = channel.openStream(SyncConstants.DATA_STREAM_RPC)) {
+          stream.getOutputStream().write(frame.array(), 0, frame.position());
+          return;
+        } catch (IOException e) {
+          throw new IllegalStateException("Error sending RPC over the data channel.", e);
+        }
+      }
       throw new IllegalArgumentException(
-          String.format(
-              "RPC arguments too big %d v %d",
-              messagePayload.length + 4, SyncConstants.RPC_BUFFER_SIZE));
+          String.format("RPC arguments too big %d v %d", frameSize, SyncConstants.RPC_BUFFER_SIZE));
     }
+    sendRpc(method, writer -> writer.putUtf8(messagePayload), address);
+  }
 
-    byte[] fullPayload =
-        ByteBuffer.allocate(messagePayload.length + 4).putInt(method).put(messagePayload).array();
-
-    DatagramPacket packet = new DatagramPacket(fullPayload, fullPayload.length, address, rpcPort);
+  /**
+   * Sends a message with typed arguments to the specified address over the rpc socket. The frame
+   * is written straight into a pooled buffer and has to fit in RPC_BUFFER_SIZE bytes.
+   */
+  void sendRpc(int method, RpcArguments arguments, InetAddress address) {
+    ByteBuffer packet = transport.acquireBuffer();
     try {
-      rpcSocket.send(packet);
+      packet.limit(SyncConstants.RPC_BUFFER_SIZE);
+      encodeRpc(packet, 0, method, arguments);
+      packet.flip();
+      rpcSocket.send(packet, address, rpcPort);
     } catch (IOException e) {
       throw new IllegalStateException("Error sending RPC packet.");
+    } finally {
+      transport.releaseBuffer(packet);
     }
   }
 
   /**
-   * RPC thread loop that listens for packets on the rpc socket, processes and calls onRpc with the
-   * processed method and payload.
+   * Sends a message with typed arguments that the address acks, retransmitting it with backoff
+   * until then, see {@link ReliableRpc}. The receiver dispatches it once even if it arrives
+   * several times. The returned delivery completes with the ack or fails after the last attempt.
    */
-  private class RpcThread extends HandlerThread {
-    private boolean running;
-
-    RpcThread() {
-      super("RpcListenerThread");
-    }
-
-    void stopRunning() {
-      running = false;
-    }
-
-    @Override
-    @SuppressWarnings("FutureReturnValueIgnored")
-    public void run() {
-      running = true;
+  RpcDelivery sendReliableRpc(int method, RpcArguments arguments, InetAddress address) {
+    ByteBuffer frame = ByteBuffer.allocate(SyncConstants.RPC_BUFFER_SIZE);
+    int sequence = encodeRpc(frame, RpcFrame.FLAG_RELIABLE, method, arguments);
+    return sendReliableRpcFrame(frame.array(), frame.position(), method, sequence, address);
+  }
 
-      byte[] buf = new byte[SyncConstants.RPC_BUFFER_SIZE];
-      while (running && !rpcSocket.isClosed()) {
-        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+  /** Sends an already encoded frame flagged FLAG_RELIABLE, which must not be modified after. */
+  RpcDelivery sendReliableRpcFrame(
+      byte[] frame, int length, int method, int sequence, InetAddress address) {
+    return reliableRpc.send(frame, length, method, sequence, address);
+  }
 
-        try {
-          // Wait for a client message.
-          rpcSocket.receive(packet);
+  /**
+   * Expects an ack for a reliable frame already sent to the address as part of a broadcast,
+   * retransmitting it to the address alone if the ack does not come.
+   */
+  RpcDelivery trackReliableRpcFrame(
+      byte[] frame, int length, int method, int sequence, InetAddress address) {
+    return reliableRpc.track(frame, length, method, sequence, address);
+  }
 
-          // Separate packet string into int method and string payload
-          // First 4 bytes is the integer method.
-          ByteBuffer packetByteBuffer = ByteBuffer.wrap(packet.getData());
-          int method = packetByteBuffer.getInt(); // From first 4 bytes.
-          // Rest of the bytes are the payload.
-          String payload = new String(packet.getData(), 4, packet.getLength() - 4);
+  /**
+   * Encodes an RPC frame with the next sequence number, see {@link RpcFrame}.
+   *
+   * @return the sequence number of the frame.
+   */
+  int encodeRpc(ByteBuffer frame, int flags, int method, RpcArguments arguments) {
+    int sequence = rpcSequence.incrementAndGet();
+    RpcFrame.writeHeader(frame, flags, method, sequence);
+    arguments.write(new RpcFrame.Writer(frame));
+    return sequence;
+  }
 
-          // Call onRpc with the method and payload in a separate thread.
-          rpcExecutor.submit(() -> onRpc(method, payload));
+  /** Sends an already encoded frame, used to send the same frame to several devices. */
+  void sendRpcFrame(byte[] frame, int length, InetAddress address) {
+    try {
+      rpcSocket.send(frame, 0, length, address, rpcPort);
+    } catch (IOException e) {
+      throw new IllegalStateException("Error sending RPC packet.");
+    }
+  }
 
-        } catch (SocketTimeoutException e) {
-          // Do nothing since this is a normal timeout of the receive.
-        } catch (IOException e) {
-          if (running || rpcSocket.isClosed()) {
-            Log.w(TAG, "Shutdown arrived in middle of a socket receive, ignoring error.");
-          } else {
-            throw new IllegalStateException("Socket Receive/Send error: " + e);
-          }
-        }
+  /**
+   * Called on the transport thread for each rpc datagram, dispatches it to its lane. Acks complete
+   * reliable sends, reliable frames are acked once dispatched and dropped when repeated. Datagrams
+   * from this device, i.e. its own broadcasts, are ignored.
+   */
+  private void onRpcPacket(InetSocketAddress source, ByteBuffer packet) {
+    InetAddress address = source.getAddress();
+    if (address.equals(localClientInfo.address())) {
+      return;
+    }
+    int flags = RpcFrame.hasHeader(packet) ? RpcFrame.peekFlags(packet) : 0;
+    if ((flags & RpcFrame.FLAG_ACK) != 0) {
+      reliableRpc.onAck(
+          address, RpcFrame.peekSequence(packet), RpcFrame.peekAckReceiveTimeNs(packet));
+      return;
+    }
+    boolean reliable = (flags & RpcFrame.FLAG_RELIABLE) != 0;
+    long receiveTimeNs = reliable ? getLeaderTimeNs() : 0;
+    int sequence = reliable ? RpcFrame.peekSequence(packet) : 0;
+    if (reliable) {
+      long firstReceiveTimeNs = reliableRpc.getReceiveTimeNs(address, sequence);
+      if (firstReceiveTimeNs != RpcDelivery.UNKNOWN_TIME) {
+        // Our ack was lost, the sender keeps retransmitting until it gets one.
+        sendRpcAck(RpcFrame.peekMethod(packet), sequence, firstReceiveTimeNs, address);
+        return;
+      }
+    }
+    int method = reliable ? RpcFrame.peekMethod(packet) : 0;
+    int result = rpcDispatcher.dispatch(address, packet);
+    if (result == RpcDispatcher.DISPATCHED) {
+      if (reliable) {
+        reliableRpc.markReceived(address, sequence, receiveTimeNs);
+        sendRpcAck(method, sequence, receiveTimeNs, address);
       }
+    } else if (result == RpcDispatcher.MALFORMED) {
+      Log.w(
+          TAG,
+          String.format(
+              "Dropping RPC packet from %s: %d bytes, version %d, expected version %d",
+              source, packet.remaining(), RpcFrame.peekVersion(packet), RpcFrame.VERSION));
     }
+    // A rejected reliable frame is not acked, its retransmission may find room on the lane.
   }
 
-  /** Handle RPCs using the existing RPC map. */
-  public void onRpc(int method, String payload) {
-    RpcCallback callback = rpcMap.get(method);
-    if (callback != null) {
-      callback.call(payload);
+  /** Acks a reliable frame, reporting the leader synchronized time at which it arrived. */
+  private void sendRpcAck(int method, int sequence, long receiveTimeNs, InetAddress address) {
+    ByteBuffer ack = transport.acquireBuffer();
+    try {
+      RpcFrame.writeHeader(ack, RpcFrame.FLAG_ACK, method, sequence);
+      new RpcFrame.Writer(ack).putLong(receiveTimeNs);
+      ack.flip();
+      rpcSocket.send(ack, address, rpcPort);
+    } catch (IOException e) {
+      Log.w(TAG, "Error sending RPC ack to " + address + ": " + e);
+    } finally {
+      transport.releaseBuffer(ack);
     }
   }
 
+  /** Handle RPCs using the dispatch table, each on the lane of its callback. */
+  void onRpc(RpcMessage message) {
+    rpcDispatcher.dispatch(message);
+  }
+
+  /**
+   * Handles a local notification or RPC as if it had been received with the payload, on the lane
+   * of its callback.
+   */
+  public void onRpc(int method, String payload) {
+    onRpc(RpcMessage.local(method, localClientInfo.address(), payload));
+  }
+
   /**
    * Idempotent close that handles closing sockets, threads if they are open or running, etc. If a
    * user overrides this method it is expected make sure to call super as well.
    */
   @Override
   public void close() throws IOException {
-    rpcListenerThread.stopRunning();
+    dataChannels.close();
+    reliableRpc.close();
+    transport.close();
+    rpcDispatcher.close();
     rpcSocket.close();
     sntpSocket.close();
   }
@@ -23,6 +23,7 @@ import com.googleresearch.capturesync.MainActivity;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -68,6 +69,9 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
 
   //private SntpListener sntpThread;
   private ImuTimeSyncListener imuSyncThread;
+
+  /** Serves the captures of this device to the leader. */
+  private final CaptureFileServer captureServer;
   
   public SoftwareSyncClient(
       String name,
@@ -76,7 +80,25 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
       Map<Integer, RpcCallback> rpcCallbacks,
       MainActivity context
     ) {
-    this(name, new SystemTicker(), address, leaderAddress, rpcCallbacks, context);
+    this(name, address, leaderAddress, rpcCallbacks, Collections.emptyMap(), context);
+  }
+
+  /** Client with both String based and typed RPC callbacks, method ids must not overlap. */
+  public SoftwareSyncClient(
+      String name,
+      InetAddress address,
+      InetAddress leaderAddress,
+      Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, TypedRpcCallback> typedRpcCallbacks,
+      MainActivity context) {
+    this(
+        name,
+        new SystemTicker(),
+        address,
+        leaderAddress,
+        rpcCallbacks,
+        typedRpcCallbacks,
+        context);
   }
 
   @SuppressWarnings("FutureReturnValueIgnored")
@@ -86,37 +108,55 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
       InetAddress address,
       InetAddress leaderAddress,
       Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, TypedRpcCallback> typedRpcCallbacks,
       MainActivity context
   ) {
     super(name, localClock, address, leaderAddress, context);
 
-    // Add client-specific RPC callbacks.
-    rpcMap.put(
+    // Add client-specific RPC callbacks. Both only record the leader response, so they run inline
+    // on the transport thread.
+    rpcDispatcher.register(
         SyncConstants.METHOD_HEARTBEAT_ACK,
-        payload -> {
+        RpcDispatcher.Lane.INLINE,
+        message -> {
           // Leader responded to heartbeat. update last response and change sync status as needed.
           lastLeaderResponseTimeNs = localClock.read();
           Log.v(TAG, "Heartbeat acknowledge received from leader.");
           updateState();
         });
-    rpcMap.put(
+    rpcDispatcher.register(
         SyncConstants.METHOD_OFFSET_UPDATE,
-        payload -> {
+        RpcDispatcher.Lane.INLINE,
+        message -> {
           lastLeaderOffsetResponseTimeNs = localClock.read();
+          long offsetNs = message.readLong();
 
-          Log.d(TAG, "Received offsetNs update: (" + payload + "), stopping sntp sync request.");
+          Log.d(TAG, "Received offsetNs update: (" + offsetNs + "), stopping sntp sync request.");
           // Set the time offsetNs to the offsetNs passed in by the leader and update state.
-          setLeaderFromLocalNs(Long.parseLong(payload));
+          setLeaderFromLocalNs(offsetNs);
           updateState();
           onRpc(SyncConstants.METHOD_MSG_OFFSET_UPDATED, Long.toString(getLeaderFromLocalNs()));
         });
 
     // Add callbacks passed by user.
     addPublicRpcCallbacks(rpcCallbacks);
+    addPublicTypedRpcCallbacks(typedRpcCallbacks);
 
     // Initial state is waiting to register with leader.
     reset();
 
+    try {
+      captureServer =
+          new CaptureFileServer(
+              context.getExternalFilesDir(null), SyncConstants.CAPTURE_TRANSFER_PORT);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to open capture server socket: " + e);
+    }
+    captureServer.start();
+    dataChannels.setHandler(
+        SyncConstants.DATA_STREAM_CAPTURE,
+        stream -> captureServer.serve(stream.getInputStream(), stream.getOutputStream()));
+
     // Start periodically sending out a heartbeat to the leader.
     heartbeatScheduler.scheduleAtFixedRate(
         this::sendHeartbeat, 0, SyncConstants.HEARTBEAT_PERIOD_NS, TimeUnit.NANOSECONDS);
@@ -139,22 +179,24 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
   private void sendHeartbeat() {
     // First update current client state based on time since last response.
     updateState();
+    maybeConnectDataChannel();
 
-    // Generate heartbeat message containing the client address and the
-    // string value of the synchronization state.
-    final String heartbeatMsg;
+    // Generate heartbeat message containing the client name, the raw client address and the
+    // synchronization state.
+    final boolean syncState;
     synchronized (syncLock) {
-      // Note: Send messages using strings for simplicity.
-      heartbeatMsg =
-          String.format(
-              "%s,%s,%s",
-              getLocalClientInfo().name(),
-              getLocalClientInfo().address().getHostAddress(),
-              Boolean.toString(synced));
+      syncState = synced;
     }
 
     // Send heartbeat RPC to leader, expecting a METHOD_HEARTBEAT_ACK rpc back from leader.
-    sendRpc(SyncConstants.METHOD_HEARTBEAT, heartbeatMsg, getLeaderAddress());
+    sendRpc(
+        SyncConstants.METHOD_HEARTBEAT,
+        writer ->
+            writer
+                .putString(getLocalClientInfo().name())
+                .putBytes(getLocalClientInfo().address().getAddress())
+                .putInt(syncState ? 1 : 0),
+        getLeaderAddress());
   }
 
   /**
@@ -202,11 +244,26 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
     }
   }
 
+  /** Connects the data channel to the leader once it has responded, if it is not connected. */
+  private void maybeConnectDataChannel() {
+    if (lastLeaderResponseTimeNs == 0 || dataChannels.get(getLeaderAddress()) != null) {
+      return;
+    }
+    try {
+      dataChannels.connect(getLeaderAddress(), SyncConstants.DATA_CHANNEL_PORT);
+    } catch (IOException e) {
+      // Transfers fall back to their own connections, retried on the next heartbeat.
+      Log.w(TAG, "Unable to connect the data channel to the leader: " + e);
+    }
+  }
+
   /** Start SNTP thread if it's not already running. */
   private void maybeStartSntpThread() {
     if (imuSyncThread == null || !imuSyncThread.isAlive()) {
       // Set up SNTP thread.
-      imuSyncThread = new ImuTimeSyncListener(localClock, sntpSocket, sntpPort, getContext());
+      imuSyncThread =
+          new ImuTimeSyncListener(
+              localClock, sntpSocket, sntpPort, getContext(), getName(), dataChannels);
       imuSyncThread.start();
     }
   }
@@ -227,6 +284,7 @@ public class SoftwareSyncClient extends SoftwareSyncBase {
   @Override
   public void close() throws IOException {
     maybeStopSntpThread();
+    captureServer.stopRunning();
     // Stop the heartbeat scheduler.
     heartbeatScheduler.shutdown();
     try {
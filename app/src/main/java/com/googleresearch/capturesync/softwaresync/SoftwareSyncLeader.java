@@ -20,21 +20,24 @@ import android.util.Log;
 
 import com.googleresearch.capturesync.MainActivity;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Leader which listens for registrations from SoftwareSyncClients, allowing it to broadcast times
@@ -49,10 +52,8 @@ import java.util.concurrent.TimeUnit;
  * the leader's to the precision requested.
  */
 public class SoftwareSyncLeader extends SoftwareSyncBase {
-  /** List of connected clients. */
-  private final Map<InetAddress, ClientInfo> clients = new HashMap<>();
-
-  private final Object clientsLock = new Object();
+  /** Connected clients, read through snapshots so readers never block heartbeats. */
+  private final ClientRegistry clients = new ClientRegistry();
 
   /** Keeps track of how long since each client heartbeat was received, removing when stale. */
   private final ScheduledExecutorService staleClientChecker = Executors.newScheduledThreadPool(1);
@@ -60,12 +61,32 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
   /** Send RPC messages on a separate thread, avoiding Network on Main Thread exceptions. */
   private final ExecutorService rpcMessageExecutor = Executors.newSingleThreadExecutor();
 
-  /** Manages SNTP synchronization of clients. */
-  private final TimeSyncProtocol imuTimeSync;
+  /** Subnet broadcast address of the leader interface, null if it has none. */
+  private final InetAddress broadcastAddress;
+
+  private volatile boolean rpcBroadcastEnabled = SyncConstants.USE_RPC_BROADCAST;
+
+  /** Manages IMU synchronization of clients. */
+  private final ImuTimeSync imuTimeSync;
+
+  /** Pulls synchronized captures from clients. */
+  private final CaptureCollector captureCollector;
 
   public SoftwareSyncLeader(
       String name, long initialTime, InetAddress address, Map<Integer, RpcCallback> rpcCallbacks, MainActivity context) {
-    this(name, new SystemTicker(), initialTime, address, rpcCallbacks, context);
+    this(name, initialTime, address, rpcCallbacks, Collections.emptyMap(), context);
+  }
+
+  /** Leader with both String based and typed RPC callbacks, method ids must not overlap. */
+  public SoftwareSyncLeader(
+      String name,
+      long initialTime,
+      InetAddress address,
+      Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, TypedRpcCallback> typedRpcCallbacks,
+      MainActivity context) {
+    this(
+        name, new SystemTicker(), initialTime, address, rpcCallbacks, typedRpcCallbacks, context);
   }
 
   @SuppressWarnings("FutureReturnValueIgnored")
@@ -75,6 +96,7 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
       long initialTime,
       InetAddress address,
       Map<Integer, RpcCallback> rpcCallbacks,
+      Map<Integer, TypedRpcCallback> typedRpcCallbacks,
       MainActivity context
   ) {
     // Note: Leader address is required to be the same as local address.
@@ -89,39 +111,126 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
     // ex. initialTimeNs = TimeUtils.millisToNanos(System.currentTimeMillis())
     setLeaderFromLocalNs(localClock.read() - initialTime);
 
-    // Add client-specific RPC callbacks.
-    rpcMap.put(
+    // Add client-specific RPC callbacks. Heartbeats get a lane of their own, so they never wait
+    // behind user callbacks.
+    rpcDispatcher.register(
         SyncConstants.METHOD_HEARTBEAT,
-        payload -> {
+        RpcDispatcher.Lane.SERIAL,
+        message -> {
           // Received heartbeat from client, send back an acknowledge and then
           // check the client state and add to sntp queue if needed.
-          Log.v(TAG, "Heartbeat received from client: " + payload);
-          try {
-            processHeartbeatRpc(payload);
-          } catch (UnknownHostException e) {
-            Log.e(TAG, "Processed heartbeat with corrupt host address: " + payload);
-          }
+          String clientName = message.readString();
+          InetAddress clientAddress = message.readAddress();
+          boolean clientSyncState = message.readInt() != 0;
+          Log.v(TAG, "Heartbeat received from client: " + clientName);
+          processHeartbeatRpc(clientName, clientAddress, clientSyncState);
         });
 
     // Add callbacks passed by user.
     addPublicRpcCallbacks(rpcCallbacks);
+    addPublicTypedRpcCallbacks(typedRpcCallbacks);
+
+    // Clients open their data channel once registered.
+    try {
+      dataChannels.listen(SyncConstants.DATA_CHANNEL_PORT);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to open data channel socket: " + e);
+    }
 
     // Set up time sync instance for synchronizing with clients.
     imuTimeSync = new ImuTimeSync(localClock, sntpSocket, SyncConstants.SNTP_PORT, this, getContext());
 
+    captureCollector =
+        new CaptureCollector(getContext().getExternalFilesDir(null), name, dataChannels);
+
+    broadcastAddress = findBroadcastAddress(address);
+
     // Start periodically checking for stale clients and removing as needed.
     staleClientChecker.scheduleAtFixedRate(
         this::removeStaleClients, 0, SyncConstants.STALE_TIME_NS, TimeUnit.NANOSECONDS);
   }
 
+  /**
+   * Chooses between one subnet broadcast datagram and one datagram per client for broadcast RPCs.
+   * Without a broadcast address on the leader interface the RPCs are always sent per client.
+   */
+  public void setRpcBroadcastEnabled(boolean enabled) {
+    rpcBroadcastEnabled = enabled;
+  }
+
+  /** The broadcast address RPCs are sent to, null if they are sent per client. */
+  private InetAddress getRpcBroadcastAddress() {
+    return rpcBroadcastEnabled ? broadcastAddress : null;
+  }
+
+  /** Subnet broadcast address of the leader interface, null if it has none. */
+  InetAddress getBroadcastAddress() {
+    return broadcastAddress;
+  }
+
+  private static InetAddress findBroadcastAddress(InetAddress address) {
+    try {
+      NetworkInterface networkInterface = NetworkInterface.getByInetAddress(address);
+      if (networkInterface != null) {
+        for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+          if (address.equals(interfaceAddress.getAddress())) {
+            return interfaceAddress.getBroadcast();
+          }
+        }
+      }
+    } catch (SocketException e) {
+      Log.w(TAG, "Unable to look up the broadcast address of " + address + ": " + e);
+    }
+    return null;
+  }
+
   public void newSyncRequestForClient(InetAddress clientAddress) {
     imuTimeSync.submitNewSyncRequest(clientAddress);
   }
 
-  public Map<InetAddress, ClientInfo> getClients() {
-    synchronized (clientsLock) {
-      return Collections.unmodifiableMap(clients);
+  /**
+   * Sync request served from the gyro samples both devices already hold in memory, without
+   * waiting for a new recording. Useful for a resync while the rig is already moving.
+   */
+  public void newRetroactiveSyncRequestForClient(InetAddress clientAddress) {
+    imuTimeSync.submitNewSyncRequest(clientAddress, /*retroactive=*/ true);
+  }
+
+  /**
+   * Syncs all current clients on one shared gyro window, see {@link
+   * #newRetroactiveSyncRequestForClient} for the meaning of retroactive.
+   */
+  public void newSyncRequestForAllClients(boolean retroactive) {
+    imuTimeSync.submitNewSyncRequest(getClients().keySet(), retroactive);
+  }
+
+  /**
+   * Collects the capture of the trigger time from all current clients into one capture set, once
+   * the capture should have been saved.
+   *
+   * @param triggerTimeNs trigger time in the leader time domain.
+   * @return future of the capture set directory.
+   */
+  public Future<File> collectCaptures(long triggerTimeNs) {
+    Map<InetAddress, String> clientNames = new HashMap<>();
+    ClientRegistry.Snapshot snapshot = clients.snapshot();
+    for (int i = 0; i < snapshot.size(); i++) {
+      clientNames.put(snapshot.get(i).address(), snapshot.get(i).name());
     }
+    long delayMillis =
+        Math.max(0, triggerTimeNs - getLeaderTimeNs()) / 1_000_000
+            + SyncConstants.CAPTURE_COLLECTION_DELAY_MILLIS;
+    return captureCollector.collect(triggerTimeNs, clientNames, delayMillis);
+  }
+
+  /** Current clients by address, an unmodifiable snapshot that does not change afterwards. */
+  public Map<InetAddress, ClientInfo> getClients() {
+    return clients.snapshot().asMap();
+  }
+
+  /** Current clients with the version of the registry they were taken from. */
+  public ClientRegistry.Snapshot getClientSnapshot() {
+    return clients.snapshot();
   }
 
   /**
@@ -130,89 +239,68 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
    * list.
    */
   private void addOrUpdateClient(String name, InetAddress address) {
-    // Check if it's a new client, so we don't add again.
-    synchronized (clientsLock) {
-      boolean clientExists = clients.containsKey(address);
-      // Add or replace entry with an updated ClientInfo.
-      long offsetNs = 0;
-      long syncAccuracyNs = 0;
-      if (clientExists) {
-        offsetNs = clients.get(address).offset();
-        syncAccuracyNs = clients.get(address).syncAccuracy();
-      }
-      ClientInfo updatedClient =
-          ClientInfo.create(name, address, offsetNs, syncAccuracyNs, localClock.read());
-      clients.put(address, updatedClient);
-
-      if (!clientExists) {
-        // Notify via message on interface if client is new.
-        onRpc(SyncConstants.METHOD_MSG_ADDED_CLIENT, updatedClient.name());
-      }
+    if (clients.onHeartbeat(name, address, localClock.read())) {
+      // Notify via message on interface if client is new.
+      onRpc(SyncConstants.METHOD_MSG_ADDED_CLIENT, name);
     }
   }
 
   /** Removes clients whose last heartbeat was longer than STALE_TIME_NS ago. */
   private void removeStaleClients() {
     long t = localClock.read();
-    synchronized (clientsLock) {
-      // Use iterator to avoid concurrent modification exception.
-      Iterator<Entry<InetAddress, ClientInfo>> clientIterator = clients.entrySet().iterator();
-      while (clientIterator.hasNext()) {
-        ClientInfo client = clientIterator.next().getValue();
-        long timeSince = t - client.lastHeartbeat();
-        if (timeSince > SyncConstants.STALE_TIME_NS) {
-          Log.w(
-              TAG,
-              String.format(
-                  "Stale client %s : time since %,d seconds",
-                  client.name(), TimeUtils.nanosToSeconds(timeSince)));
-
-          // Remove entry from the client list first.
-          clientIterator.remove();
-          // Client hasn't responded in a while, remove from list.
-          onRpc(SyncConstants.METHOD_MSG_REMOVED_CLIENT, client.name());
-        }
-      }
+    for (ClientInfo client : clients.removeStale(t, SyncConstants.STALE_TIME_NS)) {
+      Log.w(
+          TAG,
+          String.format(
+              "Stale client %s : time since %,d seconds",
+              client.name(), TimeUtils.nanosToSeconds(t - client.lastHeartbeat())));
+      dataChannels.close(client.address());
+      // Client hasn't responded in a while, removed from list.
+      onRpc(SyncConstants.METHOD_MSG_REMOVED_CLIENT, client.name());
     }
   }
 
   /** Finds and updates client sync accuracy within list. */
   void updateClientWithOffsetResponse(InetAddress clientAddress, TimeSyncOffsetResponse response) {
     // Update client sync accuracy locally.
-    synchronized (clientsLock) {
-      if (!clients.containsKey(clientAddress)) {
-        Log.w(TAG, "Tried to update a client info that is no longer in the list, Skipping.");
-        return;
-      }
-      final ClientInfo client = clients.get(clientAddress);
-      ClientInfo updatedClient =
-          ClientInfo.create(
-              client.name(),
-              client.address(),
-              response.offsetNs(),
-              response.syncAccuracyNs(),
-              client.lastHeartbeat());
-      clients.put(client.address(), updatedClient);
+    if (!clients.onOffsetUpdate(
+        clientAddress, response.offsetNs(), response.syncAccuracyNs())) {
+      Log.w(TAG, "Tried to update a client info that is no longer in the list, Skipping.");
     }
   }
 
   /**
-   * Sends an RPC to every client in the leader's clients list.
+   * Sends an RPC to every client in the leader's clients list. The frame is encoded once, sent as
+   * one broadcast datagram if enabled, and the leader handles the same frame itself.
    *
    * @param method int type of RPC (in {@link SyncConstants}).
-   * @param payload String payload.
+   * @param arguments typed arguments.
    */
   @SuppressWarnings("FutureReturnValueIgnored")
-  private void internalBroadcastRpc(int method, String payload) {
+  private void internalBroadcastRpc(int method, RpcArguments arguments) {
+    ByteBuffer buffer = ByteBuffer.allocate(SyncConstants.RPC_BUFFER_SIZE);
+    encodeRpc(buffer, 0, method, arguments);
+    final byte[] frame = buffer.array();
+    final int length = buffer.position();
+
     // Send RPC message to all clients and call onRPC of self as well.
-    synchronized (clientsLock) {
-      for (InetAddress address : clients.keySet()) {
-        rpcMessageExecutor.submit(() -> sendRpc(method, payload, address));
-      }
-    }
+    final ClientRegistry.Snapshot snapshot = clients.snapshot();
+    final InetAddress broadcast = getRpcBroadcastAddress();
+    rpcMessageExecutor.submit(
+        () -> {
+          if (broadcast == null || !sendRpcBroadcast(frame, length, broadcast)) {
+            // One task for all clients, so they are not also queued behind each other's task.
+            for (int i = 0; i < snapshot.size(); i++) {
+              sendRpcFrame(frame, length, snapshot.get(i).address());
+            }
+          }
+        });
 
     // Also call onRpc for self (leader).
-    onRpc(method, payload);
+    RpcMessage message = new RpcMessage(length);
+    buffer.flip();
+    message.decode(getLocalClientInfo().address(), buffer);
+    onRpc(message);
   }
 
   /**
@@ -223,18 +311,134 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
    * @param payload String payload.
    */
   public void broadcastRpc(int method, String payload) {
+    final byte[] encoded = payload.getBytes(RpcFrame.UTF_8);
+    broadcastRpc(method, writer -> writer.putUtf8(encoded));
+  }
+
+  /**
+   * Public-facing broadcast RPC with typed arguments to all current clients, for non-softwaresync
+   * RPC methods only. The arguments have to fit in one datagram.
+   *
+   * @param method int type of RPC, must be greater than {@link
+   *     SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+   * @param arguments typed arguments, read by a {@link TypedRpcCallback}.
+   */
+  public void broadcastRpc(int method, RpcArguments arguments) {
+    if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Given method id %s, User method ids must" + " be >= %s",
+              method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
+    }
+    internalBroadcastRpc(method, arguments);
+  }
+
+  /**
+   * Broadcasts an RPC that every current client acks, see {@link #sendReliableRpc}. The frame is
+   * encoded once and the leader handles it itself without an ack. Once all deliveries complete
+   * the number of clients that acked, the slowest ack and the spread of the times at which the
+   * clients received the RPC are logged.
+   *
+   * @param method int type of RPC, must be greater than {@link
+   *     SyncConstants#START_NON_SOFTWARESYNC_METHOD_IDS}.
+   * @param arguments typed arguments, read by a {@link TypedRpcCallback}.
+   * @return the delivery to each client, by client address.
+   */
+  public Map<InetAddress, RpcDelivery> broadcastReliableRpc(int method, RpcArguments arguments) {
     if (method < SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS) {
       throw new IllegalArgumentException(
           String.format(
               "Given method id %s, User method ids must" + " be >= %s",
               method, SyncConstants.START_NON_SOFTWARESYNC_METHOD_IDS));
     }
-    internalBroadcastRpc(method, payload);
+    ByteBuffer buffer = ByteBuffer.allocate(SyncConstants.RPC_BUFFER_SIZE);
+    int sequence = encodeRpc(buffer, RpcFrame.FLAG_RELIABLE, method, arguments);
+    byte[] frame = buffer.array();
+    int length = buffer.position();
+
+    // With a broadcast the clients are only sent to alone when their ack is late, which also
+    // covers a failed broadcast.
+    final InetAddress broadcast = getRpcBroadcastAddress();
+    Map<InetAddress, RpcDelivery> deliveries = new HashMap<>();
+    ClientRegistry.Snapshot snapshot = clients.snapshot();
+    for (int i = 0; i < snapshot.size(); i++) {
+      InetAddress address = snapshot.get(i).address();
+      deliveries.put(
+          address,
+          broadcast == null
+              ? sendReliableRpcFrame(frame, length, method, sequence, address)
+              : trackReliableRpcFrame(frame, length, method, sequence, address));
+    }
+    if (broadcast != null && !deliveries.isEmpty()) {
+      rpcMessageExecutor.submit(() -> sendRpcBroadcast(frame, length, broadcast));
+    }
+    final Map<InetAddress, RpcDelivery> result = Collections.unmodifiableMap(deliveries);
+    final AtomicInteger remaining = new AtomicInteger(result.size());
+    RpcDelivery.Listener summary =
+        delivery -> {
+          if (remaining.decrementAndGet() == 0) {
+            logBroadcastDeliveries(method, result.values());
+          }
+        };
+    for (RpcDelivery delivery : result.values()) {
+      delivery.addListener(summary);
+    }
+
+    RpcMessage message = new RpcMessage(length);
+    buffer.flip();
+    message.decode(getLocalClientInfo().address(), buffer);
+    onRpc(message);
+    return result;
+  }
+
+  /** Sends a frame to all clients at once, returns false if the broadcast failed. */
+  private boolean sendRpcBroadcast(byte[] frame, int length, InetAddress broadcast) {
+    try {
+      sendRpcFrame(frame, length, broadcast);
+      return true;
+    } catch (IllegalStateException e) {
+      Log.w(TAG, "RPC broadcast to " + broadcast + " failed, sending to each client: " + e);
+      return false;
+    }
+  }
+
+  private static void logBroadcastDeliveries(int method, Collection<RpcDelivery> deliveries) {
+    int acked = 0;
+    long maxLatencyNs = 0;
+    long firstReceiveNs = Long.MAX_VALUE;
+    long lastReceiveNs = Long.MIN_VALUE;
+    StringBuilder missing = new StringBuilder();
+    for (RpcDelivery delivery : deliveries) {
+      if (delivery.isAcknowledged()) {
+        acked++;
+        maxLatencyNs = Math.max(maxLatencyNs, delivery.getLatencyNs());
+        long receiveNs = delivery.getPeerReceiveTimeNs();
+        if (receiveNs != RpcDelivery.UNKNOWN_TIME) {
+          firstReceiveNs = Math.min(firstReceiveNs, receiveNs);
+          lastReceiveNs = Math.max(lastReceiveNs, receiveNs);
+        }
+      } else {
+        missing.append(' ').append(delivery.getPeer().getHostAddress());
+      }
+    }
+    Log.i(
+        TAG,
+        String.format(
+            "RPC %d acked by %d/%d clients, slowest %.2f ms, receive spread %.2f ms%s",
+            method,
+            acked,
+            deliveries.size(),
+            TimeUtils.nanosToMillis((double) maxLatencyNs),
+            firstReceiveNs > lastReceiveNs
+                ? 0.0
+                : TimeUtils.nanosToMillis((double) (lastReceiveNs - firstReceiveNs)),
+            missing.length() == 0 ? "" : ", missing:" + missing));
   }
 
   @Override
   public void close() throws IOException {
     imuTimeSync.close();
+    captureCollector.close();
     staleClientChecker.shutdown();
     try {
       // Wait up to 0.5 seconds for this to close.
@@ -251,24 +455,21 @@ public class SoftwareSyncLeader extends SoftwareSyncBase {
    * or updating the client in the tracked clients list, and submitting a new sync request if
    * the client state is not yet synchronized.
    *
-   * @param payload format of "ClientName,ClientAddress,ClientState"
+   * @param clientName name of the client.
+   * @param clientAddress address the client reports for itself.
+   * @param clientSyncState whether the client considers itself synchronized.
    */
-  private void processHeartbeatRpc(String payload) throws UnknownHostException {
-    List<String> parts = Arrays.asList(payload.split(","));
-    if (parts.size() != 3) {
-      Log.e(
-          TAG,
-          "Heartbeat message has the wrong format, expected 3 comma-delimitted parts: "
-              + payload
-              + ". Skipping.");
-      return;
-    }
-    String clientName = parts.get(0);
-    InetAddress clientAddress = InetAddress.getByName(parts.get(1));
-    boolean clientSyncState = Boolean.parseBoolean(parts.get(2));
-
-    // Send heartbeat acknowledge RPC back to client first, containing the same payload.
-    sendRpc(SyncConstants.METHOD_HEARTBEAT_ACK, payload, clientAddress);
+  private void processHeartbeatRpc(
+      String clientName, InetAddress clientAddress, boolean clientSyncState) {
+    // Send heartbeat acknowledge RPC back to client first, containing the same fields.
+    sendRpc(
+        SyncConstants.METHOD_HEARTBEAT_ACK,
+        writer ->
+            writer
+                .putString(clientName)
+                .putBytes(clientAddress.getAddress())
+                .putInt(clientSyncState ? 1 : 0),
+        clientAddress);
 
     // Add or update client in clients.
     addOrUpdateClient(clientName, clientAddress);
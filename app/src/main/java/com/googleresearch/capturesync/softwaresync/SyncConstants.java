@@ -58,16 +58,157 @@ public class SyncConstants {
   public static final int METHOD_MSG_SYNCING = 1_104;
   public static final int METHOD_MSG_OFFSET_UPDATED = 1_105;
 
+  /**
+   * Reserved id ranges of synchronization RPCs and messages, dispatched through dense tables. User
+   * method ids are looked up in a sorted table, see RpcDispatcher.
+   */
+  public static final int SYNC_METHOD_IDS_START = 0;
+  public static final int SYNC_METHOD_IDS_END = 100;
+  public static final int MESSAGE_METHOD_IDS_START = 1_100;
+  public static final int MESSAGE_METHOD_IDS_END = 1_200;
+  /** RPCs waiting per execution lane before new ones are dropped. */
+  public static final int RPC_LANE_QUEUE_SIZE = 256;
+  public static final int RPC_SHARED_LANE_THREADS = 2;
+
+  /**
+   * Reliable RPCs: first retransmission timeout, doubled per attempt up to the maximum, and sends
+   * before giving up. The attempts end within the FUTURE_TRIGGER_DELAY_NS a trigger is scheduled
+   * ahead. Receivers remember this many sequence numbers per peer to drop retransmissions.
+   */
+  public static final long RELIABLE_RPC_INITIAL_TIMEOUT_MS = 10;
+  public static final long RELIABLE_RPC_MAX_TIMEOUT_MS = 160;
+  public static final int RELIABLE_RPC_MAX_ATTEMPTS = 6;
+  public static final int RELIABLE_RPC_DEDUP_WINDOW = 64;
+
+  /**
+   * Whether the leader sends broadcast RPCs as one datagram to the subnet broadcast address, so all
+   * clients get them at once, instead of one datagram per client. Broadcasts are not retried by
+   * the wifi link layer, reliable broadcasts are retransmitted to the clients that did not ack.
+   */
+  public static final boolean USE_RPC_BROADCAST = false;
+
   /** Clock Sync - Simple Network Time Protocol (SNTP). */
   public static final int SNTP_PORT = 9428;
   public static final int SNTP_BUFFER_SIZE = 512;
   public static final int NUM_SNTP_CYCLES = 300;
   public static final long MIN_ROUND_TRIP_LATENCY_NS = TimeUtils.millisToNanos(1);
 
-  /** IMU Time Sync */
+  /**
+   * IMU Time Sync. Between start and stop recording the client streams its gyro samples to the
+   * leader, in batches of GYRO_STREAM_BATCH_MILLIS. Start recording carries (int codecs), the
+   * bit mask of GyroCodec codecs the leader can decode.
+   */
   public static final int METHOD_MSG_START_RECORDING = 10_101;
   public static final int METHOD_MSG_STOP_RECORDING = 10_102;
+  public static final int GYRO_STREAM_BATCH_MILLIS = 100;
+  /**
+   * Stop recording is a single datagram, so the leader resends it every GYRO_STOP_RESEND_MILLIS
+   * to clients whose upload is still open and closes the uploads still open
+   * GYRO_UPLOAD_DRAIN_MILLIS after the recording. Clients that never get it stop streaming
+   * GYRO_STREAM_STOP_MARGIN_MILLIS after the longest recording. Uploads over their own
+   * connection fail when no bytes arrive for GYRO_UPLOAD_READ_TIMEOUT_MILLIS.
+   */
+  public static final int GYRO_STOP_RESEND_MILLIS = 250;
+  public static final int GYRO_UPLOAD_DRAIN_MILLIS = 3_000;
+  public static final int GYRO_STREAM_STOP_MARGIN_MILLIS = 5_000;
+  public static final int GYRO_UPLOAD_READ_TIMEOUT_MILLIS = 2_000;
+  /**
+   * Asks the client to send gyro samples of a past window, payload is
+   * (long windowStartNs, long windowEndNs, long sendTimeNs) in the leader local clock domain,
+   * followed by (int codecs) as for start recording.
+   */
+  public static final int METHOD_MSG_REQUEST_GYRO_WINDOW = 10_103;
+  /** Length of retroactive sync windows. */
   public static final int SENSOR_REC_PERIOD_MILLIS = 10_000;
+  /**
+   * Recordings stop early, but not before MIN_SENSOR_REC_PERIOD_MILLIS, once the online delay
+   * estimates of the last ONLINE_SYNC_STABLE_BATCHES stream batches stay within
+   * ONLINE_SYNC_TOLERANCE_NS and their norm correlation reaches ONLINE_SYNC_MIN_CONFIDENCE, or
+   * once TARGET_EXCITED_MILLIS of informative motion have been recorded. Recordings with weak
+   * motion go on up to MAX_SENSOR_REC_PERIOD_MILLIS, which must fit in the gyro history.
+   */
+  public static final int MIN_SENSOR_REC_PERIOD_MILLIS = 2_000;
+  public static final int MAX_SENSOR_REC_PERIOD_MILLIS = 20_000;
+  public static final int TARGET_EXCITED_MILLIS = 3_000;
+  public static final long ONLINE_SYNC_TOLERANCE_NS = 500_000;
+  public static final double ONLINE_SYNC_MIN_CONFIDENCE = 0.8;
+  public static final int ONLINE_SYNC_STABLE_BATCHES = 5;
+  /**
+   * Motion is informative when the mean squared angular velocity norm of the last
+   * EXCITATION_WINDOW_SAMPLES samples reaches MIN_EXCITATION_ENERGY, in (rad/s)^2, and the
+   * spectral flatness of the norms reaches MIN_EXCITATION_FLATNESS, which rejects periodic shaking.
+   */
+  public static final int EXCITATION_WINDOW_SAMPLES = 512;
+  public static final double MIN_EXCITATION_ENERGY = 0.25;
+  public static final double MIN_EXCITATION_FLATNESS = 0.1;
+  /**
+   * Bound of the delay searched by gyro sync. Sync windows are mapped to the client clock on
+   * request receipt, so the delay is about the network latency and never close to this.
+   */
+  public static final long MAX_GYRO_SYNC_LAG_MILLIS = 1_000;
+  /**
+   * Coarse-to-fine search of the gyro sync peak in the Java engine: number of pyramid levels
+   * (1 disables it) and decimation factor between levels. Off by default. The native engine has
+   * no pyramid, so more than one level also selects the Java engine.
+   */
+  public static final int GYRO_SYNC_PYRAMID_LEVELS = 1;
+  public static final int GYRO_SYNC_PYRAMID_FACTOR = 4;
+  /**
+   * Clients synced together upload their gyro windows concurrently, the leader waits at most
+   * this long for all of them to connect after starting the recording or requesting the window.
+   */
+  public static final int GYRO_UPLOAD_TIMEOUT_MILLIS = 5_000;
+  /** Upper bound of gyro sync delay estimations run in parallel. */
+  public static final int GYRO_SYNC_MAX_ESTIMATORS = 4;
+  /** The leader gives up on the delay estimations of a sync after this long. */
+  public static final int GYRO_SYNC_ESTIMATION_TIMEOUT_MILLIS = 10_000;
+
+  /**
+   * Capture collection. Clients serve their capture directories over TCP on this port, the
+   * leader pulls them once the synchronized capture should have been saved.
+   */
+  public static final int CAPTURE_TRANSFER_PORT = 9429;
+  /** Delay after the trigger time before the leader starts collecting captures. */
+  public static final long CAPTURE_COLLECTION_DELAY_MILLIS = 2_000;
+  /**
+   * Files are still being written after the trigger (the JPEG is saved after the NV21), so a
+   * capture directory is pulled once two listings this far apart agree, polling at most
+   * CAPTURE_LISTING_POLLS times.
+   */
+  public static final long CAPTURE_LISTING_POLL_MILLIS = 500;
+  public static final int CAPTURE_LISTING_POLLS = 20;
+  /** Clients pulled at the same time, one connection each. */
+  public static final int CAPTURE_MAX_STREAMS = 3;
+  /**
+   * Total rate of capture collection over all clients, leaves room on the hotspot for RPC and
+   * heartbeat traffic.
+   */
+  public static final long CAPTURE_BANDWIDTH_BYTES_PER_SECOND = 8_000_000;
+  public static final int CAPTURE_CONNECT_ATTEMPTS = 3;
+
+  /**
+   * Data channel, one TCP connection per client opened once the client is registered, which
+   * multiplexes gyro uploads, capture transfers and RPC payloads larger than RPC_BUFFER_SIZE.
+   * Peers without one fall back to a connection per transfer.
+   */
+  public static final int DATA_CHANNEL_PORT = 9430;
+  public static final int DATA_CHANNEL_CONNECT_TIMEOUT_MILLIS = 1_000;
+  /** Unread bytes a stream may have in flight, and largest frame. */
+  public static final int DATA_STREAM_WINDOW_BYTES = 256 * 1024;
+  public static final int DATA_FRAME_MAX_BYTES = 32 * 1024;
+  /** Stream types of the data channel. */
+  public static final int DATA_STREAM_GYRO_UPLOAD = 1;
+  public static final int DATA_STREAM_CAPTURE = 2;
+  public static final int DATA_STREAM_RPC = 3;
+
+  /**
+   * Datagram transport shared by the rpc and sntp sockets: largest datagram received, pooled
+   * buffers kept for sends and queued receives, and datagrams read from a socket per selector
+   * wakeup before the other sockets get a turn.
+   */
+  public static final int DATAGRAM_BUFFER_SIZE = Math.max(RPC_BUFFER_SIZE, SNTP_BUFFER_SIZE);
+  public static final int DATAGRAM_POOL_SIZE = 64;
+  public static final int DATAGRAM_READS_PER_WAKEUP = 32;
 
   private SyncConstants() {}
 }
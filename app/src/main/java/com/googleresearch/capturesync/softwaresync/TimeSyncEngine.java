@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import com.googleresearch.capturesync.GyroView;
+
+/**
+ * Gyroscope-based time sync algorithm: estimates the delay between two gyro recordings of the
+ * same motion by cross-correlating their angular velocity norms, calibrating the relative
+ * orientation of the gyros and refining the correlation peak with a cubic spline.
+ */
+public interface TimeSyncEngine {
+    /**
+     * Restricts the search to delays within [-maxLagSeconds, maxLagSeconds]. A narrower window
+     * means a smaller correlation to compute, non-positive values search all lags (default).
+     */
+    void setMaxLag(double maxLagSeconds);
+
+    /**
+     * Estimates the delay of the second recording relative to the first one.
+     *
+     * @param accuracy upper bound of the correlation step in seconds, the step is also bounded by
+     *                 the mean sampling period of both recordings.
+     * @return time delay in seconds, the same value as {@code TimeSync.getTimeDelay()}.
+     */
+    double getTimeDelay(GyroView gyroFirst, GyroView gyroSecond, double accuracy);
+}
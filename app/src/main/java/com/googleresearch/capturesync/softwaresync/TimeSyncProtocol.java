@@ -18,7 +18,6 @@ package com.googleresearch.capturesync.softwaresync;
 
 import android.util.Log;
 
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.util.HashSet;
 import java.util.Set;
@@ -31,7 +30,7 @@ abstract class TimeSyncProtocol implements AutoCloseable {
     /** Sequentially manages time synchronization of clients. */
     protected abstract ExecutorService getTimeSyncExecutor();
 
-    protected final DatagramSocket mTimeSyncSocket;
+    protected final DatagramTransport.Endpoint mTimeSyncSocket;
     protected final int mTimeSyncPort;
 
     /** Keeps track of client sync tasks already in the pipeline to avoid duplicate requests. */
@@ -42,7 +41,8 @@ abstract class TimeSyncProtocol implements AutoCloseable {
     protected final Ticker mLocalClock;
 
     public TimeSyncProtocol(
-            Ticker localClock, DatagramSocket timeSyncSocket, int timeSyncPort, SoftwareSyncLeader leader) {
+            Ticker localClock, DatagramTransport.Endpoint timeSyncSocket, int timeSyncPort,
+            SoftwareSyncLeader leader) {
         this.mLocalClock = localClock;
         this.mTimeSyncSocket = timeSyncSocket;
         this.mTimeSyncPort = timeSyncPort;
@@ -82,7 +82,14 @@ abstract class TimeSyncProtocol implements AutoCloseable {
         Log.d(TAG, "Starting sync with client" + clientAddress);
         // Calculate clock offsetNs between client and leader using a time sync protocol
         TimeSyncOffsetResponse response = doTimeSync(clientAddress);
+        return applyTimeSyncResponse(clientAddress, response);
+    }
 
+    /**
+     * Sends the offset computed for the client to it and removes the client from the sync queue.
+     */
+    protected boolean applyTimeSyncResponse(
+            InetAddress clientAddress, TimeSyncOffsetResponse response) {
         if (response.status()) {
             // Apply local offsetNs to bestOffset so everyone has the same offsetNs.
             final long alignedOffset = response.offsetNs() + mLeader.getLeaderFromLocalNs();
@@ -92,8 +99,16 @@ abstract class TimeSyncProtocol implements AutoCloseable {
 
             // Send an RPC to update the offsetNs on the client.
             Log.d(TAG, "Sending offsetNs update to " + clientAddress + ": " + alignedOffset);
-            mLeader.sendRpc(
-                    SyncConstants.METHOD_OFFSET_UPDATE, String.valueOf(alignedOffset), clientAddress);
+            // Sent reliably, a lost update would leave the client unsynchronized until resync.
+            mLeader.sendReliableRpc(
+                    SyncConstants.METHOD_OFFSET_UPDATE,
+                    writer -> writer.putLong(alignedOffset),
+                    clientAddress)
+                    .addListener(delivery -> {
+                        if (!delivery.isAcknowledged()) {
+                            Log.w(TAG, "Offset update not acked by " + clientAddress);
+                        }
+                    });
         }
 
         // Pop client from the queue regardless of success state. Clients  will be added back in
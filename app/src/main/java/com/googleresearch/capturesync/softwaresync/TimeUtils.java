@@ -39,5 +39,10 @@ public final class TimeUtils {
     return seconds * 1_000_000_000L;
   }
 
+  /** Rounds to the nearest nanosecond. */
+  public static long secondsToNanos(double seconds) {
+    return Math.round(seconds * 1_000_000_000L);
+  }
+
   private TimeUtils() {}
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Token bucket limiting the byte rate of the streams sharing it. Tokens accumulate at the given
+ * rate up to one burst, reads take tokens and wait for them when the bucket runs dry.
+ */
+final class TokenBucket {
+    private final double mBytesPerNano;
+    private final long mBurstBytes;
+    private double mTokens;
+    private long mLastRefillNs;
+
+    TokenBucket(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond <= 0 || burstBytes <= 0) {
+            throw new IllegalArgumentException(
+                    "Rate and burst must be positive: " + bytesPerSecond + ", " + burstBytes);
+        }
+        mBytesPerNano = bytesPerSecond / 1e9;
+        mBurstBytes = burstBytes;
+        mTokens = burstBytes;
+        mLastRefillNs = System.nanoTime();
+    }
+
+    long burstBytes() {
+        return mBurstBytes;
+    }
+
+    /**
+     * Takes bytes tokens, waiting until they are available. The debt of a request larger than
+     * the available tokens is paid before returning, so that the long-term rate holds.
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+        long waitNs;
+        synchronized (this) {
+            long nowNs = System.nanoTime();
+            mTokens = Math.min(mBurstBytes, mTokens + (nowNs - mLastRefillNs) * mBytesPerNano);
+            mLastRefillNs = nowNs;
+            mTokens -= bytes;
+            waitNs = mTokens < 0 ? (long) (-mTokens / mBytesPerNano) : 0;
+        }
+        if (waitNs > 0) {
+            try {
+                Thread.sleep(waitNs / 1_000_000, (int) (waitNs % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    /** Stream wrapper throttling the input of every connection by this bucket. */
+    ChunkedFileTransfer.StreamWrapper inputThrottle() {
+        return new ChunkedFileTransfer.StreamWrapper() {
+            @Override
+            public InputStream wrapInput(InputStream in) {
+                return new ThrottledInputStream(in);
+            }
+
+            @Override
+            public OutputStream wrapOutput(OutputStream out) {
+                return out;
+            }
+        };
+    }
+
+    private final class ThrottledInputStream extends FilterInputStream {
+        ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                acquire(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, (int) Math.min(length, mBurstBytes));
+            if (read > 0) {
+                acquire(read);
+            }
+            return read;
+        }
+    }
+}
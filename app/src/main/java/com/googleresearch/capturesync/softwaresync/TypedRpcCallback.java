@@ -0,0 +1,31 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.googleresearch.capturesync.softwaresync;
+
+/**
+ * Callback for RPCs with typed fields, which reads them from the binary frame without parsing
+ * text. Callbacks registered as {@link RpcCallback} are served through an adapter.
+ */
+public interface TypedRpcCallback {
+
+    /**
+     * Called when an RPC is received. The message is recycled once the call returns, so fields
+     * have to be read before, not from other threads afterwards.
+     */
+    void call(RpcMessage message);
+}
@@ -0,0 +1,169 @@
+// Generates the fixtures of JavaTimeSyncEngineTest with the native TimeSync.
+//
+// Writes synthetic gyro recordings of the same motion as CSV files ("x,y,z,timestampNs", the
+// format of GyroCsvParser) and the delay estimated by TimeSync for each pair into
+// expected_delays.csv. Delays are computed from the CSV files as written, so the Java test and
+// the native code see the same float samples.
+//
+// Built by the CMakeLists.txt next to it against the Eigen and tk::spline sources of the app,
+// which rewrites app/src/test/resources/timesync:
+//   cmake -B build && cmake --build build --target fixtures
+
+#include "TimeSync.h"
+
+#include <cmath>
+#include <cstdint>
+#include <cstdio>
+#include <cstdlib>
+#include <random>
+#include <string>
+#include <vector>
+
+namespace {
+
+struct Case {
+    const char * name;
+    int size_first;
+    int size_second;
+    // Delay of the motion in the second recording, in samples of the first one
+    double shift_samples;
+    // Rotation of the second gyro relative to the first one, in radians about z, then x
+    double yaw;
+    double roll;
+    // Bound of the searched delay in seconds, 0 searches all lags
+    double max_lag;
+};
+
+// Pairs of different lengths with delays of both signs, the overlap at the correlation peak
+// is bounded by either recording
+const Case kCases[] = {
+        {"positive_lag_short_first", 700, 900, 37.3, 0.20, 0.10, 1.0},
+        {"negative_lag_short_second", 900, 650, -52.6, -0.15, 0.05, 1.0},
+        {"positive_lag_long_first", 1000, 800, 18.8, 0.10, -0.20, 1.0},
+        {"unbounded_rotated", 800, 760, -9.4, 1.10, 0.60, 0.0},
+};
+
+const std::int64_t kPeriodNs = 10'000'000;
+const double kAccuracy = 1.0;
+
+struct Motion {
+    double amplitude[3][4];
+    double frequency[3][4];
+    double phase[3][4];
+
+    explicit Motion(std::mt19937 & random) {
+        std::uniform_real_distribution<double> unit(0.0, 1.0);
+        for (int axis = 0; axis < 3; ++axis) {
+            for (int k = 0; k < 4; ++k) {
+                amplitude[axis][k] = 0.5 + 2.0 * unit(random);
+                frequency[axis][k] = 0.3 + 2.7 * unit(random);
+                phase[axis][k] = 2.0 * M_PI * unit(random);
+            }
+        }
+    }
+
+    void at(double t, double * w) const {
+        for (int axis = 0; axis < 3; ++axis) {
+            w[axis] = 0.0;
+            for (int k = 0; k < 4; ++k)
+                w[axis] += amplitude[axis][k] * std::sin(2.0 * M_PI * frequency[axis][k] * t + phase[axis][k]);
+        }
+    }
+};
+
+double gaussian(std::mt19937 & random) {
+    std::uniform_real_distribution<double> unit(0.0, 1.0);
+    double u1 = 1.0 - unit(random);
+    double u2 = unit(random);
+    return std::sqrt(-2.0 * std::log(u1)) * std::cos(2.0 * M_PI * u2);
+}
+
+void writeRecording(std::string const & path, Motion const & motion, std::mt19937 & random, int size,
+                    std::int64_t start_ns, double shift_seconds, double yaw, double roll) {
+    FILE * file = std::fopen(path.c_str(), "w");
+    if (file == nullptr) {
+        std::perror(path.c_str());
+        std::exit(1);
+    }
+    double cy = std::cos(yaw), sy = std::sin(yaw), cr = std::cos(roll), sr = std::sin(roll);
+    for (int i = 0; i < size; ++i) {
+        // Timestamps jitter by up to 0.2 ms around the nominal period
+        std::int64_t jitter_ns = static_cast<std::int64_t>(200'000 * (2.0 * gaussian(random) / 6.0));
+        std::int64_t timestamp_ns = start_ns + i * kPeriodNs + jitter_ns;
+        double w[3];
+        motion.at(i * kPeriodNs / 1e9 + shift_seconds, w);
+        double x = cy * w[0] - sy * w[1];
+        double y = sy * w[0] + cy * w[1];
+        double z = w[2];
+        double rotated[3] = {x, cr * y - sr * z, sr * y + cr * z};
+        std::fprintf(file, "%.6f,%.6f,%.6f,%lld\n",
+                     rotated[0] + 0.02 * gaussian(random), rotated[1] + 0.02 * gaussian(random),
+                     rotated[2] + 0.02 * gaussian(random), static_cast<long long>(timestamp_ns));
+    }
+    std::fclose(file);
+}
+
+// Reads a recording the way the app passes it to the bridge: float samples as column-major
+// doubles, timestamps in seconds
+void readRecording(std::string const & path, std::vector<double> & columns, std::vector<double> & times) {
+    FILE * file = std::fopen(path.c_str(), "r");
+    if (file == nullptr) {
+        std::perror(path.c_str());
+        std::exit(1);
+    }
+    std::vector<double> x, y, z;
+    times.clear();
+    char line[256];
+    while (std::fgets(line, sizeof(line), file) != nullptr) {
+        char * cursor = line;
+        x.push_back(static_cast<float>(std::strtod(cursor, &cursor)));
+        y.push_back(static_cast<float>(std::strtod(cursor + 1, &cursor)));
+        z.push_back(static_cast<float>(std::strtod(cursor + 1, &cursor)));
+        times.push_back(static_cast<double>(std::strtoll(cursor + 1, &cursor, 10)) / 1e9);
+    }
+    std::fclose(file);
+    columns = x;
+    columns.insert(columns.end(), y.begin(), y.end());
+    columns.insert(columns.end(), z.begin(), z.end());
+}
+
+}  // namespace
+
+int main(int argc, char ** argv) {
+    if (argc != 2) {
+        std::fprintf(stderr, "Usage: %s <output directory>\n", argv[0]);
+        return 2;
+    }
+    std::string directory = argv[1];
+    std::mt19937 random(20210611);
+
+    std::string expected_path = directory + "/expected_delays.csv";
+    FILE * expected = std::fopen(expected_path.c_str(), "w");
+    if (expected == nullptr) {
+        std::perror(expected_path.c_str());
+        return 1;
+    }
+    std::fprintf(expected, "case,max_lag_seconds,accuracy_seconds,delay_seconds\n");
+
+    for (Case const & test_case : kCases) {
+        Motion motion(random);
+        std::string first_path = directory + "/" + test_case.name + "_first.csv";
+        std::string second_path = directory + "/" + test_case.name + "_second.csv";
+        writeRecording(first_path, motion, random, test_case.size_first, 1'200'000'000'000LL, 0.0, 0.0, 0.0);
+        writeRecording(second_path, motion, random, test_case.size_second, 5'600'000'000'000LL,
+                       -test_case.shift_samples * kPeriodNs / 1e9, test_case.yaw, test_case.roll);
+
+        std::vector<double> columns_first, columns_second, times_first, times_second;
+        readRecording(first_path, columns_first, times_first);
+        readRecording(second_path, columns_second, times_second);
+
+        TimeSync time_sync(columns_first, columns_second, times_first, times_second, false);
+        time_sync.setMaxLag(test_case.max_lag);
+        time_sync.resample(kAccuracy);
+        time_sync.obtainDelay();
+        std::fprintf(expected, "%s,%.17g,%.17g,%.17g\n", test_case.name, test_case.max_lag, kAccuracy,
+                     time_sync.getTimeDelay());
+    }
+    std::fclose(expected);
+    return 0;
+}
@@ -0,0 +1,13 @@
+// Stand-in for the scapix bridge base class, lets the fixture generator build TimeSync
+// without the generated JNI bridge.
+#pragma once
+
+namespace scapix {
+namespace bridge {
+
+template <class T>
+class object {
+};
+
+}  // namespace bridge
+}  // namespace scapix
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Transfers a file between two {@link ChunkedFileTransfer}s over a loopback connection whose
+ * sender side flips bytes or cuts the connection, and checks that the received file is
+ * byte-identical.
+ */
+public class ChunkedFileTransferTest {
+    private static final int CHUNK_SIZE = 4096;
+    /** 16 full chunks and a short last one. */
+    private static final int FILE_SIZE = 16 * CHUNK_SIZE + 123;
+    private static final int CHUNK_COUNT = (FILE_SIZE + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    private static final String FILE_NAME = "gyro.bin";
+    /** Bytes of the manifest, see the protocol in ChunkedFileTransfer. */
+    private static final int MANIFEST_SIZE = 4 + 2 + FILE_NAME.length() + 8 + 4 + 4
+            + 4 * CHUNK_COUNT + 4;
+    /** Index and length preceding the data of each chunk. */
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int ACCEPT_TIMEOUT_MILLIS = 20_000;
+
+    private File mSenderDirectory;
+    private File mReceiverDirectory;
+    private File mSource;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws IOException {
+        mSenderDirectory = createTempDirectory("sender");
+        mReceiverDirectory = createTempDirectory("receiver");
+        mData = new byte[FILE_SIZE];
+        new Random(42).nextBytes(mData);
+        mSource = new File(mSenderDirectory, FILE_NAME);
+        try (OutputStream out = new FileOutputStream(mSource)) {
+            out.write(mData);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mSenderDirectory);
+        deleteRecursively(mReceiverDirectory);
+    }
+
+    @Test
+    public void transfersOverCleanLink() throws Exception {
+        LossyLink link = new LossyLink(LossyLink.NONE, 0, 0);
+        Receiver receiver = transfer(link);
+
+        assertReceived();
+        assertEquals(1, link.connections());
+        assertEquals(0, receiver.mFailures.size());
+        assertEquals(MANIFEST_SIZE + CHUNK_COUNT * CHUNK_HEADER_SIZE + FILE_SIZE,
+                link.bytesWritten(0));
+    }
+
+    @Test
+    public void sendsChunksToSocketChannel() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+            Receiver receiver = new Receiver(serverSocket);
+            receiver.start();
+
+            ChunkedFileTransfer sender = new ChunkedFileTransfer(
+                    CHUNK_SIZE, ChunkedFileTransfer.DEFAULT_MAX_ATTEMPTS,
+                    ChunkedFileTransfer.PLAIN
+            );
+            InetSocketAddress address = new InetSocketAddress(
+                    serverSocket.getInetAddress(), serverSocket.getLocalPort());
+            sender.sendFile(mSource, () -> {
+                Socket socket = SocketChannel.open(address).socket();
+                assertTrue(sender.directChannel(socket) != null);
+                return socket;
+            }, (fileDetails, transferredBytes) -> { });
+
+            receiver.join(ACCEPT_TIMEOUT_MILLIS);
+            assertFalse(receiver.isAlive());
+            assertEquals(0, receiver.mFailures.size());
+        }
+        assertReceived();
+    }
+
+    @Test
+    public void retransmitsChunkFailingChecksum() throws Exception {
+        // Flips a byte in the data of chunk 3.
+        long offset =
+                MANIFEST_SIZE + 3 * (CHUNK_HEADER_SIZE + CHUNK_SIZE) + CHUNK_HEADER_SIZE + 100;
+        LossyLink link = new LossyLink(LossyLink.FLIP, 0, offset);
+        Receiver receiver = transfer(link);
+
+        assertReceived();
+        // The bad chunk is sent again on the same connection, nothing else is.
+        assertEquals(1, link.connections());
+        assertEquals(0, receiver.mFailures.size());
+        assertEquals(MANIFEST_SIZE + (CHUNK_COUNT + 1) * CHUNK_HEADER_SIZE + FILE_SIZE + CHUNK_SIZE,
+                link.bytesWritten(0));
+    }
+
+    @Test
+    public void resumesAfterDroppedConnection() throws Exception {
+        // Drops everything after the middle of chunk 9.
+        long offset =
+                MANIFEST_SIZE + 9 * (CHUNK_HEADER_SIZE + CHUNK_SIZE) + CHUNK_HEADER_SIZE + 50;
+        LossyLink link = new LossyLink(LossyLink.CUT, 0, offset);
+        Receiver receiver = transfer(link);
+
+        assertReceived();
+        assertEquals(2, link.connections());
+        assertEquals(1, receiver.mFailures.size());
+        // Chunks acknowledged before the cut are kept, at least 0 and 1 since 8 chunks are sent
+        // ahead of their acknowledgement. Chunks in flight may be lost with the connection.
+        long fullSize = MANIFEST_SIZE + CHUNK_COUNT * CHUNK_HEADER_SIZE + FILE_SIZE;
+        long resentSize = link.bytesWritten(1);
+        assertTrue(resentSize <= fullSize - 2 * (CHUNK_HEADER_SIZE + CHUNK_SIZE));
+        assertTrue(resentSize >= fullSize - 9 * (CHUNK_HEADER_SIZE + CHUNK_SIZE));
+    }
+
+    @Test
+    public void rejectsCorruptedManifest() throws Exception {
+        // Flips a byte in the checksum of chunk 5 listed by the manifest.
+        long offset = MANIFEST_SIZE - 4 - 4 * (CHUNK_COUNT - 5) + 1;
+        LossyLink link = new LossyLink(LossyLink.FLIP, 0, offset);
+        Receiver receiver = transfer(link);
+
+        assertReceived();
+        assertEquals(2, link.connections());
+        assertEquals(1, receiver.mFailures.size());
+        assertTrue(receiver.mFailures.get(0).getMessage().contains("Manifest"));
+        assertEquals(MANIFEST_SIZE + CHUNK_COUNT * CHUNK_HEADER_SIZE + FILE_SIZE,
+                link.bytesWritten(1));
+    }
+
+    /** Sends the source file over the link and waits for the receiver to store it. */
+    private Receiver transfer(LossyLink link) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+            Receiver receiver = new Receiver(serverSocket);
+            receiver.start();
+
+            ChunkedFileTransfer sender = new ChunkedFileTransfer(
+                    CHUNK_SIZE, ChunkedFileTransfer.DEFAULT_MAX_ATTEMPTS, link
+            );
+            FileDetails details = sender.sendFile(mSource, () -> new Socket(
+                    serverSocket.getInetAddress(), serverSocket.getLocalPort()
+            ), (fileDetails, transferredBytes) -> { });
+            assertEquals(FILE_NAME, details.getName());
+            assertEquals(FILE_SIZE, details.getSize());
+
+            receiver.join(ACCEPT_TIMEOUT_MILLIS);
+            assertFalse(receiver.isAlive());
+            return receiver;
+        }
+    }
+
+    private void assertReceived() throws IOException {
+        File received = new File(mReceiverDirectory, FILE_NAME);
+        assertTrue(received.exists());
+        assertFalse(new File(mReceiverDirectory, FILE_NAME + ".part").exists());
+        assertArrayEquals(mData, readFully(received));
+    }
+
+    /** Accepts connections until one of them delivers the file. */
+    private final class Receiver extends Thread {
+        private final ServerSocket mServerSocket;
+        final List<IOException> mFailures = new ArrayList<>();
+        File mFile;
+
+        Receiver(ServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public void run() {
+            ChunkedFileTransfer transfer = new ChunkedFileTransfer();
+            while (mFile == null) {
+                try (Socket socket = mServerSocket.accept()) {
+                    mFile = transfer.receiveFile(socket, mReceiverDirectory);
+                } catch (SocketTimeoutException e) {
+                    return;
+                } catch (IOException e) {
+                    mFailures.add(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes the receiver's replies through and damages one connection of the sender: flips the
+     * byte at an offset of its output, or cuts the connection there.
+     */
+    private static final class LossyLink implements ChunkedFileTransfer.StreamWrapper {
+        static final int NONE = 0;
+        static final int FLIP = 1;
+        static final int CUT = 2;
+
+        private final int mFault;
+        private final int mFaultyConnection;
+        private final long mFaultOffset;
+        private final List<CountingOutputStream> mOutputs = new ArrayList<>();
+
+        LossyLink(int fault, int faultyConnection, long faultOffset) {
+            mFault = fault;
+            mFaultyConnection = faultyConnection;
+            mFaultOffset = faultOffset;
+        }
+
+        @Override
+        public InputStream wrapInput(InputStream in) {
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream wrapOutput(OutputStream out) {
+            boolean faulty = mOutputs.size() == mFaultyConnection;
+            CountingOutputStream counting =
+                    new CountingOutputStream(out, faulty ? mFault : NONE, mFaultOffset);
+            mOutputs.add(counting);
+            return counting;
+        }
+
+        synchronized int connections() {
+            return mOutputs.size();
+        }
+
+        synchronized long bytesWritten(int connection) {
+            return mOutputs.get(connection).mWritten;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final int mFault;
+        private final long mFaultOffset;
+        long mWritten;
+
+        CountingOutputStream(OutputStream out, int fault, long faultOffset) {
+            super(out);
+            mFault = fault;
+            mFaultOffset = faultOffset;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long end = mWritten + len;
+            if (mFault != LossyLink.NONE && mWritten <= mFaultOffset && mFaultOffset < end) {
+                int faultIndex = (int) (mFaultOffset - mWritten);
+                if (mFault == LossyLink.CUT) {
+                    out.write(b, off, faultIndex);
+                    out.flush();
+                    mWritten += faultIndex;
+                    throw new IOException("Connection cut by the test");
+                }
+                byte[] damaged = new byte[len];
+                System.arraycopy(b, off, damaged, 0, len);
+                damaged[faultIndex] ^= 0x10;
+                out.write(damaged, 0, len);
+            } else {
+                out.write(b, off, len);
+            }
+            mWritten = end;
+        }
+    }
+
+    private static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import com.googleresearch.capturesync.GyroCsvParser;
+import com.googleresearch.capturesync.GyroSeries;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares {@link JavaTimeSyncEngine} with delays of the native TimeSync stored in
+ * resources/timesync, see src/test/cpp/timesync/GenerateTimeSyncFixtures.cpp. Its CMake target
+ * rewrites them when TimeSync.cpp changes.
+ */
+public class JavaTimeSyncEngineTest {
+    private static final String FIXTURES = "/timesync/";
+    /**
+     * FFTs and spline solves round differently in Java and native code. The pyramid fits the
+     * spline to fewer lags around the peak, which moves the delay by ~1e-12 s.
+     */
+    private static final double TOLERANCE_SECONDS = 1e-9;
+    private static final int PYRAMID_LEVELS = 3;
+
+    @Test
+    public void matchesNativeDelays() throws IOException {
+        List<Fixture> fixtures = readFixtures();
+        assertFalse(fixtures.isEmpty());
+
+        // One engine for all pairs, so reused buffers of other sizes are covered too.
+        JavaTimeSyncEngine engine = new JavaTimeSyncEngine(false);
+        for (Fixture fixture : fixtures) {
+            engine.setMaxLag(fixture.mMaxLagSeconds);
+            double delay = engine.getTimeDelay(fixture.mFirst, fixture.mSecond, fixture.mAccuracy);
+            assertEquals(fixture.mName, fixture.mDelaySeconds, delay, TOLERANCE_SECONDS);
+        }
+    }
+
+    @Test
+    public void pyramidMatchesNativeDelays() throws IOException {
+        JavaTimeSyncEngine engine = new JavaTimeSyncEngine(false);
+        engine.setPyramid(PYRAMID_LEVELS, SyncConstants.GYRO_SYNC_PYRAMID_FACTOR);
+        for (Fixture fixture : readFixtures()) {
+            engine.setMaxLag(fixture.mMaxLagSeconds);
+            double delay = engine.getTimeDelay(fixture.mFirst, fixture.mSecond, fixture.mAccuracy);
+            assertEquals(fixture.mName, fixture.mDelaySeconds, delay, TOLERANCE_SECONDS);
+        }
+    }
+
+    private static final class Fixture {
+        final String mName;
+        final double mMaxLagSeconds;
+        final double mAccuracy;
+        final double mDelaySeconds;
+        final GyroSeries mFirst;
+        final GyroSeries mSecond;
+
+        Fixture(String line) throws IOException {
+            String[] fields = line.split(",");
+            mName = fields[0];
+            mMaxLagSeconds = Double.parseDouble(fields[1]);
+            mAccuracy = Double.parseDouble(fields[2]);
+            mDelaySeconds = Double.parseDouble(fields[3]);
+            mFirst = readSeries(mName + "_first.csv");
+            mSecond = readSeries(mName + "_second.csv");
+        }
+    }
+
+    private static List<Fixture> readFixtures() throws IOException {
+        List<Fixture> fixtures = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                open("expected_delays.csv"), Charset.forName("US-ASCII")))) {
+            // Skips the header.
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    fixtures.add(new Fixture(line));
+                }
+            }
+        }
+        return fixtures;
+    }
+
+    private static GyroSeries readSeries(String name) throws IOException {
+        try (ReadableByteChannel channel = Channels.newChannel(open(name))) {
+            return new GyroCsvParser().parse(channel);
+        }
+    }
+
+    private static InputStream open(String name) {
+        InputStream stream = JavaTimeSyncEngineTest.class.getResourceAsStream(FIXTURES + name);
+        assertNotNull("Missing fixture " + name, stream);
+        return stream;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.googleresearch.capturesync.GyroSeries;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Streams synthetic recordings of a shaken rig to {@link OnlineDelayEstimator} in batches, as the
+ * leader does during a sync, and checks where and how fast the estimate settles.
+ */
+public class OnlineDelayEstimatorTest {
+    private static final long PERIOD_NS = 2_000_000;
+    private static final long START_NS = 1_000_000_000L;
+    /** 100 ms batches of 500 Hz samples. */
+    private static final int BATCH_SAMPLES = 50;
+    private static final int MAX_SAMPLES = 5_000;
+    private static final int MAX_LAG = 500;
+    private static final double TOLERANCE_SECONDS = 0.5e-3;
+    private static final double MIN_CONFIDENCE = 0.8;
+    private static final int STABLE_ESTIMATES = 5;
+    /**
+     * Error of noise-free estimates. A parabola through the three lags around the peak is off by
+     * up to ~30 us on these recordings, the spline by ~1 us.
+     */
+    private static final double REFINED_ERROR_SECONDS = 2e-6;
+
+    /** Samples of each gyro streamed by the last {@link #stream} call. */
+    private int mStreamedSamples;
+
+    @Test
+    public void convergesToSubSampleDelay() {
+        for (int seed = 1; seed <= 10; seed++) {
+            // 18.75 samples, between lags.
+            OnlineDelayEstimator.Estimate estimate = stream(new Motion(seed, 0.0), 0.0375);
+
+            assertTrue(estimate.isConverged());
+            assertEquals(0.0375, estimate.delaySeconds(), REFINED_ERROR_SECONDS);
+            assertTrue(estimate.confidence() > 0.99);
+            // Five 100 ms batches agree well before the 2 s minimum recording.
+            assertTrue(mStreamedSamples <= 1_000);
+        }
+    }
+
+    @Test
+    public void convergesToNegativeDelay() {
+        for (int seed = 1; seed <= 10; seed++) {
+            OnlineDelayEstimator.Estimate estimate = stream(new Motion(seed, 0.0), -0.0523);
+
+            assertTrue(estimate.isConverged());
+            assertEquals(-0.0523, estimate.delaySeconds(), REFINED_ERROR_SECONDS);
+        }
+    }
+
+    @Test
+    public void convergesWithinToleranceOnNoisySamples() {
+        for (int seed = 3; seed < 8; seed++) {
+            OnlineDelayEstimator.Estimate estimate = stream(new Motion(seed, 0.1), 0.0211);
+
+            assertTrue(estimate.isConverged());
+            assertEquals(0.0211, estimate.delaySeconds(), TOLERANCE_SECONDS);
+        }
+    }
+
+    @Test
+    public void doesNotConvergeWithoutMotion() {
+        // Noise only, the two gyros are unrelated.
+        OnlineDelayEstimator.Estimate estimate = stream(new Motion(9, 0.1).still(), 0.0375);
+
+        assertFalse(estimate.isConverged());
+        assertTrue(estimate.confidence() < MIN_CONFIDENCE);
+    }
+
+    /**
+     * Streams the motion seen by the first gyro and the same motion delayed by delaySeconds seen
+     * by the second one, one batch of each at a time, until the estimate converges.
+     *
+     * @return the converged estimate, or the last one after MAX_SAMPLES.
+     */
+    private OnlineDelayEstimator.Estimate stream(Motion motion, double delaySeconds) {
+        OnlineDelayEstimator estimator = new OnlineDelayEstimator(
+                MAX_LAG, TOLERANCE_SECONDS, MIN_CONFIDENCE, STABLE_ESTIMATES);
+        GyroSeries.Builder first = new GyroSeries.Builder();
+        GyroSeries.Builder second = new GyroSeries.Builder();
+        OnlineDelayEstimator.Estimate estimate = null;
+        for (int batch = 0; batch * BATCH_SAMPLES < MAX_SAMPLES; batch++) {
+            int from = batch * BATCH_SAMPLES;
+            for (int i = from; i < from + BATCH_SAMPLES; i++) {
+                long timestampNs = START_NS + i * PERIOD_NS;
+                double t = i * PERIOD_NS / 1e9;
+                motion.add(first, t, timestampNs);
+                motion.add(second, t - delaySeconds, timestampNs);
+            }
+            estimator.addFirst(first, from);
+            estimator.addSecond(second, from);
+            estimate = estimator.estimate();
+            mStreamedSamples = first.size();
+            if (estimate.isConverged()) {
+                break;
+            }
+        }
+        return estimate;
+    }
+
+    /** Angular velocities of a hand-shaken rig: a few sines of 0.3-4 Hz per axis, plus noise. */
+    private static final class Motion {
+        private static final int WAVES = 4;
+
+        private final double[][] mAmplitude = new double[3][WAVES];
+        private final double[][] mFrequency = new double[3][WAVES];
+        private final double[][] mPhase = new double[3][WAVES];
+        private final Random mNoise;
+        private final double mNoiseStd;
+
+        Motion(long seed, double noiseStd) {
+            Random random = new Random(seed);
+            for (int axis = 0; axis < 3; axis++) {
+                for (int wave = 0; wave < WAVES; wave++) {
+                    mAmplitude[axis][wave] = 0.5 + 2.0 * random.nextDouble();
+                    mFrequency[axis][wave] = 0.3 + 3.7 * random.nextDouble();
+                    mPhase[axis][wave] = 2.0 * Math.PI * random.nextDouble();
+                }
+            }
+            mNoise = new Random(seed + 1);
+            mNoiseStd = noiseStd;
+        }
+
+        Motion still() {
+            for (double[] amplitudes : mAmplitude) {
+                Arrays.fill(amplitudes, 0.0);
+            }
+            return this;
+        }
+
+        void add(GyroSeries.Builder gyro, double t, long timestampNs) {
+            gyro.add(axis(0, t), axis(1, t), axis(2, t), timestampNs);
+        }
+
+        private float axis(int axis, double t) {
+            double value = mNoiseStd * mNoise.nextGaussian();
+            for (int wave = 0; wave < WAVES; wave++) {
+                value += mAmplitude[axis][wave]
+                        * Math.sin(2.0 * Math.PI * mFrequency[axis][wave] * t + mPhase[axis][wave]);
+            }
+            return (float) value;
+        }
+    }
+}
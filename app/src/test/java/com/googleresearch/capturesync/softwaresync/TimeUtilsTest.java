@@ -0,0 +1,39 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/** Conversions used for offsets sent to clients. */
+public class TimeUtilsTest {
+    @Test
+    public void convertsSecondsToNanos() {
+        assertEquals(1_000_000_000L, TimeUtils.secondsToNanos(1.0));
+        assertEquals(37_500_000L, TimeUtils.secondsToNanos(0.0375));
+        assertEquals(-52_531_904L, TimeUtils.secondsToNanos(-0.052531904));
+        assertEquals(0L, TimeUtils.secondsToNanos(0.0));
+    }
+
+    @Test
+    public void roundsToNearestNano() {
+        // Times 1e9 this is just below 71_500, truncating would give 71_499.
+        assertEquals(71_500L, TimeUtils.secondsToNanos(7.149999999999999e-5));
+        assertEquals(2L, TimeUtils.secondsToNanos(1.6e-9));
+    }
+}
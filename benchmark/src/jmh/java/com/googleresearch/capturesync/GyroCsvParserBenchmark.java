@@ -0,0 +1,115 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.LineNumberReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads gyro CSV recordings of 5k, 50k and 500k rows with {@link GyroCsvParser} and with the
+ * line-splitting reader it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GyroCsvParserBenchmark {
+    @Param({"5000", "50000", "500000"})
+    public int rows;
+
+    private File mFile;
+
+    @Setup
+    public void writeRecording() throws IOException {
+        mFile = File.createTempFile("gyro", ".csv");
+        Random random = new Random(rows);
+        long timestampNs = 1_200_000_000_000L;
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(mFile))) {
+            for (int i = 0; i < rows; i++) {
+                // Same text as RawSensorInfo writes: Float.toString of each axis.
+                writer.write(Float.toString((float) random.nextGaussian()) + ','
+                        + (float) random.nextGaussian() + ','
+                        + (float) random.nextGaussian() + ',' + timestampNs + '\n');
+                timestampNs += 2_500_000 + random.nextInt(20_000);
+            }
+        }
+    }
+
+    @TearDown
+    public void deleteRecording() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public GyroSeries gyroCsvParser() throws IOException {
+        return GyroCsvParser.parse(mFile);
+    }
+
+    /** The reader of ReadFromFile.readFromCSV before GyroCsvParser: counts lines, then splits. */
+    @Benchmark
+    public double[][] splitLines() throws IOException {
+        int rowCount;
+        try (LineNumberReader counter = new LineNumberReader(new FileReader(mFile))) {
+            while (counter.readLine() != null) {
+                // Counts lines only.
+            }
+            rowCount = counter.getLineNumber();
+        }
+        double[][] coordinates = new double[rowCount][3];
+        double[] times = new double[rowCount];
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mFile)))) {
+            int index = 0;
+            while (reader.ready()) {
+                String[] line = reader.readLine().split(",");
+                double[] row = {
+                        Double.parseDouble(line[0]),
+                        Double.parseDouble(line[1]),
+                        Double.parseDouble(line[2])
+                };
+                coordinates[index] = row;
+                times[index] = Double.parseDouble(line[3]) / 1e9;
+                index++;
+            }
+        }
+        return coordinates;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java side of passing a gyro series to the native TimeSync: one double[3] per sample, as before
+ * the column-major constructor, against one column-major double[].
+ *
+ * <p>The JNI copy made by the bridge is not included, it needs the native library on a device.
+ * It is one array region per sample for rows and a single one for columns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GyroSeriesMarshallingBenchmark {
+    @Param({"5000", "50000", "500000"})
+    public int rows;
+
+    private GyroSeries mSeries;
+
+    @Setup
+    public void createSeries() {
+        Random random = new Random(rows);
+        float[] x = new float[rows];
+        float[] y = new float[rows];
+        float[] z = new float[rows];
+        long[] timestampsNs = new long[rows];
+        for (int i = 0; i < rows; i++) {
+            x[i] = (float) random.nextGaussian();
+            y[i] = (float) random.nextGaussian();
+            z[i] = (float) random.nextGaussian();
+            timestampsNs[i] = 2_500_000L * i;
+        }
+        mSeries = new GyroSeries(x, y, z, timestampsNs, rows);
+    }
+
+    @Benchmark
+    public double[][] toRows() {
+        return GyroSeries.toRows(mSeries);
+    }
+
+    @Benchmark
+    public double[] toColumns() {
+        return GyroSeries.toColumns(mSeries);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 Mobile Robotics Lab. at Skoltech.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googleresearch.capturesync.softwaresync;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a file over loopback: with the 2 KB copy loop of the removed FileTransferUtils, with
+ * {@link ChunkedFileTransfer} through socket streams, and with {@link ChunkedFileTransfer} writing
+ * chunk data to a socket channel. Sizes are one 1080p NV21 frame and a 32 MB capture.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FileTransferBenchmark {
+    private static final int LEGACY_BUFFER_SIZE = 2048;
+
+    @Param({"3110400", "33554432"})
+    public int bytes;
+
+    private File mSenderDirectory;
+    private File mReceiverDirectory;
+    private File mSource;
+    private ServerSocket mServerSocket;
+    private InetSocketAddress mAddress;
+    private final ExecutorService mReceiverExecutor = Executors.newSingleThreadExecutor();
+    private final ChunkedFileTransfer mTransfer = new ChunkedFileTransfer();
+
+    @Setup
+    public void setUp() throws IOException {
+        mSenderDirectory = createTempDirectory("sender");
+        mReceiverDirectory = createTempDirectory("receiver");
+        mSource = new File(mSenderDirectory, "frame.nv21");
+        byte[] data = new byte[bytes];
+        new Random(bytes).nextBytes(data);
+        try (OutputStream out = new FileOutputStream(mSource)) {
+            out.write(data);
+        }
+        mServerSocket = ServerSocketChannel.open().socket();
+        mServerSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mAddress = new InetSocketAddress(mServerSocket.getInetAddress(),
+                mServerSocket.getLocalPort());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mReceiverExecutor.shutdownNow();
+        mServerSocket.close();
+        deleteRecursively(mSenderDirectory);
+        deleteRecursively(mReceiverDirectory);
+    }
+
+    /** FileTransferUtils before its removal: 2 KB at a time, flushed, on both sides. */
+    @Benchmark
+    public File legacyCopyLoop() throws Exception {
+        Future<File> received = mReceiverExecutor.submit(() -> {
+            File file = new File(mReceiverDirectory, mSource.getName());
+            try (Socket socket = mServerSocket.accept();
+                 InputStream in = socket.getInputStream();
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                byte[] data = new byte[LEGACY_BUFFER_SIZE];
+                int count;
+                while ((count = in.read(data)) > 0) {
+                    out.write(data, 0, count);
+                    out.flush();
+                }
+            }
+            return file;
+        });
+        try (Socket socket = new Socket(mAddress.getAddress(), mAddress.getPort());
+             InputStream in = new BufferedInputStream(new FileInputStream(mSource))) {
+            OutputStream out = socket.getOutputStream();
+            byte[] data = new byte[LEGACY_BUFFER_SIZE];
+            int count;
+            while ((count = in.read(data)) > 0) {
+                out.write(data, 0, count);
+                out.flush();
+            }
+            socket.shutdownOutput();
+            return received.get();
+        }
+    }
+
+    @Benchmark
+    public File chunkedStreams() throws Exception {
+        return chunked(false);
+    }
+
+    @Benchmark
+    public File chunkedSocketChannel() throws Exception {
+        return chunked(true);
+    }
+
+    private File chunked(boolean channel) throws Exception {
+        Future<File> received = mReceiverExecutor.submit(() -> {
+            try (Socket socket = mServerSocket.accept()) {
+                return mTransfer.receiveFile(socket, mReceiverDirectory);
+            }
+        });
+        mTransfer.sendFile(mSource, () -> channel
+                ? SocketChannel.open(mAddress).socket()
+                : new Socket(mAddress.getAddress(), mAddress.getPort()));
+        return received.get();
+    }
+
+    private static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Could not create " + directory);
+        }
+        return directory;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}